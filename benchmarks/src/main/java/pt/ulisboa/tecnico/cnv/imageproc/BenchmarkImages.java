@@ -0,0 +1,71 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Random;
+
+import pt.ulisboa.tecnico.cnv.common.ImageEncoder;
+
+/**
+ * Input images of the benchmarks: the files in imageproc/resources, and
+ * synthetic images named "synthetic-<megapixels>mp".
+ */
+public class BenchmarkImages {
+
+    // directory of the resource images, relative to the benchmarks module
+    public static String RESOURCES = System.getProperty("imageproc.resources", "../imageproc/resources");
+
+    private static final String SYNTHETIC = "synthetic-";
+
+    /**
+     * Encoded bytes of the named image.
+     */
+    public static byte[] load(String name) throws IOException {
+        if (name.startsWith(SYNTHETIC)) {
+            int megapixels = Integer.parseInt(name.substring(SYNTHETIC.length(), name.length() - "mp".length()));
+            return ImageEncoder.encode(synthesize(megapixels), "jpg");
+        }
+        return Files.readAllBytes(Paths.get(RESOURCES, name));
+    }
+
+    public static String format(String name) {
+        if (name.startsWith(SYNTHETIC)) {
+            return "jpg";
+        }
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Request body the web server would receive for the named image.
+     */
+    public static String dataUrl(String name, byte[] encoded) {
+        return String.format("data:image/%s;base64,%s", format(name), Base64.getEncoder().encodeToString(encoded));
+    }
+
+    /**
+     * A 4:3 image of about the given megapixels, with smooth gradients and
+     * noise so that it compresses like a photograph rather than a flat image.
+     */
+    static BufferedImage synthesize(int megapixels) {
+        int width = (int) Math.sqrt(megapixels * 1_000_000 * 4.0 / 3.0);
+        int height = megapixels * 1_000_000 / width;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+
+        Random random = new Random(megapixels);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(32);
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + noise * 2) & 0xFF;
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,94 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs ImageProcessingBenchmark with the GC profiler and prints, for every
+ * stage, time and allocation per megapixel. For the full path it also prints
+ * the least squares slope of time over megapixels per operation, in the units
+ * the load balancer's OnlineBasedEstimator learns (ns per megapixel, one
+ * slope per blur quality and one for enhance), so it can be used to seed the
+ * estimator.
+ *
+ * Accepts the usual JMH command line options (e.g. -p image=cat.jpg).
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .include(ImageProcessingBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+
+        Map<String, Double> megapixels = new HashMap<>();
+        // per operation, sums of time * megapixels and megapixels^2 of the full path
+        Map<String, double[]> slopes = new TreeMap<>();
+
+        System.out.printf("\n%-14s %-8s %-16s %8s %12s %12s %14s\n",
+                "operation", "stage", "image", "MP", "ms/op", "ms/MP", "bytes/MP");
+        for (RunResult result : results) {
+            String operation = result.getParams().getParam("operation");
+            String image = result.getParams().getParam("image");
+            String benchmark = result.getParams().getBenchmark();
+            String stage = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+
+            double mp = megapixels.computeIfAbsent(image, BenchmarkRunner::megapixels);
+            double ms = result.getPrimaryResult().getScore();
+            double allocated = allocation(result);
+
+            System.out.printf("%-14s %-8s %-16s %8.2f %12.3f %12.3f %14.0f\n",
+                    operation, stage, image, mp, ms, ms / mp, allocated / mp);
+
+            if (stage.equals("full")) {
+                double[] sums = slopes.computeIfAbsent(operation, k -> new double[2]);
+                sums[0] += ms * 1_000_000 * mp;
+                sums[1] += mp * mp;
+            }
+        }
+
+        if (!slopes.isEmpty()) {
+            System.out.printf("\n%-14s %16s\n", "operation", "ns/MP");
+            for (Map.Entry<String, double[]> slope : slopes.entrySet()) {
+                System.out.printf("%-14s %16.0f\n", slope.getKey(), slope.getValue()[0] / slope.getValue()[1]);
+            }
+        }
+    }
+
+    /**
+     * Bytes allocated per operation, as measured by the GC profiler.
+     */
+    private static double allocation(RunResult result) {
+        for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+            if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+                return secondary.getValue().getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+    private static double megapixels(String image) {
+        try {
+            return ImageProcessingBenchmark.megapixels(image);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
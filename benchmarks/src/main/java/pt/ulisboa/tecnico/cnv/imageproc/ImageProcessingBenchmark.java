@@ -0,0 +1,132 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.ulisboa.tecnico.cnv.common.ImageEncoder;
+
+/**
+ * Cost of each stage of an image processing request, for every operation
+ * and input image: decode, process, encode, base64 (decoding the request
+ * body and encoding the response body) and the full actuallyHandle path.
+ *
+ * Run through BenchmarkRunner to get the results per megapixel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageProcessingBenchmark {
+
+    @Param({ "blur-exact", "blur-box", "blur-pyramid", "enhance" })
+    public String operation;
+
+    @Param({ "airplane.jpg", "bird.jpg", "cat.jpg", "dark.png", "deer.jpg", "dog.jpg", "dull.jpg", "frog.jpg",
+            "horse.jpg", "kodim17.jpg", "ship.jpg", "truck.jpg",
+            "synthetic-1mp", "synthetic-4mp", "synthetic-16mp" })
+    public String image;
+
+    private ImageProcessingHandler handler;
+
+    private Map<String, String> parameters;
+
+    private URI uri;
+
+    private String format;
+
+    private byte[] encoded;
+
+    private String dataUrl;
+
+    private String encodedBody;
+
+    private BufferedImage decoded;
+
+    private BufferedImage processed;
+
+    private byte[] output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        parameters = new HashMap<>();
+        if (operation.startsWith("blur")) {
+            handler = new BlurImageHandler();
+            parameters.put("quality", operation.substring("blur-".length()));
+            uri = URI.create("/blurimage?quality=" + parameters.get("quality"));
+        } else {
+            handler = new EnhanceImageHandler();
+            uri = URI.create("/enhanceimage");
+        }
+
+        format = BenchmarkImages.format(image);
+        encoded = BenchmarkImages.load(image);
+        dataUrl = BenchmarkImages.dataUrl(image, encoded);
+        encodedBody = dataUrl.split(",")[1];
+        decoded = ImageIO.read(new ByteArrayInputStream(encoded));
+        processed = handler.process(decoded, parameters);
+        output = ImageEncoder.encode(processed, format);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(encoded));
+    }
+
+    @Benchmark
+    public int process() throws IOException {
+        BufferedImage bi = handler.process(decoded, parameters);
+        int width = bi.getWidth();
+        // as after a request, so the pool is exercised as in the web server
+        ImageBufferPool.release(bi);
+        return width;
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return ImageEncoder.encode(processed, format);
+    }
+
+    @Benchmark
+    public int base64() {
+        byte[] body = Base64.getDecoder().decode(encodedBody);
+        String response = Base64.getEncoder().encodeToString(output);
+        return body.length + response.length();
+    }
+
+    @Benchmark
+    public String full() {
+        return handler.actuallyHandle(uri, new ByteArrayInputStream(dataUrl.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Megapixels of the named image.
+     */
+    public static double megapixels(String image) throws IOException {
+        BufferedImage bi = ImageIO.read(new ByteArrayInputStream(BenchmarkImages.load(image)));
+        return bi.getWidth() * (double) bi.getHeight() / 1_000_000;
+    }
+}
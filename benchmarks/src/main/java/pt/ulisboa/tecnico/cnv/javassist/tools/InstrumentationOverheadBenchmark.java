@@ -0,0 +1,159 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the counters VFXMetrics inserts in the code, on a small pixel
+ * kernel whose loop javac compiles to four basic blocks per pixel (three
+ * when the pixel is dark):
+ *
+ *  - none: the kernel as written;
+ *  - counters: with a VFXMetrics.incBasicBlock call at the start of every
+ *    basic block, as the agent used to instrument it;
+ *  - placed: with the probes ProbePlacement leaves in it, one per pixel
+ *    plus one per bright pixel, and the entry probe folded into incBehavior;
+ *  - maps: one call per block against per-thread ConcurrentHashMaps of boxed
+ *    longs, the scheme VFXMetrics used before, for comparison.
+ *
+ * counters and placed add up to the same totals.
+ *
+ * Run with e.g. -t 4 to see how the schemes behave with several request
+ * threads. The overhead on real requests is measured by running
+ * ImageProcessingBenchmark with the agent (see README).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstrumentationOverheadBenchmark {
+
+    private static final int PIXELS = 64 * 1024;
+
+    private int[] pixels;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        pixels = new int[PIXELS];
+        for (int i = 0; i < PIXELS; i++) {
+            pixels[i] = random.nextInt();
+        }
+        VFXMetrics.resetStats();
+    }
+
+    @Benchmark
+    public long none() {
+        long sum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int gray = luminance(pixels[i]);
+            if (gray > 128) {
+                sum += gray;
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long counters() {
+        long sum = 0;
+        int i = 0;
+        VFXMetrics.incBasicBlock(0, 4);
+        while (true) {
+            VFXMetrics.incBasicBlock(4, 5);
+            if (i >= pixels.length) {
+                break;
+            }
+            VFXMetrics.incBasicBlock(9, 9);
+            int gray = luminance(pixels[i]);
+            if (gray > 128) {
+                VFXMetrics.incBasicBlock(18, 5);
+                sum += gray;
+            }
+            VFXMetrics.incBasicBlock(23, 2);
+            i++;
+        }
+        VFXMetrics.incBasicBlock(25, 2);
+        VFXMetrics.incBehavior(0, 0);
+        return sum;
+    }
+
+    @Benchmark
+    public long placed() {
+        long sum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            int gray = luminance(pixels[i]);
+            if (gray > 128) {
+                VFXMetrics.incBasicBlocks(1, 5);
+                sum += gray;
+            }
+            VFXMetrics.incBasicBlocks(3, 16);
+        }
+        VFXMetrics.incBehavior(3, 11);
+        return sum;
+    }
+
+    @Benchmark
+    public long maps() {
+        long sum = 0;
+        int i = 0;
+        MapCounters.incBasicBlock(0, 4);
+        while (true) {
+            MapCounters.incBasicBlock(4, 5);
+            if (i >= pixels.length) {
+                break;
+            }
+            MapCounters.incBasicBlock(9, 9);
+            int gray = luminance(pixels[i]);
+            if (gray > 128) {
+                MapCounters.incBasicBlock(18, 5);
+                sum += gray;
+            }
+            MapCounters.incBasicBlock(23, 2);
+            i++;
+        }
+        MapCounters.incBasicBlock(25, 2);
+        MapCounters.incBehavior("maps");
+        return sum;
+    }
+
+    private static int luminance(int rgb) {
+        return (((rgb >> 16) & 0xff) * 77 + ((rgb >> 8) & 0xff) * 150 + (rgb & 0xff) * 29) >> 8;
+    }
+
+    /**
+     * Counters keyed by thread id in shared maps.
+     */
+    static class MapCounters {
+        static final Map<Long, Long> nblocks = new ConcurrentHashMap<>();
+        static final Map<Long, Long> ninsts = new ConcurrentHashMap<>();
+        static final Map<Long, Long> nmethods = new ConcurrentHashMap<>();
+
+        static void incBasicBlock(int position, int length) {
+            long tid = Thread.currentThread().getId();
+            nblocks.put(tid, nblocks.getOrDefault(tid, 0L) + 1);
+            ninsts.put(tid, ninsts.getOrDefault(tid, 0L) + length);
+        }
+
+        static void incBehavior(String name) {
+            long tid = Thread.currentThread().getId();
+            nmethods.put(tid, nmethods.getOrDefault(tid, 0L) + 1);
+        }
+    }
+}
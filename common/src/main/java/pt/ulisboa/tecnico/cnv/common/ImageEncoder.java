@@ -0,0 +1,277 @@
+package pt.ulisboa.tecnico.cnv.common;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Encodes response images with configurable settings, shared by the image
+ * processing endpoints and the ray tracer.
+ *
+ * PNG images without alpha are written by our own encoder, either
+ * sequentially (StreamingPngWriter) or, with PNG_PARALLEL, by deflating
+ * independent chunks of rows on several threads: each chunk is compressed as
+ * raw deflate data ending on a byte boundary (SYNC_FLUSH), primed with the
+ * last 32 KiB of the preceding data as dictionary, and the chunks are
+ * concatenated into a single zlib stream whose Adler-32 is combined from the
+ * per-chunk checksums. Everything else goes through ImageIO, with the
+ * configured JPEG quality or PNG compression level.
+ *
+ * Every write adds its wall-clock time, including the wait for the deflate
+ * threads, to a counter of the calling thread, so getStats tells how long
+ * the current request spent encoding since resetStats.
+ */
+public class ImageEncoder {
+
+    // deflate level for PNG, 0 (store) to 9 (best)
+    public static int PNG_LEVEL = System.getenv("PNG_LEVEL") == null
+            ? 4 : Integer.parseInt(System.getenv("PNG_LEVEL"));
+
+    // JPEG quality, 0 to 1
+    public static float JPEG_QUALITY = System.getenv("JPEG_QUALITY") == null
+            ? 0.75f : Float.parseFloat(System.getenv("JPEG_QUALITY"));
+
+    // deflate PNG rows on several threads (off until rolled out)
+    public static boolean PNG_PARALLEL = Boolean.parseBoolean(System.getenv("PNG_PARALLEL"));
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    // uncompressed bytes deflated by each parallel task
+    private static final int PARALLEL_CHUNK = 256 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    // created on first use, most processes (e.g. Lambda functions) never deflate in parallel
+    private static class Pool {
+        static final ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread thread = new Thread(r, "png-deflate");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // nanoseconds spent encoding by the current thread since the last resetStats
+    private static final ThreadLocal<long[]> encodeTime = ThreadLocal.withInitial(() -> new long[1]);
+
+    public static void write(BufferedImage image, String format, OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (format.equalsIgnoreCase("png") && StreamingPngWriter.supports(image)) {
+                if (PNG_PARALLEL && image.getHeight() > 1) {
+                    writeParallelPng(image, out);
+                } else {
+                    StreamingPngWriter writer = new StreamingPngWriter(out, image.getWidth(), image.getHeight(),
+                            StreamingPngWriter.isGray(image), PNG_LEVEL);
+                    writer.write(image);
+                    writer.finish();
+                }
+            } else {
+                writeImageIO(image, format, out);
+            }
+        } finally {
+            encodeTime.get()[0] += System.nanoTime() - start;
+        }
+    }
+
+    public static byte[] encode(BufferedImage image, String format) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        write(image, format, baos);
+        return baos.toByteArray();
+    }
+
+    private static void writeImageIO(BufferedImage image, String format, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer for format " + format);
+        }
+        ImageWriter writer = writers.next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            boolean jpeg = format.equalsIgnoreCase("jpeg") || format.equalsIgnoreCase("jpg");
+            boolean png = format.equalsIgnoreCase("png");
+            if (jpeg || png) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                // the PNG writer maps quality q to deflate level (int) (9 * (1 - q))
+                param.setCompressionQuality(jpeg ? JPEG_QUALITY : Math.max(0.0f, 1.0f - (PNG_LEVEL + 0.5f) / 9.0f));
+            }
+        }
+
+        // buffered in memory, rather than in a temporary file as ImageIO would by default
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Deflated data of one chunk of rows, with the Adler-32 and length of
+     * its uncompressed (filtered) bytes.
+     */
+    private static class DeflatedChunk {
+        byte[] data;
+        long adler;
+        long length;
+    }
+
+    private static void writeParallelPng(BufferedImage image, OutputStream os) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean gray = StreamingPngWriter.isGray(image);
+        int rowLength = width * (gray ? 1 : 3) + 1;
+        int rowsPerChunk = Math.max(1, PARALLEL_CHUNK / rowLength);
+        int dictionaryRows = (DICTIONARY_SIZE + rowLength - 1) / rowLength;
+
+        List<Future<DeflatedChunk>> futures = new ArrayList<>();
+        for (int y0 = 0; y0 < height; y0 += rowsPerChunk) {
+            int from = y0;
+            int to = Math.min(height, y0 + rowsPerChunk);
+            futures.add(Pool.pool.submit(() -> deflateRows(image, gray, from, to, dictionaryRows, to == height)));
+        }
+
+        DataOutputStream out = new DataOutputStream(os);
+        StreamingPngWriter.writeHeader(out, width, height, gray);
+        StreamingPngWriter.ChunkStream idat = new StreamingPngWriter.ChunkStream(out);
+
+        // zlib header: deflate with a 32K window, no dictionary, level hint
+        int cmf = 0x78;
+        int flevel = PNG_LEVEL < 2 ? 0 : PNG_LEVEL < 6 ? 1 : PNG_LEVEL == 6 ? 2 : 3;
+        int flg = flevel << 6;
+        flg += (31 - (cmf * 256 + flg) % 31) % 31;
+        idat.write(cmf);
+        idat.write(flg);
+
+        long adler = 1;
+        try {
+            for (Future<DeflatedChunk> future : futures) {
+                DeflatedChunk chunk = future.get();
+                idat.write(chunk.data, 0, chunk.data.length);
+                adler = combineAdler32(adler, chunk.adler, chunk.length);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+
+        idat.write((int) (adler >>> 24));
+        idat.write((int) (adler >>> 16));
+        idat.write((int) (adler >>> 8));
+        idat.write((int) adler);
+        idat.flushChunk();
+        StreamingPngWriter.writeTrailer(out);
+        out.flush();
+    }
+
+    /**
+     * Filters and deflates rows [from, to), using the filtered bytes of the
+     * preceding rows (up to DICTIONARY_SIZE) as dictionary.
+     */
+    private static DeflatedChunk deflateRows(BufferedImage image, boolean gray, int from, int to,
+            int dictionaryRows, boolean last) {
+        int channels = gray ? 1 : 3;
+        int rowLength = image.getWidth() * channels + 1;
+        int first = Math.max(0, from - dictionaryRows);
+
+        byte[] filtered = new byte[(to - first) * rowLength];
+        byte[] row = new byte[rowLength - 1];
+        byte[] previous = new byte[rowLength - 1];
+        int[] argb = new int[image.getWidth()];
+        if (first > 0) {
+            StreamingPngWriter.readRow(image, first - 1, channels, previous, argb);
+        }
+        for (int y = first; y < to; y++) {
+            StreamingPngWriter.readRow(image, y, channels, row, argb);
+            StreamingPngWriter.filterRow(row, previous, filtered, (y - first) * rowLength, channels);
+            byte[] tmp = previous;
+            previous = row;
+            row = tmp;
+        }
+
+        int start = (from - first) * rowLength;
+        int length = filtered.length - start;
+
+        Deflater deflater = new Deflater(PNG_LEVEL, true);
+        if (start > 0) {
+            int dictionary = Math.min(DICTIONARY_SIZE, start);
+            deflater.setDictionary(filtered, start - dictionary, dictionary);
+        }
+        deflater.setInput(filtered, start, length);
+        if (last) {
+            deflater.finish();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+            int n = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, n);
+            if (last ? deflater.finished() : n < buffer.length) {
+                break;
+            }
+        }
+        deflater.end();
+
+        Adler32 checksum = new Adler32();
+        checksum.update(filtered, start, length);
+
+        DeflatedChunk chunk = new DeflatedChunk();
+        chunk.data = out.toByteArray();
+        chunk.adler = checksum.getValue();
+        chunk.length = length;
+        return chunk;
+    }
+
+    /**
+     * Adler-32 of the concatenation of two byte sequences, from the checksums
+     * of each (as zlib's adler32_combine).
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Zeros the encoding time of the current thread.
+     */
+    public static void resetStats() {
+        encodeTime.get()[0] = 0;
+    }
+
+    /**
+     * Encoding time (ns) of the current thread since the last resetStats.
+     */
+    public static Map<String, Long> getStats() {
+        Map<String, Long> map = new HashMap<>();
+        map.put("encodeTime", encodeTime.get()[0]);
+        return map;
+    }
+}
@@ -0,0 +1,51 @@
+package pt.ulisboa.tecnico.cnv.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Passes writes through to out while keeping a copy of up to limit bytes, so
+ * a response can be kept (cached, replayed) after it has been sent. Past the
+ * limit the copy is dropped and writes only pass through.
+ */
+public class RecordingOutputStream extends FilterOutputStream {
+    private final long limit;
+    private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+    public RecordingOutputStream(OutputStream out, long limit) {
+        super(out);
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        record(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        record(b, off, len);
+    }
+
+    private void record(byte[] b, int off, int len) {
+        if (copy == null) {
+            return;
+        }
+        if (copy.size() + len > limit) {
+            copy = null;
+            return;
+        }
+        copy.write(b, off, len);
+    }
+
+    /**
+     * The bytes written, or null if they exceeded the limit.
+     */
+    public byte[] recorded() {
+        return copy == null ? null : copy.toByteArray();
+    }
+}
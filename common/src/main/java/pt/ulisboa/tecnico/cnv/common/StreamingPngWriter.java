@@ -0,0 +1,269 @@
+package pt.ulisboa.tecnico.cnv.common;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG image a band of rows at a time, so the whole image never has
+ * to be in memory. Rows are Paeth-filtered and deflated as they arrive, and
+ * the compressed data is emitted in IDAT chunks of at most CHUNK_SIZE bytes.
+ *
+ * Supports 8-bit grayscale and 8-bit RGB output. The static helpers are
+ * shared with the parallel encoder in ImageEncoder.
+ */
+public class StreamingPngWriter {
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final byte FILTER_PAETH = 4;
+
+    private final DataOutputStream out;
+
+    private final int width;
+
+    private final int height;
+
+    private final int channels;
+
+    private final ChunkStream chunks;
+
+    private final Deflater deflater;
+
+    private final DeflaterOutputStream idat;
+
+    // current and previous raw row (zeros before the first row), and the
+    // filtered row with its filter type byte
+    private byte[] row;
+    private byte[] previous;
+    private final byte[] filtered;
+
+    private final int[] argb;
+
+    private int rowsWritten = 0;
+
+    /**
+     * @param gray write an 8-bit grayscale image instead of 8-bit RGB
+     * @param level deflate level, 0 (store) to 9 (best)
+     */
+    public StreamingPngWriter(OutputStream out, int width, int height, boolean gray, int level) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.channels = gray ? 1 : 3;
+        this.row = new byte[width * channels];
+        this.previous = new byte[width * channels];
+        this.filtered = new byte[width * channels + 1];
+        this.argb = new int[width];
+
+        writeHeader(this.out, width, height, gray);
+
+        this.chunks = new ChunkStream(this.out);
+        this.deflater = new Deflater(level);
+        this.idat = new DeflaterOutputStream(chunks, deflater, CHUNK_SIZE);
+    }
+
+    /**
+     * Whether image can be written without losing information (no alpha,
+     * at most 8 bits per sample).
+     */
+    public static boolean supports(BufferedImage image) {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static boolean isGray(BufferedImage image) {
+        return image.getColorModel().getNumComponents() == 1;
+    }
+
+    /**
+     * Appends all rows of band, which must be as wide as the image.
+     */
+    public void write(BufferedImage band) throws IOException {
+        write(band, 0, band.getHeight());
+    }
+
+    /**
+     * Appends rows [from, to) of band, which must be as wide as the image.
+     */
+    public void write(BufferedImage band, int from, int to) throws IOException {
+        if (band.getWidth() != width) {
+            throw new IllegalArgumentException("Band width " + band.getWidth() + " does not match image width " + width);
+        }
+        if (rowsWritten + to - from > height) {
+            throw new IllegalStateException("More rows than the image height " + height);
+        }
+
+        for (int y = from; y < to; y++) {
+            readRow(band, y, channels, row, argb);
+            filterRow(row, previous, filtered, 0, channels);
+            idat.write(filtered);
+
+            byte[] tmp = previous;
+            previous = row;
+            row = tmp;
+            rowsWritten++;
+        }
+    }
+
+    /**
+     * Flushes the compressed data and writes the trailer. The underlying
+     * stream is flushed but not closed.
+     */
+    public void finish() throws IOException {
+        if (rowsWritten != height) {
+            throw new IllegalStateException("Only " + rowsWritten + " of " + height + " rows were written");
+        }
+        idat.finish();
+        deflater.end();
+        chunks.flushChunk();
+        writeTrailer(out);
+        out.flush();
+    }
+
+    static void writeHeader(DataOutputStream out, int width, int height, boolean gray) throws IOException {
+        out.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(header);
+        dos.writeInt(width);
+        dos.writeInt(height);
+        dos.writeByte(8);              // bit depth
+        dos.writeByte(gray ? 0 : 2);   // color type
+        dos.writeByte(0);              // compression
+        dos.writeByte(0);              // filter method
+        dos.writeByte(0);              // no interlace
+        writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+    }
+
+    static void writeTrailer(DataOutputStream out) throws IOException {
+        writeChunk(out, "IEND", new byte[0], 0, 0);
+    }
+
+    /**
+     * Reads row y of image as 8-bit gray or RGB samples.
+     */
+    static void readRow(BufferedImage image, int y, int channels, byte[] row, int[] argb) {
+        int width = image.getWidth();
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY && channels == 1 && image.getRaster().getParent() == null) {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            System.arraycopy(data, y * width, row, 0, width);
+        } else if (image.getType() == BufferedImage.TYPE_3BYTE_BGR && channels == 3 && image.getRaster().getParent() == null) {
+            byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+            int p = y * width * 3;
+            for (int i = 0; i < width * 3; i += 3) {
+                row[i] = data[p + i + 2];
+                row[i + 1] = data[p + i + 1];
+                row[i + 2] = data[p + i];
+            }
+        } else if (channels == 1) {
+            image.getRaster().getDataElements(0, y, width, 1, row);
+        } else {
+            image.getRGB(0, y, width, 1, argb, 0, width);
+            for (int x = 0, i = 0; x < width; x++, i += 3) {
+                int rgb = argb[x];
+                row[i] = (byte) (rgb >> 16);
+                row[i + 1] = (byte) (rgb >> 8);
+                row[i + 2] = (byte) rgb;
+            }
+        }
+    }
+
+    /**
+     * Paeth-filters row against previous into filtered[offset], preceded by
+     * the filter type byte.
+     */
+    static void filterRow(byte[] row, byte[] previous, byte[] filtered, int offset, int channels) {
+        filtered[offset] = FILTER_PAETH;
+        int length = row.length;
+        for (int i = 0; i < length; i++) {
+            int a = i >= channels ? row[i - channels] & 0xFF : 0;
+            int b = previous[i] & 0xFF;
+            int c = i >= channels ? previous[i - channels] & 0xFF : 0;
+            filtered[offset + i + 1] = (byte) ((row[i] & 0xFF) - paeth(a, b, c));
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        } else if (pb <= pc) {
+            return b;
+        }
+        return c;
+    }
+
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, offset, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Collects zlib data and emits it as IDAT chunks.
+     */
+    static class ChunkStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int size = 0;
+
+        ChunkStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            buffer[size++] = (byte) b;
+            if (size == CHUNK_SIZE) {
+                flushChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, CHUNK_SIZE - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+                if (size == CHUNK_SIZE) {
+                    flushChunk();
+                }
+            }
+        }
+
+        void flushChunk() throws IOException {
+            if (size > 0) {
+                writeChunk(out, "IDAT", buffer, 0, size);
+                size = 0;
+            }
+        }
+    }
+}
@@ -1,15 +1,58 @@
 package pt.ulisboa.tecnico.cnv.common;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.HashMap;
-import java.time.Instant;
-import java.io.Serializable;
 import java.util.concurrent.atomic.AtomicLong;
 
-public class WorkerMetric implements Serializable {
+/**
+ * Metrics of one request. The counters every request may report are kept in
+ * fixed slots (see Counter) instead of a map of boxed longs; any other raw
+ * data goes to a small overflow map. WorkerMetricCodec writes them in a
+ * compact binary form.
+ */
+public class WorkerMetric {
 	// sequence number
 	private static AtomicLong global = new AtomicLong(0);
 
+	/**
+	 * Counters with a fixed slot, and the raw data key each is reported under.
+	 */
+	public enum Counter {
+		NINSTS("ninsts"),
+		NBLOCKS("nblocks"),
+		NMETHODS("nmethods"),
+		OP_TIME("opTime"),
+		ENCODE_TIME("encodeTime"),
+		QUEUE_TIME("queueTime"),
+		CACHE_HIT("cacheHit"),
+		POOL_HITS("poolHits"),
+		POOL_MISSES("poolMisses"),
+		// set on requests whose instructions were counted, to the number of requests each stands for
+		SAMPLE_WEIGHT("sampleWeight");
+
+		public static final Counter[] VALUES = values();
+
+		private final String key;
+
+		Counter(String key) {
+			this.key = key;
+		}
+
+		public String getKey() {
+			return this.key;
+		}
+
+		public static Counter of(String key) {
+			for (Counter counter : VALUES) {
+				if (counter.key.equals(key)) {
+					return counter;
+				}
+			}
+			return null;
+		}
+	}
+
 	private long seq;
 
 	// worker id
@@ -17,28 +60,75 @@ public class WorkerMetric implements Serializable {
 
 	private String uri;
 	private Map<String, String> parameters;
-	private Map<String, Long> rawData;
 	private long bodySize;
 	private long duration;
 
+	private final long[] counters = new long[Counter.VALUES.length];
+	// bit i set if counter i was reported
+	private int present;
+	// raw data without a slot, null if none
+	private Map<String, Long> extra;
+
 	public WorkerMetric(String wid, String uri, Map<String, Long> unifiedParameters, long bodySize, long duration) {
-		this.seq = global.getAndIncrement();
-		this.wid = wid;
-		this.uri = uri;
-		this.parameters = new HashMap<>();
-		this.rawData = unifiedParameters;
-		this.bodySize = bodySize;
-		this.duration = duration;
+		this(wid, uri, new HashMap<>(), unifiedParameters, bodySize, duration);
 	}
 
 	public WorkerMetric(String wid, String uri, Map<String, String> parameters, Map<String, Long> rawData, long bodySize, long duration) {
-		this.seq = global.getAndIncrement();
+		this(global.getAndIncrement(), wid, uri, parameters, rawData, bodySize, duration);
+	}
+
+	/**
+	 * Rebuilds a metric that was already numbered, e.g. when read back from a
+	 * log.
+	 */
+	public WorkerMetric(long seq, String wid, String uri, Map<String, String> parameters, Map<String, Long> rawData, long bodySize, long duration) {
+		this.seq = seq;
 		this.wid = wid;
 		this.uri = uri;
 		this.parameters = parameters;
-		this.rawData = rawData;
 		this.bodySize = bodySize;
 		this.duration = duration;
+		for (Map.Entry<String, Long> entry : rawData.entrySet()) {
+			if (entry.getValue() != null) {
+				putRawData(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	public void putRawData(String key, long value) {
+		Counter counter = Counter.of(key);
+		if (counter != null) {
+			setCounter(counter, value);
+		} else {
+			if (this.extra == null) {
+				this.extra = new HashMap<>();
+			}
+			this.extra.put(key, value);
+		}
+	}
+
+	public void setCounter(Counter counter, long value) {
+		this.counters[counter.ordinal()] = value;
+		this.present |= 1 << counter.ordinal();
+	}
+
+	/**
+	 * Value of the counter, 0 if it was not reported.
+	 */
+	public long getCounter(Counter counter) {
+		return this.counters[counter.ordinal()];
+	}
+
+	public boolean hasCounter(Counter counter) {
+		return (this.present & (1 << counter.ordinal())) != 0;
+	}
+
+	int getPresent() {
+		return this.present;
+	}
+
+	Map<String, Long> getExtra() {
+		return this.extra == null ? Collections.emptyMap() : this.extra;
 	}
 
 	public long getSeq() {
@@ -57,8 +147,17 @@ public class WorkerMetric implements Serializable {
 		return this.parameters;
 	}
 
+	/**
+	 * All raw data as a map, built on each call; prefer getCounter.
+	 */
 	public Map<String, Long> getRawData() {
-		return this.rawData;
+		Map<String, Long> rawData = new HashMap<>(getExtra());
+		for (Counter counter : Counter.VALUES) {
+			if (hasCounter(counter)) {
+				rawData.put(counter.getKey(), getCounter(counter));
+			}
+		}
+		return rawData;
 	}
 
 	public long getBodySize() {
@@ -82,12 +181,13 @@ public class WorkerMetric implements Serializable {
 		}
 		
 		// Remove the last comma and space if parameters is not empty
-		if (!rawData.isEmpty()) {
+		if (!parameters.isEmpty()) {
 		    sb.setLength(sb.length() - 2);
 		}
 
 		sb.append("}, rawData={");
 		
+		Map<String, Long> rawData = getRawData();
 		for (Map.Entry<String, Long> entry : rawData.entrySet()) {
 		    sb.append(entry.getKey()).append('=').append(entry.getValue()).append(", ");
 		}
@@ -122,6 +222,7 @@ public class WorkerMetric implements Serializable {
         csvBuilder.append(',');
 
         // Append rawData as key=value pairs separated by semicolons
+        Map<String, Long> rawData = getRawData();
         for (Map.Entry<String, Long> entry : rawData.entrySet()) {
             csvBuilder.append(entry.getKey()).append('=').append(entry.getValue()).append(',');
         }
@@ -0,0 +1,206 @@
+package pt.ulisboa.tecnico.cnv.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary form of WorkerMetric, used wherever metrics are sent or stored
+ * instead of Java serialization.
+ *
+ * A metric is written as:
+ *
+ *   byte VERSION, varlong seq, utf wid, utf uri, varlong bodySize,
+ *   varlong duration, varint mask of the counters present, then a varlong
+ *   per counter present (in Counter order), varint count of parameters
+ *   (utf key, byte type, value), varint count of extra raw data (utf key,
+ *   varlong value)
+ *
+ * Varlongs are zigzag encoded in 7-bit groups, so small counters take a
+ * byte or two. Parameters that are integers are written as varlongs (type
+ * LONG) and read back as their decimal string; anything else is written as
+ * utf (type STRING).
+ *
+ * A list is a varint count followed by the metrics.
+ */
+public class WorkerMetricCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int STRING = 0;
+    private static final int LONG = 1;
+
+    public static void write(DataOutput out, WorkerMetric metric) throws IOException {
+        out.writeByte(VERSION);
+        writeVarLong(out, metric.getSeq());
+        out.writeUTF(metric.getWid() == null ? "" : metric.getWid());
+        out.writeUTF(metric.getUri() == null ? "" : metric.getUri());
+        writeVarLong(out, metric.getBodySize());
+        writeVarLong(out, metric.getDuration());
+
+        int present = metric.getPresent();
+        writeVarLong(out, present);
+        for (WorkerMetric.Counter counter : WorkerMetric.Counter.VALUES) {
+            if ((present & (1 << counter.ordinal())) != 0) {
+                writeVarLong(out, metric.getCounter(counter));
+            }
+        }
+
+        writeVarLong(out, metric.getParameters().size());
+        for (Map.Entry<String, String> entry : metric.getParameters().entrySet()) {
+            out.writeUTF(entry.getKey());
+            String value = entry.getValue() == null ? "" : entry.getValue();
+            Long number = parseLong(value);
+            if (number != null) {
+                out.writeByte(LONG);
+                writeVarLong(out, number);
+            } else {
+                out.writeByte(STRING);
+                out.writeUTF(value);
+            }
+        }
+
+        Map<String, Long> extra = metric.getExtra();
+        writeVarLong(out, extra.size());
+        for (Map.Entry<String, Long> entry : extra.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeVarLong(out, entry.getValue());
+        }
+    }
+
+    public static WorkerMetric read(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("unknown metric version " + version);
+        }
+        long seq = readVarLong(in);
+        String wid = in.readUTF();
+        String uri = in.readUTF();
+        long bodySize = readVarLong(in);
+        long duration = readVarLong(in);
+
+        WorkerMetric metric = new WorkerMetric(seq, wid, uri, new HashMap<>(), new HashMap<>(), bodySize, duration);
+        int present = (int) readVarLong(in);
+        for (WorkerMetric.Counter counter : WorkerMetric.Counter.VALUES) {
+            if ((present & (1 << counter.ordinal())) != 0) {
+                metric.setCounter(counter, readVarLong(in));
+            }
+        }
+
+        for (long i = readVarLong(in); i > 0; i--) {
+            String key = in.readUTF();
+            int type = in.readUnsignedByte();
+            metric.getParameters().put(key, type == LONG ? String.valueOf(readVarLong(in)) : in.readUTF());
+        }
+
+        for (long i = readVarLong(in); i > 0; i--) {
+            metric.putRawData(in.readUTF(), readVarLong(in));
+        }
+        return metric;
+    }
+
+    public static byte[] encode(WorkerMetric metric) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            write(new DataOutputStream(bytes), metric);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // not thrown by in memory streams
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static WorkerMetric decode(byte[] bytes) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Writes the list and flushes the stream (without closing it).
+     */
+    public static void writeList(OutputStream os, List<WorkerMetric> metrics) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        writeVarLong(out, metrics.size());
+        for (WorkerMetric metric : metrics) {
+            write(out, metric);
+        }
+        out.flush();
+    }
+
+    public static List<WorkerMetric> readList(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        long count = readVarLong(in);
+        List<WorkerMetric> metrics = new ArrayList<>();
+        for (long i = 0; i < count; i++) {
+            metrics.add(read(in));
+        }
+        return metrics;
+    }
+
+    /**
+     * Reads metrics written one after the other until the end of the stream.
+     * A metric cut short by the end of the stream is ignored.
+     */
+    public static List<WorkerMetric> readAll(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+        List<WorkerMetric> metrics = new ArrayList<>();
+        while (true) {
+            try {
+                metrics.add(read(in));
+            } catch (EOFException e) {
+                return metrics;
+            }
+        }
+    }
+
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("malformed varlong");
+    }
+
+    // the value as a long if writing it as one reads back the same string
+    private static Long parseLong(String value) {
+        if (value.isEmpty() || value.length() > 19 || (value.length() > 1 && (value.charAt(0) == '0'
+                || value.startsWith("-0"))) || value.equals("-")) {
+            return null;
+        }
+        for (int i = value.charAt(0) == '-' ? 1 : 0; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return null;
+            }
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
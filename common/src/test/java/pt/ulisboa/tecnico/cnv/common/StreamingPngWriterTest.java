@@ -0,0 +1,188 @@
+package pt.ulisboa.tecnico.cnv.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Writes images with StreamingPngWriter and ImageEncoder and checks that
+ * ImageIO decodes them to the same pixels.
+ */
+public class StreamingPngWriterTest {
+
+    private static BufferedImage randomImage(Random random, int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+
+    /**
+     * A smooth gradient, which the filters turn into long runs.
+     */
+    private static BufferedImage gradient(int type, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x & 0xff) << 16 | (y & 0xff) << 8 | ((x + y) & 0xff));
+            }
+        }
+        return image;
+    }
+
+    private static byte[] write(BufferedImage image, int level) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingPngWriter writer = new StreamingPngWriter(out, image.getWidth(), image.getHeight(),
+                StreamingPngWriter.isGray(image), level);
+        writer.write(image);
+        writer.finish();
+        return out.toByteArray();
+    }
+
+    private static void assertSamePixels(BufferedImage expected, byte[] png) throws IOException {
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull("ImageIO could not decode the PNG", actual);
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        boolean gray = StreamingPngWriter.isGray(expected);
+        assertEquals(gray, StreamingPngWriter.isGray(actual));
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                if (gray) {
+                    assertEquals("(" + x + ", " + y + ")",
+                            expected.getRaster().getSample(x, y, 0), actual.getRaster().getSample(x, y, 0));
+                } else {
+                    assertEquals("(" + x + ", " + y + ")",
+                            expected.getRGB(x, y) & 0xffffff, actual.getRGB(x, y) & 0xffffff);
+                }
+            }
+        }
+    }
+
+    private static int countIdat(byte[] png) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+        in.skipBytes(8);
+        int idat = 0;
+        while (in.available() > 0) {
+            int length = in.readInt();
+            byte[] type = new byte[4];
+            in.readFully(type);
+            if (new String(type, "US-ASCII").equals("IDAT")) {
+                idat++;
+            }
+            in.skipBytes(length + 4);
+        }
+        return idat;
+    }
+
+    @Test
+    public void supportedTypes() {
+        assertTrue(StreamingPngWriter.supports(new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY)));
+        assertTrue(StreamingPngWriter.supports(new BufferedImage(1, 1, BufferedImage.TYPE_3BYTE_BGR)));
+        assertTrue(StreamingPngWriter.supports(new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)));
+        assertTrue(StreamingPngWriter.supports(new BufferedImage(1, 1, BufferedImage.TYPE_INT_BGR)));
+        assertFalse(StreamingPngWriter.supports(new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB)));
+        assertFalse(StreamingPngWriter.supports(new BufferedImage(1, 1, BufferedImage.TYPE_USHORT_GRAY)));
+    }
+
+    @Test
+    public void roundTripsEveryType() throws IOException {
+        Random random = new Random(1);
+        int[] types = { BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_3BYTE_BGR,
+                BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR };
+        for (int type : types) {
+            for (int level : new int[] { 0, 1, 6, 9 }) {
+                BufferedImage image = randomImage(random, type, 37, 23);
+                assertSamePixels(image, write(image, level));
+            }
+        }
+    }
+
+    @Test
+    public void singlePixel() throws IOException {
+        BufferedImage image = randomImage(new Random(2), BufferedImage.TYPE_INT_RGB, 1, 1);
+        assertSamePixels(image, write(image, 6));
+    }
+
+    @Test
+    public void largeImageSpansSeveralIdatChunks() throws IOException {
+        // random pixels do not compress, so well over 64 KB of IDAT data
+        BufferedImage image = randomImage(new Random(3), BufferedImage.TYPE_3BYTE_BGR, 300, 200);
+        byte[] png = write(image, 6);
+        assertTrue(countIdat(png) > 1);
+        assertSamePixels(image, png);
+
+        BufferedImage stored = gradient(BufferedImage.TYPE_BYTE_GRAY, 512, 300);
+        png = write(stored, 0);
+        assertTrue(countIdat(png) > 1);
+        assertSamePixels(stored, png);
+    }
+
+    @Test
+    public void rowsWrittenInBands() throws IOException {
+        BufferedImage image = gradient(BufferedImage.TYPE_INT_RGB, 64, 50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StreamingPngWriter writer = new StreamingPngWriter(out, 64, 50, false, 6);
+        // bands of different heights, the way the handlers produce them
+        writer.write(image.getSubimage(0, 0, 64, 17));
+        writer.write(image, 17, 18);
+        writer.write(image.getSubimage(0, 18, 64, 32));
+        writer.finish();
+        assertSamePixels(image, out.toByteArray());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void bandOfTheWrongWidth() throws IOException {
+        StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 10, 10, false, 6);
+        writer.write(new BufferedImage(11, 10, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void moreRowsThanTheHeight() throws IOException {
+        StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 10, 10, false, 6);
+        writer.write(new BufferedImage(10, 6, BufferedImage.TYPE_INT_RGB));
+        writer.write(new BufferedImage(10, 6, BufferedImage.TYPE_INT_RGB));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void finishWithRowsMissing() throws IOException {
+        StreamingPngWriter writer = new StreamingPngWriter(new ByteArrayOutputStream(), 10, 10, true, 6);
+        writer.write(new BufferedImage(10, 9, BufferedImage.TYPE_BYTE_GRAY));
+        writer.finish();
+    }
+
+    @Test
+    public void parallelEncoderMatches() throws IOException {
+        boolean parallel = ImageEncoder.PNG_PARALLEL;
+        ImageEncoder.PNG_PARALLEL = true;
+        try {
+            Random random = new Random(4);
+            int[] types = { BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB };
+            for (int type : types) {
+                for (int height : new int[] { 1, 2, 7, 333 }) {
+                    BufferedImage image = randomImage(random, type, 129, height);
+                    assertSamePixels(image, ImageEncoder.encode(image, "png"));
+                }
+                BufferedImage image = gradient(type, 700, 400);
+                assertSamePixels(image, ImageEncoder.encode(image, "png"));
+            }
+        } finally {
+            ImageEncoder.PNG_PARALLEL = parallel;
+        }
+    }
+}
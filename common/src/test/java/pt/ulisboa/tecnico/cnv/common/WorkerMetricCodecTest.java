@@ -0,0 +1,135 @@
+package pt.ulisboa.tecnico.cnv.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class WorkerMetricCodecTest {
+
+    private static void assertSameMetric(WorkerMetric expected, WorkerMetric actual) {
+        assertEquals(expected.getSeq(), actual.getSeq());
+        assertEquals(expected.getWid(), actual.getWid());
+        assertEquals(expected.getUri(), actual.getUri());
+        assertEquals(expected.getParameters(), actual.getParameters());
+        assertEquals(expected.getRawData(), actual.getRawData());
+        assertEquals(expected.getBodySize(), actual.getBodySize());
+        assertEquals(expected.getDuration(), actual.getDuration());
+        for (WorkerMetric.Counter counter : WorkerMetric.Counter.VALUES) {
+            assertEquals(expected.hasCounter(counter), actual.hasCounter(counter));
+        }
+    }
+
+    private static WorkerMetric randomMetric(Random random) {
+        Map<String, String> parameters = new HashMap<>();
+        String[] values = { "box", "0", "-1", "007", "-0", "-", "", "12345678901234567890",
+                String.valueOf(Long.MAX_VALUE), String.valueOf(Long.MIN_VALUE), "1e3", "+5", "\u00f1" };
+        for (int i = random.nextInt(4); i > 0; i--) {
+            parameters.put("p" + i, values[random.nextInt(values.length)]);
+        }
+        Map<String, Long> rawData = new HashMap<>();
+        for (WorkerMetric.Counter counter : WorkerMetric.Counter.VALUES) {
+            if (random.nextBoolean()) {
+                rawData.put(counter.getKey(), random.nextLong() >> random.nextInt(64));
+            }
+        }
+        for (int i = random.nextInt(3); i > 0; i--) {
+            rawData.put("extra" + i, random.nextLong() >> random.nextInt(64));
+        }
+        return new WorkerMetric(random.nextLong() >>> 1, "i-" + random.nextInt(1000), "/raytracer?wcols=" + random.nextInt(),
+                parameters, rawData, random.nextInt(1 << 20), random.nextLong() >>> random.nextInt(64));
+    }
+
+    @Test
+    public void roundTripsRandomMetrics() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            WorkerMetric metric = randomMetric(random);
+            assertSameMetric(metric, WorkerMetricCodec.decode(WorkerMetricCodec.encode(metric)));
+        }
+    }
+
+    @Test
+    public void keepsParametersThatLookLikeNumbersAsWritten() throws IOException {
+        for (String value : Arrays.asList("007", "-0", "+5", "-", "", "1e3", "99999999999999999999", "42", "-42")) {
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put("value", value);
+            WorkerMetric metric = new WorkerMetric(1, "w", "/", parameters, new HashMap<>(), 0, 0);
+            assertEquals(value, WorkerMetricCodec.decode(WorkerMetricCodec.encode(metric)).getParameters().get("value"));
+        }
+    }
+
+    @Test
+    public void keepsWhichCountersWereReported() throws IOException {
+        Map<String, Long> rawData = new HashMap<>();
+        rawData.put("ninsts", 0L);
+        WorkerMetric metric = new WorkerMetric(1, "w", "/", new HashMap<>(), rawData, 0, 0);
+
+        WorkerMetric decoded = WorkerMetricCodec.decode(WorkerMetricCodec.encode(metric));
+        assertTrue(decoded.hasCounter(WorkerMetric.Counter.NINSTS));
+        assertFalse(decoded.hasCounter(WorkerMetric.Counter.NBLOCKS));
+    }
+
+    @Test
+    public void roundTripsVarLongs() throws IOException {
+        long[] values = { 0, 1, -1, 63, -64, 64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (long value : values) {
+            WorkerMetricCodec.writeVarLong(out, value);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (long value : values) {
+            assertEquals(value, WorkerMetricCodec.readVarLong(in));
+        }
+    }
+
+    @Test
+    public void roundTripsLists() throws IOException {
+        Random random = new Random(7);
+        List<WorkerMetric> metrics = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            metrics.add(randomMetric(random));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WorkerMetricCodec.writeList(bytes, metrics);
+
+        List<WorkerMetric> read = WorkerMetricCodec.readList(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(metrics.size(), read.size());
+        for (int i = 0; i < metrics.size(); i++) {
+            assertSameMetric(metrics.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void readAllSkipsAMetricCutShort() throws IOException {
+        Random random = new Random(3);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        List<WorkerMetric> metrics = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            WorkerMetric metric = randomMetric(random);
+            metrics.add(metric);
+            bytes.write(WorkerMetricCodec.encode(metric));
+        }
+        byte[] all = bytes.toByteArray();
+
+        List<WorkerMetric> read = WorkerMetricCodec.readAll(new ByteArrayInputStream(Arrays.copyOf(all, all.length - 1)));
+        assertEquals(metrics.size() - 1, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            assertSameMetric(metrics.get(i), read.get(i));
+        }
+    }
+}
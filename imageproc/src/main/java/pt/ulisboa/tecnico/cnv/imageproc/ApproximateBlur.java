@@ -0,0 +1,229 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * Cheaper approximations of the radius-32 Gaussian used by BlurImage.
+ *
+ * Both work on interleaved 3-byte pixels (see FastGaussianBlur) and return a
+ * TYPE_3BYTE_BGR image.
+ */
+public class ApproximateBlur {
+
+    // box radii whose three stacked passes give a variance close to sigma = 13
+    private static final int[] BOX_RADII = { 12, 12, 13 };
+
+    // downscale factor used by the pyramid approximation
+    private static final int PYRAMID_FACTOR = 4;
+
+    // rows a band needs above and below to come out as on the whole image:
+    // the three box radii stacked
+    public static final int BOX_HALO = 12 + 12 + 13;
+
+    // the small image blur radius, plus one small row for the bilinear
+    // upscale and one for a partial block at the band edge, in full rows
+    public static final int PYRAMID_HALO = (BlurImageHandler.RADIUS / PYRAMID_FACTOR + 2) * PYRAMID_FACTOR;
+
+    private static final FastGaussianBlur pyramidBlur = new FastGaussianBlur(BlurImageHandler.RADIUS / PYRAMID_FACTOR);
+
+    /**
+     * Three stacked box blurs, each O(1) per pixel thanks to running sums.
+     */
+    public static BufferedImage box(BufferedImage bi) {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+
+        BufferedImage out = toBgr(bi);
+        byte[] data = ((DataBufferByte) out.getRaster().getDataBuffer()).getData();
+        byte[] tmp = new byte[data.length];
+        int[] sums = new int[width * 3];
+
+        for (int radius : BOX_RADII) {
+            boxHorizontal(data, tmp, width, height, radius);
+            boxVertical(tmp, data, sums, width, height, radius);
+        }
+        return out;
+    }
+
+    /**
+     * Downscales by PYRAMID_FACTOR (area average), blurs with a proportionally
+     * smaller Gaussian and upscales back with bilinear interpolation.
+     */
+    public static BufferedImage pyramid(BufferedImage bi) {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        int smallWidth = (width + PYRAMID_FACTOR - 1) / PYRAMID_FACTOR;
+        int smallHeight = (height + PYRAMID_FACTOR - 1) / PYRAMID_FACTOR;
+
+        BufferedImage bgr = toBgr(bi);
+        byte[] src = ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData();
+
+        BufferedImage small = ImageBufferPool.borrowImage(smallWidth, smallHeight, BufferedImage.TYPE_3BYTE_BGR);
+        downscale(src, width, height, ((DataBufferByte) small.getRaster().getDataBuffer()).getData(), smallWidth, smallHeight);
+
+        BufferedImage blurred = pyramidBlur.process(small);
+
+        BufferedImage out = ImageBufferPool.borrowImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        upscale(((DataBufferByte) blurred.getRaster().getDataBuffer()).getData(), smallWidth, smallHeight,
+                ((DataBufferByte) out.getRaster().getDataBuffer()).getData(), width, height);
+        ImageBufferPool.release(bgr);
+        ImageBufferPool.release(small);
+        ImageBufferPool.release(blurred);
+        return out;
+    }
+
+    /**
+     * Copy of bi as a TYPE_3BYTE_BGR image (the box blur works in place),
+     * borrowed from ImageBufferPool.
+     */
+    private static BufferedImage toBgr(BufferedImage bi) {
+        BufferedImage out = ImageBufferPool.borrowImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics graphics = out.getGraphics();
+        if (bi.getColorModel().hasAlpha()) {
+            // translucent pixels are drawn over black, as on a fresh image
+            graphics.setColor(Color.BLACK);
+            graphics.fillRect(0, 0, bi.getWidth(), bi.getHeight());
+        }
+        graphics.drawImage(bi, 0, 0, null);
+        return out;
+    }
+
+    private static void boxHorizontal(byte[] src, byte[] dst, int width, int height, int radius) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width * 3;
+            int s0 = 0, s1 = 0, s2 = 0;
+            int count = 0;
+
+            // prime the window with columns [0, radius)
+            for (int x = 0; x < Math.min(radius, width); x++) {
+                int p = row + x * 3;
+                s0 += src[p] & 0xFF;
+                s1 += src[p + 1] & 0xFF;
+                s2 += src[p + 2] & 0xFF;
+                count++;
+            }
+
+            for (int x = 0; x < width; x++) {
+                int enter = x + radius;
+                if (enter < width) {
+                    int p = row + enter * 3;
+                    s0 += src[p] & 0xFF;
+                    s1 += src[p + 1] & 0xFF;
+                    s2 += src[p + 2] & 0xFF;
+                    count++;
+                }
+                int leave = x - radius - 1;
+                if (leave >= 0) {
+                    int p = row + leave * 3;
+                    s0 -= src[p] & 0xFF;
+                    s1 -= src[p + 1] & 0xFF;
+                    s2 -= src[p + 2] & 0xFF;
+                    count--;
+                }
+
+                int q = row + x * 3;
+                int half = count / 2;
+                dst[q] = (byte) ((s0 + half) / count);
+                dst[q + 1] = (byte) ((s1 + half) / count);
+                dst[q + 2] = (byte) ((s2 + half) / count);
+            }
+        }
+    }
+
+    private static void boxVertical(byte[] src, byte[] dst, int[] sums, int width, int height, int radius) {
+        int rowLength = width * 3;
+        int count = 0;
+
+        for (int i = 0; i < rowLength; i++) {
+            sums[i] = 0;
+        }
+        for (int y = 0; y < Math.min(radius, height); y++) {
+            int row = y * rowLength;
+            for (int i = 0; i < rowLength; i++) {
+                sums[i] += src[row + i] & 0xFF;
+            }
+            count++;
+        }
+
+        for (int y = 0; y < height; y++) {
+            int enter = y + radius;
+            if (enter < height) {
+                int row = enter * rowLength;
+                for (int i = 0; i < rowLength; i++) {
+                    sums[i] += src[row + i] & 0xFF;
+                }
+                count++;
+            }
+            int leave = y - radius - 1;
+            if (leave >= 0) {
+                int row = leave * rowLength;
+                for (int i = 0; i < rowLength; i++) {
+                    sums[i] -= src[row + i] & 0xFF;
+                }
+                count--;
+            }
+
+            int out = y * rowLength;
+            int half = count / 2;
+            for (int i = 0; i < rowLength; i++) {
+                dst[out + i] = (byte) ((sums[i] + half) / count);
+            }
+        }
+    }
+
+    private static void downscale(byte[] src, int width, int height, byte[] dst, int smallWidth, int smallHeight) {
+        for (int sy = 0; sy < smallHeight; sy++) {
+            int y0 = sy * PYRAMID_FACTOR;
+            int y1 = Math.min(height, y0 + PYRAMID_FACTOR);
+            for (int sx = 0; sx < smallWidth; sx++) {
+                int x0 = sx * PYRAMID_FACTOR;
+                int x1 = Math.min(width, x0 + PYRAMID_FACTOR);
+                int s0 = 0, s1 = 0, s2 = 0;
+                for (int y = y0; y < y1; y++) {
+                    int p = (y * width + x0) * 3;
+                    for (int x = x0; x < x1; x++) {
+                        s0 += src[p++] & 0xFF;
+                        s1 += src[p++] & 0xFF;
+                        s2 += src[p++] & 0xFF;
+                    }
+                }
+                int count = (y1 - y0) * (x1 - x0);
+                int q = (sy * smallWidth + sx) * 3;
+                dst[q] = (byte) ((s0 + count / 2) / count);
+                dst[q + 1] = (byte) ((s1 + count / 2) / count);
+                dst[q + 2] = (byte) ((s2 + count / 2) / count);
+            }
+        }
+    }
+
+    private static void upscale(byte[] src, int smallWidth, int smallHeight, byte[] dst, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            // map pixel centers back into the small image
+            double fy = Math.max(0, Math.min(smallHeight - 1, (y + 0.5) / PYRAMID_FACTOR - 0.5));
+            int y0 = (int) fy;
+            int y1 = Math.min(smallHeight - 1, y0 + 1);
+            int wy = (int) ((fy - y0) * 256);
+
+            for (int x = 0; x < width; x++) {
+                double fx = Math.max(0, Math.min(smallWidth - 1, (x + 0.5) / PYRAMID_FACTOR - 0.5));
+                int x0 = (int) fx;
+                int x1 = Math.min(smallWidth - 1, x0 + 1);
+                int wx = (int) ((fx - x0) * 256);
+
+                int p00 = (y0 * smallWidth + x0) * 3;
+                int p01 = (y0 * smallWidth + x1) * 3;
+                int p10 = (y1 * smallWidth + x0) * 3;
+                int p11 = (y1 * smallWidth + x1) * 3;
+                int q = (y * width + x) * 3;
+                for (int c = 0; c < 3; c++) {
+                    int top = (src[p00 + c] & 0xFF) * (256 - wx) + (src[p01 + c] & 0xFF) * wx;
+                    int bottom = (src[p10 + c] & 0xFF) * (256 - wx) + (src[p11 + c] & 0xFF) * wx;
+                    dst[q + c] = (byte) ((top * (256 - wy) + bottom * wy + (1 << 15)) >> 16);
+                }
+            }
+        }
+    }
+}
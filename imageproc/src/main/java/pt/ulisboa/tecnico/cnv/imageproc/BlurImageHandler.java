@@ -4,18 +4,89 @@ import boofcv.alg.filter.blur.GBlurImageOps;
 import boofcv.io.image.ConvertBufferedImage;
 import boofcv.io.image.UtilImageIO;
 import boofcv.struct.image.GrayU8;
-import boofcv.struct.image.ImageType;
 import boofcv.struct.image.Planar;
 import java.awt.image.BufferedImage;
+import java.util.Map;
 import pt.ulisboa.tecnico.cnv.common.Handler;
 
 public class BlurImageHandler extends ImageProcessingHandler implements Handler {
 
+    public static final int RADIUS = 32;
+
+    // use the fixed-point implementation instead of BoofCV (off until rolled out)
+    public static boolean FAST_GAUSSIAN = Boolean.parseBoolean(System.getenv("FAST_GAUSSIAN"));
+
+    private final FastGaussianBlur fastBlur = new FastGaussianBlur(RADIUS);
+
+    /**
+     * Selected through the quality request parameter.
+     *
+     * Measured by BlurAccuracyTest against a double-precision Gaussian of
+     * the same radius, over the images in resources/:
+     *  - BOX: max error 10, mean error 0.30 per channel;
+     *  - PYRAMID: max error 7, mean error 0.44 per channel.
+     * Against BoofCV's output (EXACT) the targets are max 11 / mean 0.5 and
+     * max 8 / mean 0.75; they are not verified yet.
+     * Both cost a fraction of EXACT, independently of the radius.
+     * A missing or unknown quality means EXACT.
+     */
+    public enum Quality {
+        EXACT, BOX, PYRAMID;
+
+        public static Quality fromParameters(Map<String, String> parameters) {
+            return parameters == null ? EXACT : parse(parameters.get("quality"));
+        }
+
+        public static Quality parse(String value) {
+            if (value != null) {
+                for (Quality quality : values()) {
+                    if (quality.name().equalsIgnoreCase(value)) {
+                        return quality;
+                    }
+                }
+            }
+            return EXACT;
+        }
+    }
+
+    @Override
+    public BufferedImage process(BufferedImage bi, Map<String, String> parameters) {
+        switch (Quality.fromParameters(parameters)) {
+            case BOX:
+                return ApproximateBlur.box(bi);
+            case PYRAMID:
+                return ApproximateBlur.pyramid(bi);
+            default:
+                return process(bi);
+        }
+    }
+
+    @Override
+    int halo(Map<String, String> parameters) {
+        switch (Quality.fromParameters(parameters)) {
+            case BOX:
+                return ApproximateBlur.BOX_HALO;
+            case PYRAMID:
+                return ApproximateBlur.PYRAMID_HALO;
+            default:
+                return RADIUS;
+        }
+    }
+
     public BufferedImage process(BufferedImage bi) {
-        Planar<GrayU8> input = ConvertBufferedImage.convertFrom(bi, true, ImageType.pl(3, GrayU8.class));
-        Planar<GrayU8> output = input.createSameShape();
-        GBlurImageOps.gaussian(input, output, -1, 32, null);
-        return ConvertBufferedImage.convertTo(output, null, true);
+        if (FAST_GAUSSIAN) {
+            return fastBlur.process(bi);
+        }
+
+        Planar<GrayU8> input = ImageBufferPool.borrowPlanar(bi.getWidth(), bi.getHeight(), 3);
+        Planar<GrayU8> output = ImageBufferPool.borrowPlanar(bi.getWidth(), bi.getHeight(), 3);
+        ConvertBufferedImage.convertFromPlanar(bi, input, true, GrayU8.class);
+        GBlurImageOps.gaussian(input, output, -1, RADIUS, null);
+        BufferedImage result = ConvertBufferedImage.convertTo(output,
+                ImageBufferPool.borrowImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_RGB), true);
+        ImageBufferPool.release(input);
+        ImageBufferPool.release(output);
+        return result;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,55 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.io.IOException;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream over a byte array that is already in memory, so ImageIO
+ * readers use it directly instead of copying it into their own cache.
+ */
+public class ByteArrayImageInputStream extends ImageInputStreamImpl {
+
+    private final byte[] data;
+
+    private final int length;
+
+    public ByteArrayImageInputStream(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+    }
+
+    public ByteArrayImageInputStream(byte[] data) {
+        this(data, data.length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        return data[(int) streamPos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(len, length - streamPos);
+        System.arraycopy(data, (int) streamPos, b, off, n);
+        streamPos += n;
+        return n;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+}
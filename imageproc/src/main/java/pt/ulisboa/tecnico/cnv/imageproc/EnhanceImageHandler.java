@@ -5,15 +5,40 @@ import boofcv.io.image.ConvertBufferedImage;
 import boofcv.io.image.UtilImageIO;
 import boofcv.struct.image.GrayU8;
 import java.awt.image.BufferedImage;
+import java.util.Map;
 import pt.ulisboa.tecnico.cnv.common.Handler;
 
 public class EnhanceImageHandler extends ImageProcessingHandler implements Handler {
 
+    public static final int RADIUS = 50;
+
+    // use the sliding histogram implementation instead of BoofCV (off until rolled out)
+    public static boolean FAST_EQUALIZE = Boolean.parseBoolean(System.getenv("FAST_EQUALIZE"));
+
+    private final LocalHistogramEqualizer equalizer = new LocalHistogramEqualizer(RADIUS);
+
+    /**
+     * Windows are moved inside the image near its borders, so a row can
+     * depend on rows up to 2 * RADIUS away.
+     */
+    @Override
+    int halo(Map<String, String> parameters) {
+        return 2 * RADIUS;
+    }
+
     public BufferedImage process(BufferedImage bi) {
-        GrayU8 gray = ConvertBufferedImage.convertFrom(bi, (GrayU8)null);
-        GrayU8 adjusted = gray.createSameShape();
-        EnhanceImageOps.equalizeLocal(gray, 50, adjusted, 256, null);
-        return ConvertBufferedImage.convertTo(adjusted, null);
+        GrayU8 gray = ConvertBufferedImage.convertFrom(bi, ImageBufferPool.borrowGray(bi.getWidth(), bi.getHeight()));
+        GrayU8 adjusted = ImageBufferPool.borrowGray(bi.getWidth(), bi.getHeight());
+        if (FAST_EQUALIZE) {
+            equalizer.process(gray, adjusted);
+        } else {
+            EnhanceImageOps.equalizeLocal(gray, RADIUS, adjusted, 256, null);
+        }
+        BufferedImage result = ConvertBufferedImage.convertTo(adjusted,
+                ImageBufferPool.borrowImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_BYTE_GRAY));
+        ImageBufferPool.release(gray);
+        ImageBufferPool.release(adjusted);
+        return result;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,287 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import boofcv.alg.filter.blur.GBlurImageOps;
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.io.image.UtilImageIO;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.ImageType;
+import boofcv.struct.image.Planar;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * Separable Gaussian blur over interleaved 8-bit RGB pixels.
+ *
+ * Mirrors what GBlurImageOps.gaussian does for a Planar<GrayU8> (horizontal
+ * pass, rounding to 8 bits, vertical pass, kernel renormalized at the
+ * borders), but:
+ *  - weights are fixed-point integers that sum to 2^SHIFT, so the interior
+ *    only needs integer multiply-adds and a shift;
+ *  - the three bands are processed together in a single pass over the
+ *    interleaved pixels instead of once per band;
+ *  - the intermediate image and the accumulation row are kept in a per-thread
+ *    workspace that is reused across requests.
+ *
+ * The interior loops are written as plain "acc[i] += w * row[i]" sweeps over
+ * contiguous arrays, which is the shape C2 auto-vectorizes into SIMD lanes.
+ *
+ * Output is within 1 per channel of an exact Gaussian (see FastGaussianBlurTest).
+ */
+public class FastGaussianBlur {
+
+    // fixed-point precision of the kernel weights
+    private static final int SHIFT = 16;
+
+    private static final int HALF = 1 << (SHIFT - 1);
+
+    private static final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
+    /**
+     * Buffers reused by all requests handled by the same thread.
+     * They only ever grow.
+     */
+    private static class Workspace {
+        // result of the horizontal pass, interleaved
+        byte[] tmp = new byte[0];
+
+        // accumulation row, interleaved
+        int[] acc = new int[0];
+
+        // input pixels, when the image is not already 3-byte interleaved
+        byte[] src = new byte[0];
+
+        // one row of packed pixels, used to unpack non-byte images
+        int[] argb = new int[0];
+
+        void ensure(int pixels, int width) {
+            if (tmp.length < pixels * 3) {
+                tmp = new byte[pixels * 3];
+            }
+            if (acc.length < width * 3) {
+                acc = new int[width * 3];
+                argb = new int[width];
+            }
+        }
+    }
+
+    private final int radius;
+
+    private final int[] kernel;
+
+    public FastGaussianBlur(int radius) {
+        this.radius = radius;
+        this.kernel = createKernel(radius);
+    }
+
+    /**
+     * Same sigma BoofCV picks when it is asked for a given radius and
+     * sigma = -1 (FactoryKernelGaussian.sigmaForRadius).
+     */
+    private static double sigmaForRadius(int radius) {
+        return (radius * 2.0 + 1.0) / 5.0;
+    }
+
+    private static int[] createKernel(int radius) {
+        double sigma = sigmaForRadius(radius);
+        int width = 2 * radius + 1;
+        double[] gauss = new double[width];
+        double sum = 0;
+        for (int i = 0; i < width; i++) {
+            int x = i - radius;
+            gauss[i] = Math.exp(-(x * x) / (2.0 * sigma * sigma));
+            sum += gauss[i];
+        }
+
+        int[] kernel = new int[width];
+        int total = 0;
+        for (int i = 0; i < width; i++) {
+            kernel[i] = (int) Math.round(gauss[i] / sum * (1 << SHIFT));
+            total += kernel[i];
+        }
+
+        // push the rounding error into the center so that weights sum exactly to 2^SHIFT
+        kernel[radius] += (1 << SHIFT) - total;
+        return kernel;
+    }
+
+    public BufferedImage process(BufferedImage bi) {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+
+        Workspace ws = workspaces.get();
+        ws.ensure(width * height, width);
+
+        byte[] src = interleaved(bi, ws);
+        BufferedImage out = ImageBufferPool.borrowImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        byte[] dst = ((DataBufferByte) out.getRaster().getDataBuffer()).getData();
+
+        horizontal(src, ws.tmp, ws.acc, width, height);
+        vertical(ws.tmp, dst, ws.acc, width, height);
+        return out;
+    }
+
+    /**
+     * Returns the pixels of bi as interleaved 3-byte samples. Images decoded
+     * as TYPE_3BYTE_BGR (the usual case for JPEG) are used in place.
+     */
+    private static byte[] interleaved(BufferedImage bi, Workspace ws) {
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+
+        if (bi.getType() == BufferedImage.TYPE_3BYTE_BGR && bi.getRaster().getParent() == null) {
+            byte[] data = ((DataBufferByte) bi.getRaster().getDataBuffer()).getData();
+            if (data.length == width * height * 3) {
+                return data;
+            }
+        }
+
+        if (ws.src.length < width * height * 3) {
+            ws.src = new byte[width * height * 3];
+        }
+        byte[] src = ws.src;
+        int[] argb = ws.argb;
+        for (int y = 0; y < height; y++) {
+            bi.getRGB(0, y, width, 1, argb, 0, width);
+            int p = y * width * 3;
+            for (int x = 0; x < width; x++) {
+                int rgb = argb[x];
+                src[p++] = (byte) rgb;
+                src[p++] = (byte) (rgb >> 8);
+                src[p++] = (byte) (rgb >> 16);
+            }
+        }
+        return src;
+    }
+
+    private void horizontal(byte[] src, byte[] dst, int[] acc, int width, int height) {
+        int rowLength = width * 3;
+        // columns whose window fits entirely inside the row
+        int x0 = Math.min(radius, width);
+        int x1 = Math.max(x0, width - radius);
+
+        for (int y = 0; y < height; y++) {
+            int row = y * rowLength;
+
+            if (x1 > x0) {
+                int from = x0 * 3;
+                int to = x1 * 3;
+                for (int i = from; i < to; i++) {
+                    acc[i] = HALF;
+                }
+                for (int k = 0; k < kernel.length; k++) {
+                    int w = kernel[k];
+                    int shift = row + (k - radius) * 3;
+                    for (int i = from; i < to; i++) {
+                        acc[i] += w * (src[shift + i] & 0xFF);
+                    }
+                }
+                for (int i = from; i < to; i++) {
+                    dst[row + i] = (byte) (acc[i] >>> SHIFT);
+                }
+            }
+
+            for (int x = 0; x < x0; x++) {
+                horizontalBorder(src, dst, row, x, width);
+            }
+            for (int x = x1; x < width; x++) {
+                horizontalBorder(src, dst, row, x, width);
+            }
+        }
+    }
+
+    private void horizontalBorder(byte[] src, byte[] dst, int row, int x, int width) {
+        int kStart = Math.max(0, radius - x);
+        int kEnd = Math.min(kernel.length, width - x + radius);
+        int a0 = 0, a1 = 0, a2 = 0, div = 0;
+        int p = row + (x - radius + kStart) * 3;
+        for (int k = kStart; k < kEnd; k++) {
+            int w = kernel[k];
+            a0 += w * (src[p] & 0xFF);
+            a1 += w * (src[p + 1] & 0xFF);
+            a2 += w * (src[p + 2] & 0xFF);
+            div += w;
+            p += 3;
+        }
+        int q = row + x * 3;
+        dst[q] = (byte) ((a0 + div / 2) / div);
+        dst[q + 1] = (byte) ((a1 + div / 2) / div);
+        dst[q + 2] = (byte) ((a2 + div / 2) / div);
+    }
+
+    private void vertical(byte[] src, byte[] dst, int[] acc, int width, int height) {
+        int rowLength = width * 3;
+
+        for (int y = 0; y < height; y++) {
+            int kStart = Math.max(0, radius - y);
+            int kEnd = Math.min(kernel.length, height - y + radius);
+            boolean border = kStart > 0 || kEnd < kernel.length;
+
+            int div = 0;
+            for (int k = kStart; k < kEnd; k++) {
+                div += kernel[k];
+            }
+
+            int init = border ? div / 2 : HALF;
+            for (int i = 0; i < rowLength; i++) {
+                acc[i] = init;
+            }
+            for (int k = kStart; k < kEnd; k++) {
+                int w = kernel[k];
+                int row = (y + k - radius) * rowLength;
+                for (int i = 0; i < rowLength; i++) {
+                    acc[i] += w * (src[row + i] & 0xFF);
+                }
+            }
+
+            int out = y * rowLength;
+            if (border) {
+                for (int i = 0; i < rowLength; i++) {
+                    dst[out + i] = (byte) (acc[i] / div);
+                }
+            } else {
+                for (int i = 0; i < rowLength; i++) {
+                    dst[out + i] = (byte) (acc[i] >>> SHIFT);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs both the BoofCV and the fixed-point implementation on an image
+     * and reports the largest per-channel difference between them.
+     */
+    public static void main(String[] args) {
+
+        if (args.length != 1) {
+            System.err.println("Syntax FastGaussianBlur <input image path>");
+            return;
+        }
+
+        BufferedImage input = UtilImageIO.loadImageNotNull(args[0]);
+
+        Planar<GrayU8> planar = ConvertBufferedImage.convertFrom(input, true, ImageType.pl(3, GrayU8.class));
+        Planar<GrayU8> blurred = planar.createSameShape();
+        long start = System.nanoTime();
+        GBlurImageOps.gaussian(planar, blurred, -1, BlurImageHandler.RADIUS, null);
+        long boofTime = System.nanoTime() - start;
+        BufferedImage expected = ConvertBufferedImage.convertTo(blurred, null, true);
+
+        start = System.nanoTime();
+        BufferedImage actual = new FastGaussianBlur(BlurImageHandler.RADIUS).process(input);
+        long fastTime = System.nanoTime() - start;
+
+        int maxDiff = 0;
+        for (int y = 0; y < input.getHeight(); y++) {
+            for (int x = 0; x < input.getWidth(); x++) {
+                int e = expected.getRGB(x, y);
+                int a = actual.getRGB(x, y);
+                for (int shift = 0; shift < 24; shift += 8) {
+                    maxDiff = Math.max(maxDiff, Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF)));
+                }
+            }
+        }
+
+        System.out.printf("boofcv: %d ms, fixed-point: %d ms, max difference per channel: %d\n",
+                boofTime / 1000000, fastTime / 1000000, maxDiff);
+    }
+}
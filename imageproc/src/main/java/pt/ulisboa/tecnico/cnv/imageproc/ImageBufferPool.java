@@ -0,0 +1,253 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * Pool of image planes and BufferedImages reused across requests, so that a
+ * burst of large images does not keep promoting fresh multi-megabyte arrays
+ * to the old generation.
+ *
+ * Planes are grouped in size classes (powers of two of the pixel count) and
+ * reshaped on borrow, so any image up to the class capacity can reuse them.
+ * BufferedImages cannot be reshaped and are pooled by exact size and type.
+ *
+ * Only buffers handed out by the pool are taken back, once per borrow:
+ * releasing an image the pool did not lend, or releasing it twice (e.g. when
+ * a handler returns its input), does nothing.
+ *
+ * Idle buffers are bounded by BUDGET_BYTES; buffers released when the pool is
+ * full are left to the garbage collector. Hits and misses are counted in
+ * total (getTotals) and for the calling thread since its last resetStats
+ * (getStats), which the web server calls around each request.
+ */
+public class ImageBufferPool {
+
+    // maximum bytes held by idle buffers
+    public static long BUDGET_BYTES = System.getenv("IMAGE_POOL_BYTES") == null
+            ? Runtime.getRuntime().maxMemory() / 4 : Long.parseLong(System.getenv("IMAGE_POOL_BYTES"));
+
+    private static final Map<Integer, ArrayDeque<GrayU8>> grays = new HashMap<>();
+
+    // keyed by size class and number of bands
+    private static final Map<Long, ArrayDeque<Planar<GrayU8>>> planars = new HashMap<>();
+
+    // keyed by width, height and type
+    private static final Map<String, ArrayDeque<BufferedImage>> images = new HashMap<>();
+
+    // buffers borrowed and not yet released; weak, so that buffers that are
+    // never released (e.g. on errors) can still be collected. The image
+    // classes do not override equals, so this is an identity set.
+    private static final Set<Object> lent = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private static long pooledBytes = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong drops = new AtomicLong();
+
+    // hits and misses of the current thread since the last resetStats
+    private static final ThreadLocal<long[]> threadStats = ThreadLocal.withInitial(() -> new long[2]);
+
+    /**
+     * Smallest power of two that holds the given number of pixels.
+     */
+    private static int sizeClass(long pixels) {
+        return 64 - Long.numberOfLeadingZeros(Math.max(1, pixels) - 1);
+    }
+
+    public static GrayU8 borrowGray(int width, int height) {
+        int sizeClass = sizeClass((long) width * height);
+        GrayU8 gray;
+        synchronized (ImageBufferPool.class) {
+            gray = poll(grays.get(sizeClass), (long) 1 << sizeClass);
+        }
+        if (gray == null) {
+            gray = new GrayU8(1, 1);
+            gray.data = new byte[1 << sizeClass];
+        }
+        gray.reshape(width, height);
+        lend(gray);
+        return gray;
+    }
+
+    public static void release(GrayU8 gray) {
+        int sizeClass = sizeClass(gray.data.length);
+        if (gray.data.length != 1 << sizeClass) {
+            return;
+        }
+        synchronized (ImageBufferPool.class) {
+            if (!lent.remove(gray)) {
+                return;
+            }
+            offer(grays.computeIfAbsent(sizeClass, k -> new ArrayDeque<>()), gray, gray.data.length);
+        }
+    }
+
+    public static Planar<GrayU8> borrowPlanar(int width, int height, int bands) {
+        int sizeClass = sizeClass((long) width * height);
+        long key = (long) sizeClass << 8 | bands;
+        Planar<GrayU8> planar;
+        synchronized (ImageBufferPool.class) {
+            planar = poll(planars.get(key), ((long) 1 << sizeClass) * bands);
+        }
+        if (planar == null) {
+            planar = new Planar<>(GrayU8.class, 1, 1, bands);
+            for (int i = 0; i < bands; i++) {
+                planar.getBand(i).data = new byte[1 << sizeClass];
+            }
+        }
+        planar.reshape(width, height);
+        lend(planar);
+        return planar;
+    }
+
+    public static void release(Planar<GrayU8> planar) {
+        int capacity = planar.getBand(0).data.length;
+        int sizeClass = sizeClass(capacity);
+        if (capacity != 1 << sizeClass) {
+            return;
+        }
+        long key = (long) sizeClass << 8 | planar.getNumBands();
+        synchronized (ImageBufferPool.class) {
+            if (!lent.remove(planar)) {
+                return;
+            }
+            offer(planars.computeIfAbsent(key, k -> new ArrayDeque<>()), planar, (long) capacity * planar.getNumBands());
+        }
+    }
+
+    public static BufferedImage borrowImage(int width, int height, int type) {
+        BufferedImage image;
+        synchronized (ImageBufferPool.class) {
+            image = poll(images.get(width + "x" + height + ":" + type), bytes(width, height, type));
+        }
+        if (image == null) {
+            image = new BufferedImage(width, height, type);
+        }
+        lend(image);
+        return image;
+    }
+
+    /**
+     * Returns an image to the pool, if it was borrowed from it (including
+     * images decoded with read) and not released since. Other images are
+     * ignored, so any image that is no longer referenced can be passed.
+     */
+    public static void release(BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+        String key = image.getWidth() + "x" + image.getHeight() + ":" + image.getType();
+        synchronized (ImageBufferPool.class) {
+            if (!lent.remove(image)) {
+                return;
+            }
+            offer(images.computeIfAbsent(key, k -> new ArrayDeque<>()), image,
+                    bytes(image.getWidth(), image.getHeight(), image.getType()));
+        }
+    }
+
+    /**
+     * Decodes the first image of reader (or the source region set in param)
+     * into a pooled image, when the reader decodes to a standard image type.
+     */
+    public static BufferedImage read(ImageReader reader, ImageReadParam param) throws IOException {
+        Rectangle region = param.getSourceRegion();
+        int width = region == null ? reader.getWidth(0) : region.width;
+        int height = region == null ? reader.getHeight(0) : region.height;
+
+        Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (types.hasNext()) {
+            int type = types.next().getBufferedImageType();
+            if (type != BufferedImage.TYPE_CUSTOM) {
+                param.setDestination(borrowImage(width, height, type));
+            }
+        }
+        return reader.read(0, param);
+    }
+
+    private static long bytes(int width, int height, int type) {
+        switch (type) {
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return (long) width * height;
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return (long) width * height * 3;
+            default:
+                return (long) width * height * 4;
+        }
+    }
+
+    private static synchronized void lend(Object buffer) {
+        lent.add(buffer);
+    }
+
+    private static <T> T poll(ArrayDeque<T> queue, long bytes) {
+        T item = queue == null ? null : queue.poll();
+        long[] stats = threadStats.get();
+        if (item == null) {
+            misses.incrementAndGet();
+            stats[1]++;
+        } else {
+            pooledBytes -= bytes;
+            hits.incrementAndGet();
+            stats[0]++;
+        }
+        return item;
+    }
+
+    private static <T> void offer(ArrayDeque<T> queue, T item, long bytes) {
+        if (pooledBytes + bytes > BUDGET_BYTES) {
+            drops.incrementAndGet();
+            return;
+        }
+        queue.push(item);
+        pooledBytes += bytes;
+    }
+
+    /**
+     * Zeros the hit/miss counters of the current thread.
+     */
+    public static void resetStats() {
+        long[] stats = threadStats.get();
+        stats[0] = 0;
+        stats[1] = 0;
+    }
+
+    /**
+     * Hits and misses of the current thread since the last resetStats.
+     */
+    public static Map<String, Long> getStats() {
+        long[] stats = threadStats.get();
+        Map<String, Long> map = new HashMap<>();
+        map.put("poolHits", stats[0]);
+        map.put("poolMisses", stats[1]);
+        return map;
+    }
+
+    /**
+     * Counters over all threads since startup, and the bytes currently pooled.
+     */
+    public static synchronized Map<String, Long> getTotals() {
+        Map<String, Long> map = new HashMap<>();
+        map.put("poolHits", hits.get());
+        map.put("poolMisses", misses.get());
+        map.put("poolDrops", drops.get());
+        map.put("poolBytes", pooledBytes);
+        return map;
+    }
+}
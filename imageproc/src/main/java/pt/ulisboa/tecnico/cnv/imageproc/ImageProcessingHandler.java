@@ -8,49 +8,84 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.net.URI;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import pt.ulisboa.tecnico.cnv.common.ImageEncoder;
+import pt.ulisboa.tecnico.cnv.common.RecordingOutputStream;
+
 public abstract class ImageProcessingHandler implements HttpHandler, RequestHandler<Map<String,String>, String> {
 
     abstract BufferedImage process(BufferedImage bi) throws IOException;
 
+    /**
+     * Handlers that accept request parameters (e.g. quality) override this.
+     */
+    BufferedImage process(BufferedImage bi, Map<String, String> parameters) throws IOException {
+        return process(bi);
+    }
+
+    /**
+     * Rows of context a band of the image needs above and below for
+     * process(bi, parameters) to produce the same rows as on the whole image,
+     * or -1 if the operation cannot be split into bands (see TiledProcessor).
+     */
+    int halo(Map<String, String> parameters) {
+        return -1;
+    }
+
     public String actuallyHandle(URI requestedUri, InputStream stream)  {
+        Map<String, String> parameters = requestedUri == null ? new HashMap<>() : queryToMap(requestedUri.getRawQuery());
         String result = new BufferedReader(new InputStreamReader(stream)).lines().collect(Collectors.joining("\n"));
         // System.out.printf("String result = %s\n", result);
         String[] resultSplits = result.split(",");
         String format = resultSplits[0].split("/")[1].split(";")[0];
 
         // Result syntax: data:image/<format>;base64,<encoded image>
-        String output = handleRequest(resultSplits[1], format);
+        String output = handleRequest(resultSplits[1], format, parameters);
         output = String.format("data:image/%s;base64,%s", format, output);
 
         return output;
     }
 
-    private String handleRequest(String inputEncoded, String format) {
+    /**
+     * Fails with an UncheckedIOException if the image cannot be decoded,
+     * processed or encoded, so no error text is ever taken for an image.
+     */
+    private String handleRequest(String inputEncoded, String format, Map<String, String> parameters) {
         byte[] decoded = Base64.getDecoder().decode(inputEncoded);
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(decoded);
-            BufferedImage bi = ImageIO.read(bais);
-            bi = process(bi);
+            BufferedImage input = ImageIO.read(new ByteArrayImageInputStream(decoded));
+            if (input == null) {
+                throw new IOException("unsupported image format");
+            }
+            BufferedImage bi = process(input, parameters);
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(bi, format, baos);
+            ImageEncoder.write(bi, format, baos);
+            ImageBufferPool.release(input);
+            ImageBufferPool.release(bi);
             return Base64.getEncoder().encodeToString(baos.toByteArray());
         } catch (IOException e) {
-            e.printStackTrace();
-            return e.toString();
+            throw new UncheckedIOException(e);
         }
     }
 
@@ -67,21 +102,170 @@ public abstract class ImageProcessingHandler implements HttpHandler, RequestHand
                 return;
             }
 
+            // raw image in the body, raw image in the response
+            String contentType = t.getRequestHeaders().getFirst("Content-Type");
+            boolean binary = contentType != null && contentType.startsWith("image/");
+
+            if (ResultCache.isEnabled()) {
+                handleCached(t, binary ? contentType : null);
+                return;
+            }
+
+            if (binary) {
+                // buffered in memory, rather than in a temporary file as ImageIO would by default
+                handleBinary(t, contentType, new MemoryCacheImageInputStream(t.getRequestBody()), null);
+                return;
+            }
+
             InputStream stream = t.getRequestBody();
 
-            String output = this.actuallyHandle(null, stream);
+            String output = this.actuallyHandle(t.getRequestURI(), stream);
             t.sendResponseHeaders(200, output.length());
             OutputStream os = t.getResponseBody();
             os.write(output.getBytes());
             os.close();
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            if (t.getResponseCode() != -1) {
+                // the status is already out, only dropping the connection tells the client
+                throw e;
+            }
+            t.sendResponseHeaders(500, -1);
+            t.close();
         } catch (Exception e) {
             e.printStackTrace();
             throw e;
         }
     }
 
+    /**
+     * Serves the request from the ResultCache, or handles it and caches the
+     * response. The body is read once, hashing it on the way in. Failed
+     * requests throw before anything is cached.
+     *
+     * @param contentType of a binary request, or null for a data URL
+     */
+    private void handleCached(HttpExchange t, String contentType) throws IOException {
+        Map<String, String> parameters = queryToMap(t.getRequestURI().getRawQuery());
+        MessageDigest digest = ResultCache.newDigest(t.getRequestURI(), parameters,
+                contentType == null ? "data-url" : contentType);
+        byte[] body;
+        try (InputStream stream = new DigestInputStream(t.getRequestBody(), digest)) {
+            body = stream.readAllBytes();
+        }
+        String key = ResultCache.key(digest);
+
+        ResultCache.Entry cached = ResultCache.get(key);
+        if (cached != null) {
+            t.getResponseHeaders().add(ResultCache.HEADER, "HIT");
+            if (cached.contentType != null) {
+                t.getResponseHeaders().add("Content-Type", cached.contentType);
+            }
+            t.sendResponseHeaders(200, cached.size());
+            try (OutputStream os = t.getResponseBody()) {
+                cached.writeTo(os);
+            }
+            return;
+        }
+        t.getResponseHeaders().add(ResultCache.HEADER, "MISS");
+
+        if (contentType != null) {
+            handleBinary(t, contentType, new ByteArrayImageInputStream(body), key);
+            return;
+        }
+
+        byte[] output = actuallyHandle(t.getRequestURI(), new ByteArrayInputStream(body)).getBytes();
+        t.sendResponseHeaders(200, output.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(output);
+        }
+        ResultCache.put(key, null, output, output.length);
+    }
+
+    /**
+     * Decodes the image straight from the request body and encodes the result
+     * straight into the (chunked) response body, in the same format. Large
+     * PNG images are processed in bands (see TiledProcessor).
+     *
+     * @param key ResultCache key to store the response under, or null
+     */
+    private void handleBinary(HttpExchange t, String contentType, ImageInputStream input, String key) throws IOException {
+        String format = contentType.substring("image/".length()).split(";")[0].trim();
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            input.close();
+            t.sendResponseHeaders(415, -1);
+            return;
+        }
+
+        Map<String, String> parameters = queryToMap(t.getRequestURI().getRawQuery());
+        try (ImageInputStream iis = input) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                t.sendResponseHeaders(400, -1);
+                return;
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(iis);
+
+            try {
+                String responseType = "image/" + format;
+                RecordingOutputStream recorder = null;
+
+                if (TiledProcessor.shouldTile(reader, halo(parameters), format)) {
+                    t.getResponseHeaders().add("Content-Type", responseType);
+                    t.sendResponseHeaders(200, 0);
+                    try (OutputStream os = t.getResponseBody()) {
+                        OutputStream out = os;
+                        if (key != null) {
+                            out = recorder = new RecordingOutputStream(os, ResultCache.MEMORY_BYTES);
+                        }
+                        TiledProcessor.process(reader, this, parameters, out);
+                    }
+                } else {
+                    BufferedImage image = ImageBufferPool.read(reader, reader.getDefaultReadParam());
+                    BufferedImage bi = process(image, parameters);
+
+                    t.getResponseHeaders().add("Content-Type", responseType);
+                    t.sendResponseHeaders(200, 0);
+                    try (OutputStream os = t.getResponseBody()) {
+                        OutputStream out = os;
+                        if (key != null) {
+                            out = recorder = new RecordingOutputStream(os, ResultCache.MEMORY_BYTES);
+                        }
+                        ImageEncoder.write(bi, format, out);
+                    }
+                    ImageBufferPool.release(image);
+                    ImageBufferPool.release(bi);
+                }
+
+                byte[] recorded = recorder == null ? null : recorder.recorded();
+                if (recorded != null) {
+                    ResultCache.put(key, responseType, recorded, recorded.length);
+                }
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
     @Override
     public String handleRequest(Map<String,String> event, Context context) {
-        return handleRequest(event.get("body"), event.get("fileFormat"));
+        return handleRequest(event.get("body"), event.get("fileFormat"), event);
+    }
+
+    public Map<String, String> queryToMap(String query) {
+        Map<String, String> result = new HashMap<>();
+        if (query == null) {
+            return result;
+        }
+        for (String param : query.split("&")) {
+            String[] entry = param.split("=");
+            if (entry.length > 1) {
+                result.put(entry[0], entry[1]);
+            } else {
+                result.put(entry[0], "");
+            }
+        }
+        return result;
     }
 }
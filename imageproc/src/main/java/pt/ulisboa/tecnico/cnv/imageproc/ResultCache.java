@@ -0,0 +1,292 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed cache of image processing responses.
+ *
+ * Blur and enhance are pure functions of the endpoint, its parameters, the
+ * request body and the body encoding, so the SHA-256 of those is the key.
+ * The body part of the hash is computed while the body is read (see
+ * newDigest and the DigestInputStream in ImageProcessingHandler).
+ *
+ * Responses are kept in memory in LRU order, up to MEMORY_BYTES. When
+ * DISK_DIR is set, entries evicted from memory move to files in that
+ * directory (LRU, up to DISK_BYTES), mapped once when written and served
+ * from the mapped buffer. Files are written under a temporary name and
+ * renamed into place, so a file that is mapped is never rewritten; a
+ * removed file stays readable through the mappings still in use.
+ *
+ * Every lookup records on the calling thread whether it hit, so getStats
+ * tells whether the current request was served from the cache; totals over
+ * all requests are kept apart.
+ */
+public class ResultCache {
+
+    // bytes of responses kept in memory, 0 disables the cache
+    public static long MEMORY_BYTES = System.getenv("RESULT_CACHE_BYTES") == null
+            ? 0 : Long.parseLong(System.getenv("RESULT_CACHE_BYTES"));
+
+    // directory of the disk tier, none by default
+    public static String DISK_DIR = System.getenv("RESULT_CACHE_DIR");
+
+    public static long DISK_BYTES = System.getenv("RESULT_CACHE_DISK_BYTES") == null
+            ? 1L << 30 : Long.parseLong(System.getenv("RESULT_CACHE_DISK_BYTES"));
+
+    public static final String HEADER = "X-Cache";
+
+    /**
+     * A cached response. The body is a heap buffer for the memory tier and a
+     * mapped buffer for the disk tier.
+     */
+    public static class Entry {
+        public final String contentType;
+        public final ByteBuffer body;
+
+        Entry(String contentType, ByteBuffer body) {
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        public int size() {
+            return body.remaining();
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer buffer = body.duplicate();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                return;
+            }
+            byte[] chunk = new byte[64 * 1024];
+            while (buffer.hasRemaining()) {
+                int n = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+    }
+
+    // access-ordered, so iteration starts at the least recently used entry
+    private static final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long memoryBytes = 0;
+
+    // entries of the disk tier, with their mapped files
+    private static final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private static long diskBytes = 0;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private static final ThreadLocal<long[]> threadStats = ThreadLocal.withInitial(() -> new long[1]);
+
+    static {
+        // the disk index does not survive restarts, so neither do the files
+        if (DISK_DIR != null) {
+            File[] stale = new File(DISK_DIR).listFiles((dir, name) -> name.endsWith(".bin") || name.endsWith(".tmp"));
+            if (stale != null) {
+                for (File file : stale) {
+                    file.delete();
+                }
+            }
+            new File(DISK_DIR).mkdirs();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return MEMORY_BYTES > 0;
+    }
+
+    /**
+     * Digest primed with everything but the body: endpoint, sorted
+     * parameters and how the body is encoded. The caller feeds the body.
+     */
+    public static MessageDigest newDigest(URI uri, Map<String, String> parameters, String encoding) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder prefix = new StringBuilder(uri.getPath()).append('\n');
+            for (Map.Entry<String, String> parameter : new TreeMap<>(parameters).entrySet()) {
+                prefix.append(parameter.getKey()).append('=').append(parameter.getValue()).append('&');
+            }
+            prefix.append('\n').append(encoding).append('\n');
+            digest.update(prefix.toString().getBytes(StandardCharsets.UTF_8));
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String key(MessageDigest digest) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public static Entry get(String key) {
+        Entry entry;
+        synchronized (ResultCache.class) {
+            entry = memory.get(key);
+            if (entry == null) {
+                entry = disk.get(key);
+            }
+        }
+
+        if (entry == null) {
+            misses.incrementAndGet();
+            threadStats.get()[0] = 0;
+        } else {
+            hits.incrementAndGet();
+            threadStats.get()[0] = 1;
+        }
+        return entry;
+    }
+
+    public static void put(String key, String contentType, byte[] body, int length) {
+        if (!isEnabled() || length > MEMORY_BYTES) {
+            return;
+        }
+
+        List<Map.Entry<String, Entry>> evicted = new ArrayList<>();
+        synchronized (ResultCache.class) {
+            Entry previous = memory.put(key, new Entry(contentType, ByteBuffer.wrap(body, 0, length)));
+            if (previous != null) {
+                memoryBytes -= previous.size();
+            }
+            memoryBytes += length;
+
+            Iterator<Map.Entry<String, Entry>> it = memory.entrySet().iterator();
+            while (memoryBytes > MEMORY_BYTES && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                memoryBytes -= eldest.getValue().size();
+                evicted.add(eldest);
+            }
+        }
+
+        // move evicted entries to the disk tier without holding the lock
+        if (DISK_DIR != null) {
+            for (Map.Entry<String, Entry> entry : evicted) {
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static Path path(String key) {
+        return Paths.get(DISK_DIR, key + ".bin");
+    }
+
+    private static void spill(String key, Entry entry) {
+        if (entry.size() > DISK_BYTES) {
+            return;
+        }
+        Entry mapped = write(key, entry);
+        if (mapped == null) {
+            return;
+        }
+
+        List<String> removed = new ArrayList<>();
+        synchronized (ResultCache.class) {
+            Entry previous = disk.put(key, mapped);
+            if (previous != null) {
+                diskBytes -= previous.size();
+            }
+            diskBytes += entry.size();
+
+            Iterator<Map.Entry<String, Entry>> it = disk.entrySet().iterator();
+            while (diskBytes > DISK_BYTES && it.hasNext()) {
+                Map.Entry<String, Entry> eldest = it.next();
+                it.remove();
+                diskBytes -= eldest.getValue().size();
+                removed.add(eldest.getKey());
+            }
+        }
+        for (String old : removed) {
+            try {
+                Files.deleteIfExists(path(old));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes the body of entry to the file of key and maps it, or returns
+     * null (leaving no file behind) if that fails, so the entry is a miss.
+     */
+    private static Entry write(String key, Entry entry) {
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(Paths.get(DISK_DIR), key, ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = entry.body.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                MappedByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.size());
+                Files.move(tmp, path(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return new Entry(entry.contentType, body);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Marks the current request as served from the cache or not.
+     */
+    public static void resetStats() {
+        threadStats.get()[0] = 0;
+    }
+
+    /**
+     * Whether the current request was served from the cache (1) or not (0).
+     */
+    public static Map<String, Long> getStats() {
+        Map<String, Long> map = new HashMap<>();
+        map.put("cacheHit", threadStats.get()[0]);
+        return map;
+    }
+
+    public static synchronized Map<String, Long> getTotals() {
+        Map<String, Long> map = new HashMap<>();
+        map.put("cacheHits", hits.get());
+        map.put("cacheMisses", misses.get());
+        map.put("cacheMemoryBytes", memoryBytes);
+        map.put("cacheDiskBytes", diskBytes);
+        return map;
+    }
+}
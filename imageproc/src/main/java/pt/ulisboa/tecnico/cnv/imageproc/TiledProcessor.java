@@ -0,0 +1,439 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.MultiPixelPackedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Node;
+
+import pt.ulisboa.tecnico.cnv.common.ImageEncoder;
+import pt.ulisboa.tecnico.cnv.common.StreamingPngWriter;
+
+/**
+ * Processes an image as a sequence of full-width bands, so that only a band
+ * (plus its halo) is ever held, processed and encoded at once.
+ *
+ * Each band of output rows [y0, y1) is produced from input rows
+ * [y0 - halo, y1 + halo), running the handler on them and keeping the rows
+ * that had their whole neighbourhood available. The halo comes from the
+ * handler, so the result is the same as processing the whole image.
+ *
+ * Images whose reader delivers rows top to bottom in a single pass
+ * (non-interlaced PNG, sequential JPEG) are decoded once, into a ring of
+ * rows that holds one band and its halo; a band is processed as soon as its
+ * last row has been decoded. Other images (interlaced PNG, progressive JPEG,
+ * other formats) are read band by band with a source region. ImageIO
+ * readers decode such a region from the start of the image, so that costs
+ * about bands^2 / 2 full decodes; the number of bands is capped at
+ * MAX_REGION_BANDS, at the price of taller bands.
+ *
+ * Only PNG output is tiled: it is encoded band by band with
+ * StreamingPngWriter. Other formats have no incremental writer in ImageIO,
+ * so they would need the whole output image anyway and are processed
+ * untiled.
+ */
+public class TiledProcessor {
+
+    // images with at least this many pixels are processed in bands
+    public static long TILED_MIN_PIXELS = System.getenv("TILED_MIN_PIXELS") == null
+            ? 16_000_000 : Long.parseLong(System.getenv("TILED_MIN_PIXELS"));
+
+    // pixels per band, not counting the halo
+    public static long TILE_PIXELS = System.getenv("TILE_PIXELS") == null
+            ? 4_000_000 : Long.parseLong(System.getenv("TILE_PIXELS"));
+
+    // most bands an image read with source regions is split into
+    public static final int MAX_REGION_BANDS = 8;
+
+    // band reads start at multiples of this many rows, so block-based
+    // operations (e.g. the pyramid blur) see the same blocks as on the whole image
+    private static final int ALIGNMENT = 8;
+
+    /**
+     * Whether the image behind reader should be processed in bands, with the
+     * output written in the given format.
+     */
+    public static boolean shouldTile(ImageReader reader, int halo, String format) throws IOException {
+        return halo >= 0 && format.equalsIgnoreCase("png")
+                && (long) reader.getWidth(0) * reader.getHeight(0) >= TILED_MIN_PIXELS;
+    }
+
+    /**
+     * Processes the first image of reader with handler and writes the result
+     * to out as a PNG.
+     */
+    public static void process(ImageReader reader, ImageProcessingHandler handler, Map<String, String> parameters,
+            OutputStream out) throws IOException {
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        int halo = handler.halo(parameters);
+        int bandRows = (int) Math.max(ALIGNMENT, TILE_PIXELS / width / ALIGNMENT * ALIGNMENT);
+
+        // a band and its halo, whatever the alignment of its first row
+        int ringRows = bandRows + 2 * halo + ALIGNMENT;
+        RingImage ring = decodesInOrder(reader) ? RingImage.create(reader, width, height, ringRows) : null;
+        if (ring != null) {
+            processInOrder(reader, ring, new Bands(handler, parameters, out, width, height, halo, bandRows));
+            return;
+        }
+
+        int minRows = (height + MAX_REGION_BANDS - 1) / MAX_REGION_BANDS;
+        bandRows = Math.max(bandRows, (minRows + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+        Bands bands = new Bands(handler, parameters, out, width, height, halo, bandRows);
+        while (!bands.done()) {
+            int s0 = bands.sourceStart();
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, s0, width, bands.sourceEnd() - s0));
+            BufferedImage input = ImageBufferPool.read(reader, param);
+            bands.process(input, s0);
+            ImageBufferPool.release(input);
+        }
+        bands.finish();
+    }
+
+    /**
+     * Decodes the image once into ring, processing each band as soon as the
+     * rows it needs are in.
+     */
+    private static void processInOrder(ImageReader reader, RingImage ring, Bands bands) throws IOException {
+        RowListener listener = new RowListener(ring, bands);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(ring.image);
+        reader.addIIOReadUpdateListener(listener);
+        try {
+            reader.read(0, param);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            reader.removeIIOReadUpdateListener(listener);
+        }
+        if (!bands.done()) {
+            throw new IOException("Only " + listener.decoded + " of " + reader.getHeight(0) + " rows were decoded");
+        }
+        bands.finish();
+    }
+
+    /**
+     * Whether reader decodes its first image in a single top-to-bottom pass:
+     * a non-interlaced PNG or a sequential (not progressive) JPEG.
+     */
+    static boolean decodesInOrder(ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(0);
+        String format = metadata == null ? null : metadata.getNativeMetadataFormatName();
+        if ("javax_imageio_png_1.0".equals(format)) {
+            Node header = find(metadata.getAsTree(format), "IHDR");
+            return header != null && "none".equals(attribute(header, "interlaceMethod"));
+        }
+        if ("javax_imageio_jpeg_image_1.0".equals(format)) {
+            Node frame = find(metadata.getAsTree(format), "sof");
+            String process = frame == null ? null : attribute(frame, "process");
+            return "0".equals(process) || "1".equals(process);
+        }
+        return false;
+    }
+
+    private static Node find(Node node, String name) {
+        if (name.equals(node.getNodeName())) {
+            return node;
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            Node found = find(child, name);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    private static String attribute(Node node, String name) {
+        Node attribute = node.getAttributes() == null ? null : node.getAttributes().getNamedItem(name);
+        return attribute == null ? null : attribute.getNodeValue();
+    }
+
+    /**
+     * The output bands still to produce, and the writer they go to.
+     */
+    private static class Bands {
+        private final ImageProcessingHandler handler;
+        private final Map<String, String> parameters;
+        private final OutputStream out;
+        private final int width;
+        private final int height;
+        private final int halo;
+        private final int bandRows;
+
+        private StreamingPngWriter pngWriter;
+
+        // first output row of the next band
+        private int y0;
+
+        Bands(ImageProcessingHandler handler, Map<String, String> parameters, OutputStream out,
+                int width, int height, int halo, int bandRows) {
+            this.handler = handler;
+            this.parameters = parameters;
+            this.out = out;
+            this.width = width;
+            this.height = height;
+            this.halo = halo;
+            this.bandRows = bandRows;
+        }
+
+        boolean done() {
+            return y0 >= height;
+        }
+
+        /**
+         * First input row the next band needs.
+         */
+        int sourceStart() {
+            return Math.max(0, y0 - halo) / ALIGNMENT * ALIGNMENT;
+        }
+
+        /**
+         * Input row after the last one the next band needs.
+         */
+        int sourceEnd() {
+            return Math.min(height, Math.min(height, y0 + bandRows) + halo);
+        }
+
+        /**
+         * Processes the next band from input, which holds the input rows
+         * from s0 on, and writes its output rows.
+         */
+        void process(BufferedImage input, int s0) throws IOException {
+            int y1 = Math.min(height, y0 + bandRows);
+            BufferedImage band = handler.process(input, parameters);
+            if (pngWriter == null) {
+                boolean gray = band.getColorModel().getNumComponents() == 1;
+                pngWriter = new StreamingPngWriter(out, width, height, gray, ImageEncoder.PNG_LEVEL);
+            }
+            pngWriter.write(band, y0 - s0, y1 - s0);
+            ImageBufferPool.release(band);
+            y0 = y1;
+        }
+
+        void finish() throws IOException {
+            pngWriter.finish();
+        }
+    }
+
+    /**
+     * Follows the rows the reader decodes and processes every band whose
+     * input rows are all in the ring.
+     */
+    private static class RowListener implements IIOReadUpdateListener {
+        private final RingImage ring;
+        private final Bands bands;
+
+        // rows decoded so far
+        int decoded;
+
+        RowListener(RingImage ring, Bands bands) {
+            this.ring = ring;
+            this.bands = bands;
+        }
+
+        @Override
+        public void imageUpdate(ImageReader source, BufferedImage image, int minX, int minY, int width, int height,
+                int periodX, int periodY, int[] targetBands) {
+            if (minY > decoded || periodY != 1) {
+                throw new IllegalStateException("Row " + minY + " decoded after row " + decoded);
+            }
+            decoded = Math.max(decoded, minY + height);
+            try {
+                while (!bands.done() && bands.sourceEnd() <= decoded) {
+                    int s0 = bands.sourceStart();
+                    BufferedImage input = ring.copy(s0, bands.sourceEnd());
+                    bands.process(input, s0);
+                    ImageBufferPool.release(input);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void passStarted(ImageReader source, BufferedImage image, int pass, int minPass, int maxPass,
+                int minX, int minY, int periodX, int periodY, int[] targetBands) {
+        }
+
+        @Override
+        public void passComplete(ImageReader source, BufferedImage image) {
+        }
+
+        @Override
+        public void thumbnailPassStarted(ImageReader source, BufferedImage thumbnail, int pass, int minPass,
+                int maxPass, int minX, int minY, int periodX, int periodY, int[] targetBands) {
+        }
+
+        @Override
+        public void thumbnailUpdate(ImageReader source, BufferedImage thumbnail, int minX, int minY, int width,
+                int height, int periodX, int periodY, int[] targetBands) {
+        }
+
+        @Override
+        public void thumbnailPassComplete(ImageReader source, BufferedImage thumbnail) {
+        }
+    }
+
+    /**
+     * An image as tall as the whole input, of the type the reader decodes
+     * to, whose rows are stored in a ring of the given number of rows: row y
+     * lands where row y - rows was. The reader decodes into it as into any
+     * other image.
+     */
+    private static class RingImage {
+        final BufferedImage image;
+        final ImageTypeSpecifier type;
+
+        private RingImage(BufferedImage image, ImageTypeSpecifier type) {
+            this.image = image;
+            this.type = type;
+        }
+
+        /**
+         * Returns null if the reader decodes to a layout the ring does not
+         * support.
+         */
+        static RingImage create(ImageReader reader, int width, int height, int rows) throws IOException {
+            Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+            if (!types.hasNext()) {
+                return null;
+            }
+            ImageTypeSpecifier type = types.next();
+            SampleModel model = type.getSampleModel(width, height);
+            int stride;
+            int banks = 1;
+            if (model instanceof ComponentSampleModel) {
+                stride = ((ComponentSampleModel) model).getScanlineStride();
+                for (int bank : ((ComponentSampleModel) model).getBankIndices()) {
+                    banks = Math.max(banks, bank + 1);
+                }
+            } else if (model instanceof SinglePixelPackedSampleModel) {
+                stride = ((SinglePixelPackedSampleModel) model).getScanlineStride();
+            } else if (model instanceof MultiPixelPackedSampleModel) {
+                stride = ((MultiPixelPackedSampleModel) model).getScanlineStride();
+            } else {
+                return null;
+            }
+            int dataType = model.getDataType();
+            if (dataType != DataBuffer.TYPE_BYTE && dataType != DataBuffer.TYPE_USHORT && dataType != DataBuffer.TYPE_INT) {
+                return null;
+            }
+
+            DataBuffer buffer = new RingBuffer(dataType, stride * Math.min(rows, height), banks);
+            WritableRaster raster = Raster.createWritableRaster(model, buffer, null);
+            ColorModel colors = type.getColorModel();
+            return new RingImage(new BufferedImage(colors, raster, colors.isAlphaPremultiplied(), null), type);
+        }
+
+        /**
+         * Copies rows [from, to), which must still be in the ring, into an
+         * image of the type the reader decodes to.
+         */
+        BufferedImage copy(int from, int to) {
+            int width = image.getWidth();
+            int kind = type.getBufferedImageType();
+            BufferedImage copy = kind == BufferedImage.TYPE_CUSTOM
+                    ? type.createBufferedImage(width, to - from)
+                    : ImageBufferPool.borrowImage(width, to - from, kind);
+            Raster source = image.getRaster();
+            WritableRaster target = copy.getRaster();
+            Object row = null;
+            for (int y = from; y < to; y++) {
+                row = source.getDataElements(0, y, width, 1, row);
+                target.setDataElements(0, y - from, width, 1, row);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Data buffer that maps element i to i modulo its size, in every bank.
+     */
+    private static class RingBuffer extends DataBuffer {
+        private final byte[][] bytes;
+        private final short[][] shorts;
+        private final int[][] ints;
+
+        RingBuffer(int dataType, int size, int banks) {
+            super(dataType, size, banks);
+            bytes = dataType == TYPE_BYTE ? new byte[banks][size] : null;
+            shorts = dataType == TYPE_USHORT ? new short[banks][size] : null;
+            ints = dataType == TYPE_INT ? new int[banks][size] : null;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int index = i % size;
+            if (bytes != null) {
+                return bytes[bank][index] & 0xFF;
+            } else if (shorts != null) {
+                return shorts[bank][index] & 0xFFFF;
+            }
+            return ints[bank][index];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int value) {
+            int index = i % size;
+            if (bytes != null) {
+                bytes[bank][index] = (byte) value;
+            } else if (shorts != null) {
+                shorts[bank][index] = (short) value;
+            } else {
+                ints[bank][index] = value;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        if (args.length != 3) {
+            System.err.println("Syntax TiledProcessor <blur|enhance> <input image path> <output png path>");
+            return;
+        }
+
+        ImageProcessingHandler handler = args[0].equals("blur") ? new BlurImageHandler() : new EnhanceImageHandler();
+        String outputImagePath = args[2];
+
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new File(args[1]));
+                OutputStream out = new FileOutputStream(outputImagePath)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                System.err.println("Unsupported input image " + args[1]);
+                return;
+            }
+            ImageReader reader = readers.next();
+            reader.setInput(iis);
+            long start = System.nanoTime();
+            process(reader, handler, new HashMap<>(), out);
+            System.out.printf("%dx%d image processed in %d ms\n",
+                    reader.getWidth(0), reader.getHeight(0), (System.nanoTime() - start) / 1000000);
+            reader.dispose();
+        }
+    }
+}
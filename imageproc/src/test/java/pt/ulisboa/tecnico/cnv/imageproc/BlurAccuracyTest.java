@@ -0,0 +1,83 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import boofcv.alg.filter.blur.GBlurImageOps;
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+/**
+ * Measures ApproximateBlur on the images in resources/ against the bounds
+ * documented on BlurImageHandler.Quality and in the README: against an
+ * exact Gaussian, and against GBlurImageOps.
+ */
+public class BlurAccuracyTest {
+
+    private static List<BufferedImage> images;
+
+    private static final List<BufferedImage> exact = new ArrayList<>();
+
+    @BeforeClass
+    public static void blurExactly() throws IOException {
+        images = GaussianReference.resources();
+        assertFalse("no images in resources/", images.isEmpty());
+        for (BufferedImage image : images) {
+            exact.add(GaussianReference.blur(image, BlurImageHandler.RADIUS));
+        }
+    }
+
+    private static GaussianReference.Error measure(List<BufferedImage> expected, UnaryOperator<BufferedImage> blur) {
+        GaussianReference.Error error = new GaussianReference.Error();
+        for (int i = 0; i < images.size(); i++) {
+            error.add(expected.get(i), blur.apply(images.get(i)));
+        }
+        return error;
+    }
+
+    private static List<BufferedImage> boofcv() {
+        List<BufferedImage> blurred = new ArrayList<>();
+        for (BufferedImage image : images) {
+            Planar<GrayU8> planar = ConvertBufferedImage.convertFromPlanar(image, null, true, GrayU8.class);
+            Planar<GrayU8> output = planar.createSameShape();
+            GBlurImageOps.gaussian(planar, output, -1, BlurImageHandler.RADIUS, null);
+            blurred.add(ConvertBufferedImage.convertTo(output, null, true));
+        }
+        return blurred;
+    }
+
+    @Test
+    public void boxWithinBounds() {
+        GaussianReference.Error error = measure(exact, ApproximateBlur::box);
+        assertTrue(error.toString(), error.max <= 10 && error.mean() < 0.35);
+    }
+
+    @Test
+    public void pyramidWithinBounds() {
+        GaussianReference.Error error = measure(exact, ApproximateBlur::pyramid);
+        assertTrue(error.toString(), error.max <= 7 && error.mean() < 0.5);
+    }
+
+    /**
+     * The targets against BoofCV, whose integer kernel is itself close to
+     * but not exactly the Gaussian above.
+     */
+    @Test
+    public void withinTargetsAgainstBoofCV() {
+        List<BufferedImage> expected = boofcv();
+        GaussianReference.Error box = measure(expected, ApproximateBlur::box);
+        assertTrue("box: " + box, box.max <= 11 && box.mean() < 0.5);
+        GaussianReference.Error pyramid = measure(expected, ApproximateBlur::pyramid);
+        assertTrue("pyramid: " + pyramid, pyramid.max <= 8 && pyramid.mean() < 0.75);
+    }
+}
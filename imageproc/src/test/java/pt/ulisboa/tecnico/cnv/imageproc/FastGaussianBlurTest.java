@@ -0,0 +1,103 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import boofcv.alg.filter.blur.GBlurImageOps;
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU8;
+import boofcv.struct.image.Planar;
+
+/**
+ * Checks that FastGaussianBlur stays within 1 per channel of an exact
+ * Gaussian, and of GBlurImageOps.
+ */
+public class FastGaussianBlurTest {
+
+    private static final int RADIUS = BlurImageHandler.RADIUS;
+
+    // narrower and shorter than the kernel, and around its width
+    private static final int[][] SIZES = { { 1, 1 }, { 7, 100 }, { 100, 7 }, { 65, 65 }, { 66, 130 }, { 200, 3 } };
+
+    private static List<BufferedImage> images;
+
+    @BeforeClass
+    public static void load() throws IOException {
+        images = GaussianReference.resources();
+        assertFalse("no images in resources/", images.isEmpty());
+    }
+
+    private static BufferedImage crop(BufferedImage image, int width, int height) {
+        BufferedImage crop = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        crop.getGraphics().drawImage(image, 0, 0, null);
+        return crop;
+    }
+
+    private static BufferedImage boofcv(BufferedImage image) {
+        Planar<GrayU8> planar = ConvertBufferedImage.convertFromPlanar(image, null, true, GrayU8.class);
+        Planar<GrayU8> blurred = planar.createSameShape();
+        GBlurImageOps.gaussian(planar, blurred, -1, RADIUS, null);
+        return ConvertBufferedImage.convertTo(blurred, null, true);
+    }
+
+    @Test
+    public void withinOneOfExactGaussian() {
+        FastGaussianBlur blur = new FastGaussianBlur(RADIUS);
+        for (BufferedImage image : images) {
+            GaussianReference.Error error = new GaussianReference.Error();
+            error.add(GaussianReference.blur(image, RADIUS), blur.process(image));
+            assertTrue(error.toString(), error.max <= 1);
+        }
+    }
+
+    @Test
+    public void smallImagesWithinOneOfExactGaussian() {
+        FastGaussianBlur blur = new FastGaussianBlur(RADIUS);
+        for (int[] size : SIZES) {
+            BufferedImage image = crop(images.get(0), size[0], size[1]);
+            GaussianReference.Error error = new GaussianReference.Error();
+            error.add(GaussianReference.blur(image, RADIUS), blur.process(image));
+            assertTrue(size[0] + "x" + size[1] + ": " + error, error.max <= 1);
+        }
+    }
+
+    @Test
+    public void otherRadiiWithinOneOfExactGaussian() {
+        Random random = new Random(1);
+        BufferedImage image = new BufferedImage(90, 70, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        for (int radius : new int[] { 1, 2, 5, 8, 50 }) {
+            GaussianReference.Error error = new GaussianReference.Error();
+            error.add(GaussianReference.blur(image, radius), new FastGaussianBlur(radius).process(image));
+            assertTrue("radius " + radius + ": " + error, error.max <= 1);
+        }
+    }
+
+    @Test
+    public void withinOneOfBoofCV() {
+        FastGaussianBlur blur = new FastGaussianBlur(RADIUS);
+        for (BufferedImage image : images) {
+            GaussianReference.Error error = new GaussianReference.Error();
+            error.add(boofcv(image), blur.process(image));
+            assertTrue(error.toString(), error.max <= 1);
+        }
+        for (int[] size : SIZES) {
+            BufferedImage image = crop(images.get(0), size[0], size[1]);
+            GaussianReference.Error error = new GaussianReference.Error();
+            error.add(boofcv(image), blur.process(image));
+            assertTrue(size[0] + "x" + size[1] + ": " + error, error.max <= 1);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Separable Gaussian in double precision, rounded once at the end, with the
+ * kernel renormalized at the borders and the sigma BoofCV picks for a
+ * radius. Slow, but independent of the fixed-point and approximate blurs it
+ * is compared with.
+ */
+class GaussianReference {
+
+    private GaussianReference() {
+    }
+
+    static BufferedImage blur(BufferedImage image, int radius) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double sigma = (radius * 2.0 + 1.0) / 5.0;
+        double[] kernel = new double[2 * radius + 1];
+        for (int i = 0; i < kernel.length; i++) {
+            int x = i - radius;
+            kernel[i] = Math.exp(-(x * x) / (2.0 * sigma * sigma));
+        }
+
+        double[][] src = new double[3][width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = image.getRGB(x, y);
+                for (int c = 0; c < 3; c++) {
+                    src[c][y * width + x] = (rgb >> (8 * c)) & 0xFF;
+                }
+            }
+        }
+
+        BufferedImage out = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        double[] tmp = new double[width * height];
+        int[] rgb = new int[width * height];
+        for (int c = 0; c < 3; c++) {
+            double[] band = src[c];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double sum = 0, div = 0;
+                    for (int k = Math.max(0, radius - x); k < Math.min(kernel.length, width - x + radius); k++) {
+                        sum += kernel[k] * band[y * width + x + k - radius];
+                        div += kernel[k];
+                    }
+                    tmp[y * width + x] = sum / div;
+                }
+            }
+            for (int y = 0; y < height; y++) {
+                int kStart = Math.max(0, radius - y);
+                int kEnd = Math.min(kernel.length, height - y + radius);
+                for (int x = 0; x < width; x++) {
+                    double sum = 0, div = 0;
+                    for (int k = kStart; k < kEnd; k++) {
+                        sum += kernel[k] * tmp[(y + k - radius) * width + x];
+                        div += kernel[k];
+                    }
+                    rgb[y * width + x] |= (int) Math.round(sum / div) << (8 * c);
+                }
+            }
+        }
+        out.setRGB(0, 0, width, height, rgb, 0, width);
+        return out;
+    }
+
+    /**
+     * The images in resources/, relative to the module directory maven runs
+     * the tests in.
+     */
+    static List<BufferedImage> resources() throws IOException {
+        List<BufferedImage> images = new ArrayList<>();
+        File[] files = new File("resources").listFiles();
+        if (files == null) {
+            throw new IOException("no resources/ directory in " + new File("").getAbsolutePath());
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image != null) {
+                images.add(image);
+            }
+        }
+        return images;
+    }
+
+    /**
+     * Largest and summed per-channel difference over a set of images.
+     */
+    static class Error {
+        int max;
+        long sum;
+        long samples;
+
+        void add(BufferedImage expected, BufferedImage actual) {
+            if (expected.getWidth() != actual.getWidth() || expected.getHeight() != actual.getHeight()) {
+                throw new AssertionError("size differs");
+            }
+            for (int y = 0; y < expected.getHeight(); y++) {
+                for (int x = 0; x < expected.getWidth(); x++) {
+                    int e = expected.getRGB(x, y);
+                    int a = actual.getRGB(x, y);
+                    for (int shift = 0; shift < 24; shift += 8) {
+                        int diff = Math.abs(((e >> shift) & 0xFF) - ((a >> shift) & 0xFF));
+                        max = Math.max(max, diff);
+                        sum += diff;
+                        samples++;
+                    }
+                }
+            }
+        }
+
+        double mean() {
+            return (double) sum / samples;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("max error %d, mean error %.3f", max, mean());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import boofcv.alg.enhance.EnhanceImageOps;
+import boofcv.io.image.ConvertBufferedImage;
+import boofcv.struct.image.GrayU8;
+
+/**
+ * Compares LocalHistogramEqualizer pixel for pixel with a brute-force
+ * equalizer that builds the histogram of every window from scratch, and with
+ * EnhanceImageOps.equalizeLocal.
+ */
+public class LocalHistogramEqualizerTest {
+
+    private static final int RADIUS = EnhanceImageHandler.RADIUS;
+
+    // smaller than the window in one or both directions, and around its side
+    private static final int[][] SIZES = { { 1, 1 }, { 40, 30 }, { 7, 300 }, { 300, 7 }, { 101, 101 }, { 102, 150 } };
+
+    private static List<BufferedImage> images;
+
+    @BeforeClass
+    public static void load() throws IOException {
+        images = GaussianReference.resources();
+        assertFalse("no images in resources/", images.isEmpty());
+    }
+
+    private static GrayU8 gray(BufferedImage image, int x0, int y0, int width, int height) {
+        BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        gray.getGraphics().drawImage(image, -x0, -y0, null);
+        GrayU8 out = new GrayU8(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                out.set(x, y, gray.getRaster().getSample(x, y, 0));
+            }
+        }
+        return out;
+    }
+
+    private static GrayU8 random(Random random, int width, int height) {
+        GrayU8 out = new GrayU8(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // few distinct values, so that ties are common
+                out.set(x, y, random.nextInt(8) * 32);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Start of the window around p: centered, but moved inside the image
+     * when it would cross a border.
+     */
+    private static int start(int p, int size, int radius) {
+        return Math.max(0, Math.min(p - radius, size - (2 * radius + 1)));
+    }
+
+    private static GrayU8 bruteForce(GrayU8 input, int radius) {
+        GrayU8 output = input.createSameShape();
+        for (int y = 0; y < input.height; y++) {
+            int y0 = start(y, input.height, radius);
+            int y1 = Math.min(input.height, y0 + 2 * radius + 1);
+            for (int x = 0; x < input.width; x++) {
+                int x0 = start(x, input.width, radius);
+                int x1 = Math.min(input.width, x0 + 2 * radius + 1);
+                int value = input.get(x, y);
+                int atMost = 0;
+                for (int v = y0; v < y1; v++) {
+                    for (int u = x0; u < x1; u++) {
+                        if (input.get(u, v) <= value) {
+                            atMost++;
+                        }
+                    }
+                }
+                output.set(x, y, atMost * 255 / ((y1 - y0) * (x1 - x0)));
+            }
+        }
+        return output;
+    }
+
+    private static GrayU8 sliding(GrayU8 input, int radius) {
+        GrayU8 output = input.createSameShape();
+        new LocalHistogramEqualizer(radius).process(input, output);
+        return output;
+    }
+
+    private static void assertSame(String what, GrayU8 expected, GrayU8 actual) {
+        for (int y = 0; y < expected.height; y++) {
+            for (int x = 0; x < expected.width; x++) {
+                assertEquals(what + " (" + x + ", " + y + ")", expected.get(x, y), actual.get(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void matchesBruteForceOnResources() {
+        // a corner crop of each image, larger than the window
+        for (BufferedImage image : images) {
+            GrayU8 input = gray(image, 0, 0, 180, 130);
+            assertSame("crop", bruteForce(input, RADIUS), sliding(input, RADIUS));
+        }
+    }
+
+    @Test
+    public void matchesBruteForceOnSmallImages() {
+        for (int[] size : SIZES) {
+            GrayU8 input = gray(images.get(0), 0, 0, size[0], size[1]);
+            assertSame(size[0] + "x" + size[1], bruteForce(input, RADIUS), sliding(input, RADIUS));
+        }
+    }
+
+    @Test
+    public void matchesBruteForceInManyBands() {
+        // small radius: many windows per image and one band per thread
+        Random random = new Random(1);
+        for (int radius : new int[] { 0, 1, 3, 7 }) {
+            GrayU8 input = random(random, 61, 200);
+            assertSame("radius " + radius, bruteForce(input, radius), sliding(input, radius));
+        }
+    }
+
+    @Test
+    public void matchesBoofCV() {
+        for (BufferedImage image : images) {
+            GrayU8 input = ConvertBufferedImage.convertFrom(image, (GrayU8) null);
+            GrayU8 expected = input.createSameShape();
+            EnhanceImageOps.equalizeLocal(input, RADIUS, expected, 256, null);
+            assertSame("image", expected, sliding(input, RADIUS));
+        }
+        for (int[] size : SIZES) {
+            GrayU8 input = gray(images.get(0), 0, 0, size[0], size[1]);
+            GrayU8 expected = input.createSameShape();
+            EnhanceImageOps.equalizeLocal(input, RADIUS, expected, 256, null);
+            assertSame(size[0] + "x" + size[1], expected, sliding(input, RADIUS));
+        }
+    }
+}
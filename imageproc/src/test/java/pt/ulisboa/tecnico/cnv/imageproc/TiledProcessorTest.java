@@ -0,0 +1,220 @@
+package pt.ulisboa.tecnico.cnv.imageproc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Processes images in bands with TiledProcessor and checks that the output
+ * is the same as processing them whole, and that images that can be decoded
+ * in one pass are.
+ */
+public class TiledProcessorTest {
+
+    private static BufferedImage source;
+
+    private long tilePixels;
+    private boolean fastGaussian;
+    private boolean fastEqualize;
+
+    @BeforeClass
+    public static void load() throws IOException {
+        source = GaussianReference.resources().get(0);
+    }
+
+    @Before
+    public void smallBands() {
+        tilePixels = TiledProcessor.TILE_PIXELS;
+        fastGaussian = BlurImageHandler.FAST_GAUSSIAN;
+        fastEqualize = EnhanceImageHandler.FAST_EQUALIZE;
+        // bands of 24 rows, well under the halo of every operation
+        TiledProcessor.TILE_PIXELS = source.getWidth() * 24L;
+    }
+
+    @After
+    public void restore() {
+        TiledProcessor.TILE_PIXELS = tilePixels;
+        BlurImageHandler.FAST_GAUSSIAN = fastGaussian;
+        EnhanceImageHandler.FAST_EQUALIZE = fastEqualize;
+    }
+
+    private static BufferedImage convert(BufferedImage image, int type) {
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        converted.getGraphics().drawImage(image, 0, 0, null);
+        return converted;
+    }
+
+    private static byte[] encode(BufferedImage image, String format, boolean progressive) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(format).next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    private static ImageReader reader(byte[] encoded) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded));
+        ImageReader reader = ImageIO.getImageReaders(iis).next();
+        reader.setInput(iis);
+        return reader;
+    }
+
+    /**
+     * Counts how many times the reader starts decoding the image.
+     */
+    private static class Reads implements IIOReadProgressListener {
+        int started;
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+            started++;
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+        }
+    }
+
+    /**
+     * Processes encoded whole and in bands and compares the results; returns
+     * how many times the tiled run started decoding.
+     */
+    private static int assertTiledSame(byte[] encoded, ImageProcessingHandler handler, Map<String, String> parameters)
+            throws IOException {
+        ImageReader whole = reader(encoded);
+        BufferedImage expected = handler.process(whole.read(0), parameters);
+        whole.dispose();
+
+        ImageReader reader = reader(encoded);
+        Reads reads = new Reads();
+        reader.addIIOReadProgressListener(reads);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TiledProcessor.process(reader, handler, parameters, out);
+        reader.dispose();
+
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("(" + x + ", " + y + ")", expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+        return reads.started;
+    }
+
+    private static Map<String, String> quality(String quality) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("quality", quality);
+        return parameters;
+    }
+
+    @Test
+    public void sequentialImagesDecodedOnce() throws IOException {
+        byte[][] inputs = {
+            encode(source, "png", false),
+            encode(convert(source, BufferedImage.TYPE_BYTE_GRAY), "png", false),
+            encode(convert(source, BufferedImage.TYPE_BYTE_INDEXED), "png", false),
+            encode(convert(source, BufferedImage.TYPE_INT_ARGB), "png", false),
+            encode(source, "jpeg", false),
+        };
+        for (byte[] input : inputs) {
+            ImageReader reader = reader(input);
+            assertTrue(TiledProcessor.decodesInOrder(reader));
+            reader.dispose();
+            assertEquals(1, assertTiledSame(input, new BlurImageHandler(), quality("box")));
+        }
+    }
+
+    @Test
+    public void interlacedImagesReadInFewBands() throws IOException {
+        byte[][] inputs = { encode(source, "png", true), encode(source, "jpeg", true) };
+        for (byte[] input : inputs) {
+            ImageReader reader = reader(input);
+            assertFalse(TiledProcessor.decodesInOrder(reader));
+            reader.dispose();
+            int reads = assertTiledSame(input, new BlurImageHandler(), quality("box"));
+            assertTrue(reads > 1 && reads <= TiledProcessor.MAX_REGION_BANDS);
+        }
+    }
+
+    @Test
+    public void everyBlurQuality() throws IOException {
+        BlurImageHandler.FAST_GAUSSIAN = true;
+        byte[] input = encode(source, "png", false);
+        for (String quality : new String[] { "exact", "box", "pyramid" }) {
+            assertTiledSame(input, new BlurImageHandler(), quality(quality));
+        }
+    }
+
+    @Test
+    public void oddSizes() throws IOException {
+        // one band, and a last band of a single row
+        for (int height : new int[] { 5, 24 * 3 + 1 }) {
+            BufferedImage image = convert(source.getSubimage(0, 0, 333, height), BufferedImage.TYPE_3BYTE_BGR);
+            TiledProcessor.TILE_PIXELS = 333 * 24L;
+            assertTiledSame(encode(image, "png", false), new BlurImageHandler(), quality("pyramid"));
+        }
+    }
+
+    @Test
+    public void enhance() throws IOException {
+        EnhanceImageHandler.FAST_EQUALIZE = true;
+        assertTiledSame(encode(source, "png", false), new EnhanceImageHandler(), new HashMap<>());
+    }
+}
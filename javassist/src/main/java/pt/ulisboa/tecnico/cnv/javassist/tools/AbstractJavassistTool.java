@@ -4,6 +4,7 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import javassist.CannotCompileException;
@@ -12,8 +13,11 @@ import javassist.CtBehavior;
 import javassist.CtClass;
 import javassist.bytecode.AccessFlag;
 import javassist.bytecode.BadBytecode;
+import javassist.bytecode.Bytecode;
 import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
 import javassist.bytecode.LineNumberAttribute;
+import javassist.bytecode.MethodInfo;
 import javassist.bytecode.analysis.ControlFlow;
 import javassist.bytecode.analysis.ControlFlow.Block;
 
@@ -71,6 +75,37 @@ public abstract class AbstractJavassistTool implements ClassFileTransformer {
         }
     }
 
+    static class Probe {
+
+        /**
+         * Bytecode index the probe is inserted at.
+         */
+        final int position;
+
+        /**
+         * Whether jumps to the position skip the probe, which then only runs
+         * when the method is called.
+         */
+        final boolean exclusive;
+
+        /**
+         * Number of basic blocks each execution of the probe accounts for.
+         */
+        int blocks;
+
+        /**
+         * Number of instructions each execution of the probe accounts for.
+         */
+        long insts;
+
+        Probe(int position, boolean exclusive, int blocks, long insts) {
+            this.position = position;
+            this.exclusive = exclusive;
+            this.blocks = blocks;
+            this.insts = insts;
+        }
+    }
+
     private List<String> packageNameList;
 
     private String writeDestination;
@@ -98,6 +133,102 @@ public abstract class AbstractJavassistTool implements ClassFileTransformer {
         return bbs;
     }
 
+    /**
+     * Where to count the basic blocks and instructions executed by the
+     * behavior, with as few probes on its hot paths as possible (see
+     * ProbePlacement). Sorted by decreasing position.
+     */
+    protected static List<Probe> getProbes(CtBehavior behavior) throws BadBytecode {
+        CodeAttribute ca = behavior.getMethodInfo().getCodeAttribute();
+        Block[] blocks = new ControlFlow(behavior.getDeclaringClass(), behavior.getMethodInfo()).basicBlocks();
+        int[] positions = new int[blocks.length];
+        int[] lengths = new int[blocks.length];
+        int[] lasts = new int[blocks.length];
+        int[][] successors = new int[blocks.length][];
+        CodeIterator iterator = ca.iterator();
+
+        for (Block block : blocks) {
+            int index = block.index();
+            positions[index] = block.position();
+            lengths[index] = block.length();
+            successors[index] = new int[block.exits()];
+            for (int i = 0; i < successors[index].length; i++) {
+                successors[index][i] = block.exit(i).index();
+            }
+
+            iterator.move(block.position());
+            lasts[index] = block.position();
+            while (iterator.hasNext()) {
+                int pos = iterator.next();
+                if (pos >= block.position() + block.length()) {
+                    break;
+                }
+                lasts[index] = pos;
+            }
+        }
+
+        ProbePlacement placement = new ProbePlacement(positions, lengths, lasts, successors);
+        List<Probe> probes = ca.getExceptionTable().size() == 0 ? placement.place() : null;
+        return probes != null ? probes : placement.everyBlock();
+    }
+
+    /**
+     * Takes out the probe that runs once per call, if there is one, for tools
+     * that already run code on every return and can add its counts there.
+     */
+    protected static Probe removeEntryProbe(List<Probe> probes) {
+        for (Iterator<Probe> it = probes.iterator(); it.hasNext(); ) {
+            Probe probe = it.next();
+            if (probe.exclusive) {
+                it.remove();
+                return probe;
+            }
+        }
+        return new Probe(0, true, 0, 0);
+    }
+
+    /**
+     * Inserts, at each probe, a call to the static method className.methodName(int blocks, long insts).
+     *
+     * Probes are inserted from the end, so inserting one does not move the
+     * ones still to go, except when the inserted code pushes a jump over it
+     * out of 16-bit range: the jump is then widened, which moves everything
+     * after it, and may change the padding of the switches after that. So
+     * the position of the next probe is tracked with the iterator's mark,
+     * which follows both.
+     */
+    protected static void insertProbes(CtBehavior behavior, List<Probe> probes, String className, String methodName) throws BadBytecode {
+        MethodInfo info = behavior.getMethodInfo();
+        CodeAttribute ca = info.getCodeAttribute();
+        CodeIterator iterator = ca.iterator();
+
+        int position = probes.isEmpty() ? 0 : probes.get(0).position;
+        for (int i = 0; i < probes.size(); i++) {
+            Probe probe = probes.get(i);
+            Bytecode code = new Bytecode(info.getConstPool());
+            code.addIconst(probe.blocks);
+            code.addLconst(probe.insts);
+            code.addInvokestatic(className, methodName, "(IJ)V");
+
+            // probes at the same position go in front of each other, at the position just inserted at
+            boolean next = i + 1 < probes.size() && probes.get(i + 1).position < probe.position;
+            if (next) {
+                iterator.setMark(probes.get(i + 1).position);
+            }
+            if (probe.exclusive) {
+                position = iterator.insertExAt(position, code.get());
+            } else {
+                position = iterator.insertAt(position, code.get());
+            }
+            if (next) {
+                position = iterator.getMark();
+            }
+        }
+
+        ca.setMaxStack(ca.computeMaxStack());
+        info.rebuildStackMapIf6(behavior.getDeclaringClass().getClassPool(), behavior.getDeclaringClass().getClassFile());
+    }
+
     protected void transform(BasicBlock block) throws CannotCompileException {
     }
 
@@ -107,10 +238,11 @@ public abstract class AbstractJavassistTool implements ClassFileTransformer {
         }
     }
 
+    /**
+     * Nested classes are not transformed with their outer class: the JVM
+     * loads them on their own, and they are transformed then.
+     */
     protected void transform(CtClass clazz) throws Exception {
-        for (CtClass nestedClazz : clazz.getDeclaredClasses()) {
-            transform(nestedClazz);
-        }
         for (CtBehavior behavior : clazz.getDeclaredBehaviors()) {
             if ((AccessFlag.ABSTRACT & behavior.getModifiers()) == 0) {
                 transform(behavior);
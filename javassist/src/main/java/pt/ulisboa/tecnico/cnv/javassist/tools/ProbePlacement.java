@@ -0,0 +1,300 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import pt.ulisboa.tecnico.cnv.javassist.tools.AbstractJavassistTool.Probe;
+
+/**
+ * Chooses where to count executions in a method so that far fewer probes run
+ * than with one probe per basic block, while the total number of executed
+ * blocks and instructions stays exact (Knuth / Ball-Larus edge profiling).
+ *
+ * The control flow graph gets a virtual EXIT node, an edge to it from every
+ * block that returns or throws, and an edge from it back to the entry block,
+ * taken once per invocation. Every block then has as much flow in as out, so
+ * the counts of the edges of a spanning tree follow from the counts of the
+ * other edges (the chords), and only the chords need probes. The tree is
+ * built greedily from the innermost loops out, so the chords, and the
+ * probes, fall on the coldest edges.
+ *
+ * Instead of keeping one counter per chord and solving for the block counts
+ * when they are read, each probe adds, at once, its share of the totals: a
+ * chord's count flows around its cycle in the tree, entering every block of
+ * the cycle once (or, against the direction of a tree edge, leaving it once),
+ * so the probe adds the signed number of blocks and instructions it stands
+ * for. The totals are exact for invocations that return normally; one left
+ * by an exception may be off by the blocks it had not reached.
+ *
+ * A probe can only be inserted for an edge that has a block to itself: the
+ * only way into its target or the only way out of its source. The other
+ * edges must be in the tree; when they can't all be, or when the method has
+ * exception handlers, every block gets its own probe as before.
+ */
+class ProbePlacement {
+
+    /**
+     * Edge of the control flow graph.
+     */
+    private static class Edge {
+        final int from;
+        final int to;
+        int depth;
+
+        Edge(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private final int[] positions;
+    private final int[] lengths;
+    private final int[] lasts;
+    private final int entry;
+    private final int exit;
+
+    private final List<Edge> edges = new ArrayList<>();
+    private final int[] ins;
+    private final int[] outs;
+
+    /**
+     * @param positions bytecode index of the start of each block
+     * @param lengths length of each block
+     * @param lasts bytecode index of the last instruction of each block
+     * @param successors indexes of the blocks each block may jump or fall to,
+     *        empty for blocks that return or throw
+     */
+    ProbePlacement(int[] positions, int[] lengths, int[] lasts, int[][] successors) {
+        this.positions = positions;
+        this.lengths = lengths;
+        this.lasts = lasts;
+        this.exit = positions.length;
+        this.ins = new int[exit + 1];
+        this.outs = new int[exit + 1];
+
+        int first = 0;
+        for (int i = 1; i < positions.length; i++) {
+            if (positions[i] < positions[first]) {
+                first = i;
+            }
+        }
+        this.entry = first;
+
+        for (int i = 0; i < exit; i++) {
+            Set<Integer> targets = new LinkedHashSet<>();
+            for (int s : successors[i]) {
+                targets.add(s);
+            }
+            if (targets.isEmpty()) {
+                targets.add(exit);
+            }
+            for (int s : targets) {
+                addEdge(i, s);
+            }
+        }
+        // the virtual edge, counted by a probe at the very start of the method
+        addEdge(exit, entry);
+    }
+
+    /**
+     * One probe for every block, for methods that can't be placed.
+     */
+    List<Probe> everyBlock() {
+        List<Probe> probes = new ArrayList<>();
+        for (int i = 0; i < exit; i++) {
+            probes.add(new Probe(positions[i], false, 1, lengths[i]));
+        }
+        probes.sort(Comparator.comparingInt((Probe p) -> p.position).reversed());
+        return probes;
+    }
+
+    /**
+     * Probes on the chords of a spanning tree, sorted by decreasing position,
+     * or null if some edge that can't have a probe had to be left out of the
+     * tree.
+     */
+    List<Probe> place() {
+        computeLoopDepths();
+
+        // edges that can't have a probe first, then the hottest
+        Edge virtual = edges.get(edges.size() - 1);
+        List<Edge> sorted = new ArrayList<>(edges);
+        sorted.remove(virtual);
+        sorted.sort(Comparator.comparing((Edge e) -> measurable(e)).thenComparing(e -> -e.depth));
+        sorted.add(virtual);
+
+        int[] parent = new int[exit + 1];
+        for (int i = 0; i <= exit; i++) {
+            parent[i] = i;
+        }
+        List<List<Edge>> tree = new ArrayList<>();
+        for (int i = 0; i <= exit; i++) {
+            tree.add(new ArrayList<>());
+        }
+        List<Edge> chords = new ArrayList<>();
+        for (Edge e : sorted) {
+            int a = find(parent, e.from);
+            int b = find(parent, e.to);
+            if (a != b) {
+                parent[a] = b;
+                tree.get(e.from).add(e);
+                tree.get(e.to).add(e);
+            } else if (measurable(e)) {
+                chords.add(e);
+            } else {
+                return null;
+            }
+        }
+
+        // probes at the same place run equally often, so they add up
+        TreeMap<Integer, Probe> probes = new TreeMap<>(Comparator.reverseOrder());
+        Probe start = null;
+        for (Edge chord : chords) {
+            long[] weight = cycleWeight(tree, chord);
+            if (weight[0] == 0 && weight[1] == 0) {
+                continue;
+            }
+            if (chord.from == exit) {
+                start = new Probe(0, true, (int) weight[0], weight[1]);
+                continue;
+            }
+            int position = chord.to != exit && ins[chord.to] == 1 ? positions[chord.to] : lasts[chord.from];
+            Probe probe = probes.get(position);
+            if (probe == null) {
+                probes.put(position, new Probe(position, false, (int) weight[0], weight[1]));
+            } else {
+                probe.blocks += (int) weight[0];
+                probe.insts += weight[1];
+            }
+        }
+
+        List<Probe> placed = new ArrayList<>(probes.values());
+        placed.removeIf(p -> p.blocks == 0 && p.insts == 0);
+        if (start != null) {
+            placed.add(start);
+        }
+        return placed;
+    }
+
+    private void addEdge(int from, int to) {
+        edges.add(new Edge(from, to));
+        outs[from]++;
+        ins[to]++;
+    }
+
+    /**
+     * Whether a probe can count the edge alone.
+     */
+    private boolean measurable(Edge e) {
+        return e.from == exit || outs[e.from] == 1 || (e.to != exit && ins[e.to] == 1);
+    }
+
+    /**
+     * Blocks and instructions added by one unit of flow around the cycle the
+     * chord closes in the tree.
+     */
+    private long[] cycleWeight(List<List<Edge>> tree, Edge chord) {
+        long[] weight = new long[2];
+        add(weight, chord.to, 1);
+
+        // the cycle goes through the chord, then along the tree from chord.to back to chord.from
+        Edge[] via = new Edge[exit + 1];
+        boolean[] seen = new boolean[exit + 1];
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(chord.to);
+        seen[chord.to] = true;
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (Edge e : tree.get(node)) {
+                int next = e.from == node ? e.to : e.from;
+                if (!seen[next]) {
+                    seen[next] = true;
+                    via[next] = e;
+                    queue.add(next);
+                }
+            }
+        }
+
+        for (int node = chord.from; node != chord.to; ) {
+            Edge e = via[node];
+            int previous = e.from == node ? e.to : e.from;
+            // the cycle runs previous -> node
+            add(weight, e.to, e.to == node ? 1 : -1);
+            node = previous;
+        }
+        return weight;
+    }
+
+    private void add(long[] weight, int node, int sign) {
+        if (node != exit) {
+            weight[0] += sign;
+            weight[1] += sign * (long) lengths[node];
+        }
+    }
+
+    /**
+     * Depth of every edge in the loop nest: the number of loops that contain
+     * both its ends. Loops are found from their back edges, the jumps to an
+     * earlier position, which is where javac puts them.
+     */
+    private void computeLoopDepths() {
+        int[][] predecessors = new int[exit][];
+        int[] counts = new int[exit];
+        for (Edge e : edges) {
+            if (e.from != exit && e.to != exit) {
+                counts[e.to]++;
+            }
+        }
+        for (int i = 0; i < exit; i++) {
+            predecessors[i] = new int[counts[i]];
+        }
+        Arrays.fill(counts, 0);
+        for (Edge e : edges) {
+            if (e.from != exit && e.to != exit) {
+                predecessors[e.to][counts[e.to]++] = e.from;
+            }
+        }
+
+        for (Edge back : edges) {
+            if (back.from == exit || back.to == exit || positions[back.to] > positions[back.from]) {
+                continue;
+            }
+            // the natural loop: the header and whatever reaches the back edge without it
+            boolean[] loop = new boolean[exit + 1];
+            loop[back.to] = true;
+            Deque<Integer> stack = new ArrayDeque<>();
+            if (!loop[back.from]) {
+                loop[back.from] = true;
+                stack.push(back.from);
+            }
+            while (!stack.isEmpty()) {
+                for (int p : predecessors[stack.pop()]) {
+                    if (!loop[p]) {
+                        loop[p] = true;
+                        stack.push(p);
+                    }
+                }
+            }
+            for (Edge e : edges) {
+                if (loop[e.from] && loop[e.to]) {
+                    e.depth++;
+                }
+            }
+        }
+    }
+
+    private static int find(int[] parent, int node) {
+        while (parent[node] != node) {
+            parent[node] = parent[parent[node]];
+            node = parent[node];
+        }
+        return node;
+    }
+}
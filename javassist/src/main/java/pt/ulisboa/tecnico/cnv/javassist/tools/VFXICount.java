@@ -3,28 +3,37 @@ package pt.ulisboa.tecnico.cnv.javassist.tools;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
 
-import javassist.CannotCompileException;
 import javassist.CtBehavior;
 
+/*
+ * Instruction/basic block count. Each thread adds to its own Counters, so
+ * the injected calls take no lock and counts of concurrent requests stay
+ * apart.
+ **/
 public class VFXICount extends CodeDumper {
 
     /**
-     * Number of executed basic blocks.
+     * Counters of one thread, only ever touched by that thread.
      */
-    public static Map<Long,Long> nblocks = new ConcurrentHashMap<>();
+    public static final class Counters {
+        /**
+         * Number of executed basic blocks.
+         */
+        public long nblocks;
 
-    /**
-     * Number of executed methods.
-     */
-    public static Map<Long,Long> nmethods = new ConcurrentHashMap<>();
+        /**
+         * Number of executed instructions.
+         */
+        public long ninsts;
 
-    /**
-     * Number of executed instructions.
-     */
-    public static Map<Long,Long> ninsts = new ConcurrentHashMap<>();
+        /**
+         * Number of executed methods.
+         */
+        public long nmethods;
+    }
+
+    private static final ThreadLocal<Counters> counters = ThreadLocal.withInitial(Counters::new);
 
     public VFXICount(List<String> packageNameList, String writeDestination) {
         super(packageNameList, writeDestination);
@@ -34,45 +43,59 @@ public class VFXICount extends CodeDumper {
      * Zeros all stats for current thread.
      */
     public static void resetStats() {
-        long tid = Thread.currentThread().getId();
-        nblocks.put(tid, 0L);
-        ninsts.put(tid, 0L);
-        nmethods.put(tid, 0L);
+        Counters c = counters.get();
+        c.nblocks = 0;
+        c.ninsts = 0;
+        c.nmethods = 0;
     }
 
     /**
      * Get stats for current thread
      */
     public static Map<String, Long> getStats() {
-        long tid = Thread.currentThread().getId();
+        Counters c = counters.get();
         Map<String, Long> map = new HashMap<>();
-        map.put("nblocks", nblocks.get(tid));
-        map.put("ninsts", ninsts.get(tid));
-        map.put("nmethods", nmethods.get(tid));
+        map.put("nblocks", c.nblocks);
+        map.put("ninsts", c.ninsts);
+        map.put("nmethods", c.nmethods);
         return map;
     }
 
     public static void incBasicBlock(int position, int length) {
-        long tid = Thread.currentThread().getId();
-        nblocks.put(tid, nblocks.getOrDefault(tid, 0L) + 1);
-        ninsts.put(tid, nblocks.getOrDefault(tid, 0L) + length);
+        Counters c = counters.get();
+        c.nblocks++;
+        c.ninsts += length;
     }
 
-    public static void incBehavior(String name) {
-        long tid = Thread.currentThread().getId();
-        nmethods.put(tid, nblocks.getOrDefault(tid, 0L) + 1);
+    /**
+     * Called by the probes ProbePlacement leaves in the instrumented code,
+     * each accounting for a number of blocks and instructions at once.
+     */
+    public static void incBasicBlocks(int blocks, long insts) {
+        Counters c = counters.get();
+        c.nblocks += blocks;
+        c.ninsts += insts;
     }
 
-    @Override
-    protected void transform(CtBehavior behavior) throws Exception {
-        super.transform(behavior);
-        behavior.insertAfter(String.format("%s.incBehavior(\"%s\");", VFXICount.class.getName(), behavior.getLongName()));
+    /**
+     * Called when a method returns, with the blocks and instructions of the
+     * probe that would otherwise run on every call (see ProbePlacement).
+     */
+    public static void incBehavior(int blocks, long insts) {
+        Counters c = counters.get();
+        c.nmethods++;
+        c.nblocks += blocks;
+        c.ninsts += insts;
     }
 
     @Override
-    protected void transform(BasicBlock block) throws CannotCompileException {
-        super.transform(block);
-        block.behavior.insertAt(block.line, String.format("%s.incBasicBlock(%s, %s);", VFXICount.class.getName(), block.getPosition(), block.getLength()));
+    protected void transform(CtBehavior behavior) throws Exception {
+        super.transform(behavior);
+        List<Probe> probes = getProbes(behavior);
+        Probe entry = removeEntryProbe(probes);
+        insertProbes(behavior, probes, VFXICount.class.getName(), "incBasicBlocks");
+        // as a finally, so calls left by an exception still count
+        behavior.insertAfter(String.format("%s.incBehavior(%s, %sL);", VFXICount.class.getName(), entry.blocks, entry.insts), true);
     }
 
 }
@@ -3,85 +3,152 @@ package pt.ulisboa.tecnico.cnv.javassist.tools;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javassist.CtClass;
-import javassist.CannotCompileException;
 import javassist.CtBehavior;
 
 /*
  * Combination of instruction/basic block count and execution time
+ *
+ * The counters of each thread live in a Counters object reached through a
+ * ThreadLocal, so the code inserted in every basic block is a ThreadLocal
+ * lookup and two long additions: no map lookups, no boxing, and no
+ * contention between threads.
  **/
 public class VFXMetrics extends CodeDumper {
 
     /**
-     * Number of executed basic blocks.
+     * Counters of one thread, only ever touched by that thread.
      */
-    public static Map<Long,Long> nblocks = new ConcurrentHashMap<>();
+    public static final class Counters {
+        /**
+         * Number of executed basic blocks.
+         */
+        public long nblocks;
+
+        /**
+         * Number of executed instructions.
+         */
+        public long ninsts;
+
+        /**
+         * Number of executed methods.
+         */
+        public long nmethods;
+
+        /**
+         * Execution time of the last method that returned.
+         */
+        public long opTime;
+
+        /**
+         * Whether the thread runs a sampled request (see VFXSampledMetrics).
+         */
+        public boolean sampled;
+    }
+
+    private static final ThreadLocal<Counters> counters = ThreadLocal.withInitial(Counters::new);
+
+    // threads running a sampled request; while there are none, fastPath does not look up the thread's counters
+    private static final AtomicInteger sampling = new AtomicInteger();
+
+    public VFXMetrics(List<String> packageNameList, String writeDestination) {
+        super(packageNameList, writeDestination);
+    }
 
     /**
-     * Number of executed methods.
+     * Counters of the current thread.
      */
-    public static Map<Long,Long> nmethods = new ConcurrentHashMap<>();
+    public static Counters counters() {
+        return counters.get();
+    }
 
     /**
-     * Number of executed instructions.
+     * Zeros all stats for current thread.
      */
-    public static Map<Long,Long> ninsts = new ConcurrentHashMap<>();
+    public static void resetStats() {
+        Counters c = counters.get();
+        c.nblocks = 0;
+        c.ninsts = 0;
+        c.nmethods = 0;
+        c.opTime = 0;
+    }
 
     /**
-     * Execution time
+     * Marks the request the current thread runs as sampled or not: only
+     * sampled requests run the instrumented methods of VFXSampledMetrics.
      */
-    public static Map<Long,Long> opTimes = new ConcurrentHashMap<>();
+    public static void setSampled(boolean sampled) {
+        Counters c = counters.get();
+        if (c.sampled != sampled) {
+            c.sampled = sampled;
+            sampling.addAndGet(sampled ? 1 : -1);
+        }
+    }
 
-    public VFXMetrics(List<String> packageNameList, String writeDestination) {
-        super(packageNameList, writeDestination);
+    public static boolean isSampled() {
+        return counters.get().sampled;
     }
 
     /**
-     * Zeros all stats for current thread.
+     * Whether a method cloned by VFXSampledMetrics should run its
+     * uninstrumented copy, checked on every call.
      */
-    public static void resetStats() {
-        long tid = Thread.currentThread().getId();
-        nblocks.put(tid, 0L);
-        ninsts.put(tid, 0L);
-        nmethods.put(tid, 0L);
-        opTimes.put(tid, 0L);
+    public static boolean fastPath() {
+        return sampling.get() == 0 || !counters.get().sampled;
     }
 
     /**
      * Get stats for current thread
      */
     public static Map<String, Long> getStats() {
-        long tid = Thread.currentThread().getId();
+        Counters c = counters.get();
         Map<String, Long> map = new HashMap<>();
-        map.put("nblocks", nblocks.get(tid));
-        map.put("ninsts", ninsts.get(tid));
-        map.put("nmethods", nmethods.get(tid));
-        map.put("opTime", opTimes.get(tid));
+        map.put("nblocks", c.nblocks);
+        map.put("ninsts", c.ninsts);
+        map.put("nmethods", c.nmethods);
+        map.put("opTime", c.opTime);
         return map;
     }
 
     public static void incBasicBlock(int position, int length) {
-        long tid = Thread.currentThread().getId();
-        nblocks.put(tid, nblocks.getOrDefault(tid, 0L) + 1);
-        ninsts.put(tid, nblocks.getOrDefault(tid, 0L) + length);
+        Counters c = counters.get();
+        c.nblocks++;
+        c.ninsts += length;
+    }
+
+    /**
+     * Called by the probes ProbePlacement leaves in the instrumented code,
+     * each accounting for a number of blocks and instructions at once.
+     */
+    public static void incBasicBlocks(int blocks, long insts) {
+        Counters c = counters.get();
+        c.nblocks += blocks;
+        c.ninsts += insts;
     }
 
-    public static void incBehavior(String name) {
-        long tid = Thread.currentThread().getId();
-        nmethods.put(tid, nblocks.getOrDefault(tid, 0L) + 1);
+    /**
+     * Called when a method returns, with the blocks and instructions of the
+     * probe that would otherwise run on every call (see ProbePlacement).
+     */
+    public static void incBehavior(int blocks, long insts) {
+        Counters c = counters.get();
+        c.nmethods++;
+        c.nblocks += blocks;
+        c.ninsts += insts;
     }
 
     public static void registerBehaviorDuration(long opTime) {
-        long tid = Thread.currentThread().getId();
-        opTimes.put(tid, opTime);
+        counters.get().opTime = opTime;
     }
 
     @Override
     protected void transform(CtBehavior behavior) throws Exception {
         super.transform(behavior);
+        List<Probe> probes = getProbes(behavior);
+        Probe entry = removeEntryProbe(probes);
+        insertProbes(behavior, probes, VFXMetrics.class.getName(), "incBasicBlocks");
 
         behavior.addLocalVariable("startTime", CtClass.longType);
         behavior.addLocalVariable("endTime", CtClass.longType);
@@ -95,12 +162,7 @@ public class VFXMetrics extends CodeDumper {
         builder.append(String.format("%s.registerBehaviorDuration(opTime);", VFXMetrics.class.getName()));
         behavior.insertAfter(builder.toString());
 
-        behavior.insertAfter(String.format("%s.incBehavior(\"%s\");", VFXMetrics.class.getName(), behavior.getLongName()));
-    }
-
-    @Override
-    protected void transform(BasicBlock block) throws CannotCompileException {
-        super.transform(block);
-        block.behavior.insertAt(block.line, String.format("%s.incBasicBlock(%s, %s);", VFXMetrics.class.getName(), block.getPosition(), block.getLength()));
+        // as a finally, so calls left by an exception still count
+        behavior.insertAfter(String.format("%s.incBehavior(%s, %sL);", VFXMetrics.class.getName(), entry.blocks, entry.insts), true);
     }
 }
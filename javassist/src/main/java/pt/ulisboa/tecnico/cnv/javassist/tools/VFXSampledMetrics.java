@@ -0,0 +1,70 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools;
+
+import java.util.List;
+
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.MethodInfo;
+
+/*
+ * VFXMetrics for a sample of the requests
+ *
+ * Every method keeps an uninstrumented copy, name$fast, next to the
+ * instrumented one. On entry the instrumented method checks
+ * VFXMetrics.fastPath and, unless the thread runs a sampled request (see
+ * VFXMetrics.setSampled), calls the copy instead, so requests that are not
+ * sampled run nearly as fast as without the agent. The check comes before
+ * anything VFXMetrics inserts, so the copy runs without timing or counting,
+ * even when it throws. The copies are private, so calls to them are never
+ * dispatched to a subclass, and synthetic.
+ *
+ * Constructors can't be copied into methods (they may set final fields),
+ * and javassist adds no private methods to interfaces, so constructors and
+ * default and static interface methods stay instrumented; the counts they add outside sampled requests
+ * are never read. Bridge methods are left alone: they only call the method
+ * they bridge, which is counted, and copying them would give the copies of
+ * a covariant override and its bridge the same name and parameters.
+ *
+ * The sampled flag belongs to the thread: work a request hands to other
+ * threads runs the copies and is not counted (see the webserver's Sampler).
+ **/
+public class VFXSampledMetrics extends VFXMetrics {
+
+    public VFXSampledMetrics(List<String> packageNameList, String writeDestination) {
+        super(packageNameList, writeDestination);
+    }
+
+    @Override
+    protected void transform(CtBehavior behavior) throws Exception {
+        if ((behavior.getMethodInfo().getAccessFlags() & AccessFlag.BRIDGE) != 0) {
+            return;
+        }
+        if (!(behavior instanceof CtMethod) || behavior.getDeclaringClass().isInterface()) {
+            super.transform(behavior);
+            return;
+        }
+
+        CtMethod method = (CtMethod) behavior;
+        CtClass clazz = method.getDeclaringClass();
+        String fastName = method.getName() + "$fast";
+
+        // copied before instrumenting it
+        CtMethod fast = CtNewMethod.copy(method, fastName, clazz, null);
+        MethodInfo info = fast.getMethodInfo();
+        info.setAccessFlags(AccessFlag.setPrivate(info.getAccessFlags()) | AccessFlag.SYNTHETIC);
+
+        super.transform(method);
+        clazz.addMethod(fast);
+
+        // inserted last, so it runs before anything else the instrumentation added
+        if (method.getReturnType() == CtClass.voidType) {
+            method.insertBefore(String.format("if (%s.fastPath()) { %s($$); return; }", VFXMetrics.class.getName(), fastName));
+        } else {
+            method.insertBefore(String.format("if (%s.fastPath()) { return %s($$); }", VFXMetrics.class.getName(), fastName));
+        }
+    }
+
+}
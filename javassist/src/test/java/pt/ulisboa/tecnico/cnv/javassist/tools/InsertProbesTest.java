@@ -0,0 +1,105 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+
+import pt.ulisboa.tecnico.cnv.javassist.tools.AbstractJavassistTool.Probe;
+
+/**
+ * Checks that AbstractJavassistTool.insertProbes puts every probe where it
+ * was meant to go when inserting one widens a jump before the others.
+ */
+public class InsertProbesTest {
+
+    // nops between the conditional jump and the code it jumps over, so that
+    // the jump is within 16-bit range until a probe is inserted in between
+    private static final int FILLER = 32760;
+
+    private static long counted;
+
+    public static void count(int blocks, long insts) {
+        counted += blocks;
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(InsertProbesTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+
+    /**
+     * static int run(int x) { if (x != 0) { nop...; return 1; } return 2; }
+     */
+    private static CtClass makeClass(ClassPool pool, String name) throws Exception {
+        CtClass clazz = pool.makeClass(name);
+        ClassFile file = clazz.getClassFile();
+
+        Bytecode code = new Bytecode(file.getConstPool(), 1, 1);
+        code.addIload(0);
+        code.addOpcode(Opcode.IFEQ);
+        // from the ifeq at 1 to the else branch, past the filler and iconst_1, ireturn
+        code.addIndex(4 + FILLER + 2 - 1);
+        for (int i = 0; i < FILLER; i++) {
+            code.addOpcode(Opcode.NOP);
+        }
+        code.addIconst(1);
+        code.addOpcode(Opcode.IRETURN);
+        code.addIconst(2);
+        code.addOpcode(Opcode.IRETURN);
+
+        MethodInfo info = new MethodInfo(file.getConstPool(), "run", "(I)I");
+        info.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.STATIC);
+        info.setCodeAttribute(code.toCodeAttribute());
+        info.rebuildStackMapIf6(pool, file);
+        file.addMethod(info);
+        return clazz;
+    }
+
+    @Test
+    public void widenedJumpMovesLaterProbes() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        String name = InsertProbesTest.class.getPackage().getName() + ".Widened";
+        CtClass clazz = makeClass(pool, name);
+        CtMethod method = clazz.getDeclaredMethod("run");
+
+        int then = 4;
+        int thenReturn = 4 + FILLER + 1;
+        int otherwise = thenReturn + 1;
+        List<Probe> probes = new ArrayList<>();
+        probes.add(new Probe(otherwise, false, 1000, 0));
+        // pushes the ifeq out of range, so it is widened and then moves
+        probes.add(new Probe(thenReturn, false, 100, 0));
+        probes.add(new Probe(then, false, 10, 0));
+        probes.add(new Probe(0, true, 1, 0));
+
+        AbstractJavassistTool.insertProbes(method, probes, InsertProbesTest.class.getName(), "count");
+
+        Class<?> loaded = new Loader().define(name, clazz.toBytecode());
+        java.lang.reflect.Method run = loaded.getMethod("run", int.class);
+
+        counted = 0;
+        assertEquals(1, run.invoke(null, 1));
+        assertEquals(111, counted);
+
+        counted = 0;
+        assertEquals(2, run.invoke(null, 0));
+        assertEquals(1001, counted);
+    }
+}
@@ -0,0 +1,179 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.cnv.javassist.tools.AbstractJavassistTool.Probe;
+
+/**
+ * Checks, on small control flow graphs, that the probes ProbePlacement
+ * places add up to the blocks and instructions executed, by running random
+ * walks through the graphs and counting both.
+ *
+ * Blocks are laid out one after the other from position 0, each ending with
+ * its last instruction one position before the next block.
+ */
+public class ProbePlacementTest {
+
+    private static final int WALKS = 2000;
+
+    private static class Graph {
+        final int[] positions;
+        final int[] lengths;
+        final int[] lasts;
+        final int[][] successors;
+
+        Graph(int[] lengths, int[][] successors) {
+            this.lengths = lengths;
+            this.successors = successors;
+            this.positions = new int[lengths.length];
+            this.lasts = new int[lengths.length];
+            int position = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                positions[i] = position;
+                lasts[i] = position + lengths[i] - 1;
+                position += lengths[i];
+            }
+        }
+
+        ProbePlacement placement() {
+            return new ProbePlacement(positions, lengths, lasts, successors);
+        }
+    }
+
+    /**
+     * Runs random walks from the entry block and checks that the probes
+     * count as many blocks and instructions as were executed.
+     */
+    private static void assertExact(Graph graph, List<Probe> probes) {
+        Random random = new Random(7);
+        long blocks = 0;
+        long insts = 0;
+        long counted = 0;
+        long countedInsts = 0;
+
+        for (int walk = 0; walk < WALKS; walk++) {
+            for (Probe probe : probes) {
+                if (probe.exclusive) {
+                    counted += probe.blocks;
+                    countedInsts += probe.insts;
+                }
+            }
+
+            int block = 0;
+            while (true) {
+                blocks++;
+                insts += graph.lengths[block];
+                for (Probe probe : probes) {
+                    if (!probe.exclusive && probe.position >= graph.positions[block]
+                            && probe.position <= graph.lasts[block]) {
+                        counted += probe.blocks;
+                        countedInsts += probe.insts;
+                    }
+                }
+                int[] next = graph.successors[block];
+                if (next.length == 0) {
+                    break;
+                }
+                block = next[random.nextInt(next.length)];
+            }
+        }
+
+        assertEquals(blocks, counted);
+        assertEquals(insts, countedInsts);
+    }
+
+    private static List<Probe> assertPlaced(Graph graph) {
+        List<Probe> probes = graph.placement().place();
+        assertNotNull(probes);
+        for (int i = 1; i < probes.size(); i++) {
+            assertTrue(probes.get(i).position <= probes.get(i - 1).position);
+        }
+        assertExact(graph, probes);
+        assertExact(graph, graph.placement().everyBlock());
+        return probes;
+    }
+
+    private static int nonExclusive(List<Probe> probes) {
+        int count = 0;
+        for (Probe probe : probes) {
+            if (!probe.exclusive) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void straightLine() {
+        Graph graph = new Graph(new int[] { 4 }, new int[][] { {} });
+        List<Probe> probes = assertPlaced(graph);
+        assertEquals(0, nonExclusive(probes));
+    }
+
+    @Test
+    public void diamond() {
+        // 0 -> 1 | 2 -> 3 -> return
+        Graph graph = new Graph(new int[] { 3, 5, 2, 4 },
+                new int[][] { { 1, 2 }, { 3 }, { 3 }, {} });
+        List<Probe> probes = assertPlaced(graph);
+        assertEquals(1, nonExclusive(probes));
+    }
+
+    @Test
+    public void nestedLoops() {
+        // 0: i = 0
+        // 1: if i >= n goto 6
+        // 2: j = 0
+        // 3: if j >= m goto 5
+        // 4: body; j++; goto 3
+        // 5: i++; goto 1
+        // 6: return
+        Graph graph = new Graph(new int[] { 3, 4, 2, 4, 6, 4, 2 },
+                new int[][] { { 1 }, { 2, 6 }, { 3 }, { 4, 5 }, { 3 }, { 1 }, {} });
+        List<Probe> probes = assertPlaced(graph);
+        // one probe per loop, where one per block would run four per inner iteration
+        assertEquals(2, nonExclusive(probes));
+    }
+
+    @Test
+    public void earlyReturn() {
+        // 0: i = 0
+        // 1: if i >= n goto 4
+        // 2: if a[i] == x goto 5
+        // 3: i++; goto 1
+        // 4: return -1
+        // 5: return i
+        Graph graph = new Graph(new int[] { 2, 4, 5, 3, 2, 2 },
+                new int[][] { { 1 }, { 2, 4 }, { 3, 5 }, { 1 }, {}, {} });
+        assertPlaced(graph);
+    }
+
+    @Test
+    public void athrow() {
+        // 0: if x < 0 goto 2
+        // 1: return x
+        // 2: new; dup; invokespecial; athrow
+        Graph graph = new Graph(new int[] { 3, 2, 4 },
+                new int[][] { { 1, 2 }, {}, {} });
+        assertPlaced(graph);
+    }
+
+    @Test
+    public void selfLoopFallsBack() {
+        // 0: if x-- > 0 goto 0
+        // 1: return
+        // the edge 0 -> 0 can't have a probe to itself, nor be in the tree
+        Graph graph = new Graph(new int[] { 5, 1 },
+                new int[][] { { 0, 1 }, {} });
+        assertNull(graph.placement().place());
+        assertExact(graph, graph.placement().everyBlock());
+    }
+}
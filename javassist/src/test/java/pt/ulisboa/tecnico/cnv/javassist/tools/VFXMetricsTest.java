@@ -0,0 +1,81 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+
+import pt.ulisboa.tecnico.cnv.javassist.tools.fixture.Fixture;
+
+/**
+ * Runs Fixture instrumented by VFXMetrics and checks the counts it leaves.
+ */
+public class VFXMetricsTest {
+
+    private static Class<?> fixture;
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(VFXMetricsTest.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytecode) {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+
+    @BeforeClass
+    public static void instrument() throws Exception {
+        ClassPool pool = new ClassPool(true);
+        CtClass clazz = pool.get(Fixture.class.getName());
+        new VFXMetrics(Collections.singletonList(Fixture.class.getPackage().getName()), "unused").transform(clazz);
+        fixture = new Loader().define(Fixture.class.getName(), clazz.toBytecode());
+    }
+
+    private static Object call(String name, int arg) throws Exception {
+        Method method = fixture.getMethod(name, int.class);
+        return method.invoke(null, arg);
+    }
+
+    @Test
+    public void loopCounts() throws Exception {
+        VFXMetrics.resetStats();
+        assertEquals(45, call("sum", 10));
+
+        VFXMetrics.Counters c = VFXMetrics.counters();
+        assertEquals(1, c.nmethods);
+        // initialization, 11 loop tests, 10 bodies, return
+        assertEquals(23, c.nblocks);
+    }
+
+    @Test
+    public void exceptionStillCounts() throws Exception {
+        VFXMetrics.resetStats();
+        assertEquals(1, call("check", 1));
+        VFXMetrics.Counters c = VFXMetrics.counters();
+        assertEquals(1, c.nmethods);
+        assertEquals(2, c.nblocks);
+        long returned = c.ninsts;
+
+        VFXMetrics.resetStats();
+        try {
+            call("check", -1);
+            fail();
+        } catch (InvocationTargetException e) {
+            assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+        }
+        assertEquals(1, c.nmethods);
+        assertEquals(2, c.nblocks);
+        // the block that throws is longer than the one that returns
+        assertTrue(c.ninsts > returned);
+    }
+}
@@ -0,0 +1,139 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ulisboa.tecnico.cnv.javassist.tools.fixture.Fixture;
+import pt.ulisboa.tecnico.cnv.javassist.tools.fixture.Square;
+
+/**
+ * Runs the fixture classes instrumented by VFXSampledMetrics, loaded the way
+ * the agent loads them, and checks that they compute the same as without it
+ * and only count when the thread is sampled.
+ */
+public class VFXSampledMetricsTest {
+
+    private static final String FIXTURE = Square.class.getPackage().getName();
+
+    private static final int N = 20;
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static Loader loader;
+    private static Method work;
+
+    /**
+     * Loads the fixture classes itself, instrumented, and the rest through
+     * its parent.
+     */
+    private static class Loader extends ClassLoader {
+        private final AbstractJavassistTool tool;
+
+        Loader(AbstractJavassistTool tool) {
+            super(VFXSampledMetricsTest.class.getClassLoader());
+            this.tool = tool;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.startsWith(FIXTURE)) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                byte[] bytecode = tool.transform(name);
+                assertNotNull("could not instrument " + name, bytecode);
+                loaded = defineClass(name, bytecode, 0, bytecode.length);
+            }
+            return loaded;
+        }
+    }
+
+    @BeforeClass
+    public static void instrument() throws Exception {
+        VFXSampledMetrics tool = new VFXSampledMetrics(Collections.singletonList(FIXTURE), folder.getRoot().getPath());
+        loader = new Loader(tool);
+        Class<?> square = loader.loadClass(Square.class.getName());
+        work = square.getMethod("work", int.class);
+    }
+
+    @After
+    public void unsample() {
+        VFXMetrics.setSampled(false);
+    }
+
+    @Test
+    public void sampledAndNotComputeTheSame() throws Exception {
+        int expected = Square.work(N);
+
+        VFXMetrics.setSampled(false);
+        VFXMetrics.resetStats();
+        assertEquals(expected, work.invoke(null, N));
+        long unsampled = VFXMetrics.counters().nmethods;
+
+        VFXMetrics.setSampled(true);
+        VFXMetrics.resetStats();
+        assertEquals(expected, work.invoke(null, N));
+        long sampled = VFXMetrics.counters().nmethods;
+
+        // only the constructors and the interface methods, which have no
+        // copy, count outside sampled requests: corners and count per square
+        assertEquals(3 * N + 1 + 2 * N, unsampled);
+        assertTrue(sampled > 10 * N);
+    }
+
+    @Test
+    public void unsampledRunsNoTiming() throws Exception {
+        Method triangle = work.getDeclaringClass().getMethod("triangle", int.class);
+
+        VFXMetrics.setSampled(true);
+        VFXMetrics.resetStats();
+        assertEquals(500500L, triangle.invoke(null, 1000));
+        assertTrue(VFXMetrics.counters().opTime > 0);
+        assertEquals(1, VFXMetrics.counters().nmethods);
+
+        VFXMetrics.setSampled(false);
+        VFXMetrics.resetStats();
+        assertEquals(500500L, triangle.invoke(null, 1000));
+        assertEquals(0, VFXMetrics.counters().opTime);
+        assertEquals(0, VFXMetrics.counters().nmethods);
+        assertEquals(0, VFXMetrics.counters().nblocks);
+    }
+
+    @Test
+    public void exceptionOnlyCountedWhenSampled() throws Exception {
+        Method check = loader.loadClass(Fixture.class.getName()).getMethod("check", int.class);
+
+        VFXMetrics.setSampled(false);
+        VFXMetrics.resetStats();
+        assertThrown(check);
+        assertEquals(0, VFXMetrics.counters().nmethods);
+
+        VFXMetrics.setSampled(true);
+        VFXMetrics.resetStats();
+        assertThrown(check);
+        assertEquals(1, VFXMetrics.counters().nmethods);
+    }
+
+    private static void assertThrown(Method check) throws Exception {
+        try {
+            check.invoke(null, -1);
+            fail();
+        } catch (InvocationTargetException e) {
+            assertEquals(IllegalArgumentException.class, e.getCause().getClass());
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools.fixture;
+
+/**
+ * Methods instrumented by the tests of the tools.
+ */
+public class Fixture {
+
+    public static int sum(int n) {
+        int s = 0;
+        for (int i = 0; i < n; i++) {
+            s += i;
+        }
+        return s;
+    }
+
+    public static int check(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("negative");
+        }
+        return n;
+    }
+}
@@ -0,0 +1,21 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools.fixture;
+
+/**
+ * Interface with a default and a static method.
+ */
+public interface Shape {
+
+    int sides();
+
+    default int corners() {
+        return count(sides());
+    }
+
+    static int count(int n) {
+        int c = 0;
+        for (int i = 0; i < n; i++) {
+            c++;
+        }
+        return c;
+    }
+}
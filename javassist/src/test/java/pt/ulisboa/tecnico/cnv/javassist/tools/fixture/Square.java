@@ -0,0 +1,77 @@
+package pt.ulisboa.tecnico.cnv.javassist.tools.fixture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Class with bridge methods (compareTo(Object), and get() returning Object),
+ * a lambda and a nested class, for VFXSampledMetrics.
+ */
+public class Square implements Shape, Comparable<Square>, Supplier<Square> {
+
+    static class Total {
+        int value;
+
+        void add(int x) {
+            value += x;
+        }
+    }
+
+    private final int size;
+
+    public Square(int size) {
+        this.size = size;
+    }
+
+    @Override
+    public int sides() {
+        return 4;
+    }
+
+    @Override
+    public int compareTo(Square other) {
+        return Integer.compare(size, other.size);
+    }
+
+    @Override
+    public Square get() {
+        return new Square(size * 2);
+    }
+
+    public int area() {
+        return size * size;
+    }
+
+    public static long triangle(int n) {
+        long sum = 0;
+        for (int i = 0; i <= n; i++) {
+            sum += i;
+        }
+        return sum;
+    }
+
+    public static int sumAreas(int n) {
+        return IntStream.range(0, n).map(i -> new Square(i).area()).sum();
+    }
+
+    /**
+     * Makes 3n + 1 objects of the classes above.
+     */
+    public static int work(int n) {
+        List<Square> squares = new ArrayList<>();
+        for (int i = n; i > 0; i--) {
+            squares.add(new Square(i));
+        }
+        Collections.sort(squares);
+
+        Total total = new Total();
+        for (Square square : squares) {
+            Supplier<Square> supplier = square;
+            total.add(supplier.get().area() + square.corners());
+        }
+        return total.value + sumAreas(n);
+    }
+}
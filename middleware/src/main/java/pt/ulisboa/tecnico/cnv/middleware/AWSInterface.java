@@ -16,6 +16,11 @@ public interface AWSInterface {
      **/
     public Worker forceTerminateInstance();
 
+    /*
+     * Terminate the execution of a given worker.
+     **/
+    public void terminateInstance(Worker worker);
+
     /*
      * Create a new worker.
      **/
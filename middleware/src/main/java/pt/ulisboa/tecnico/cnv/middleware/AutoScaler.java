@@ -1,9 +1,14 @@
 package pt.ulisboa.tecnico.cnv.middleware;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.util.Map;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.amazonaws.auth.EnvironmentVariableCredentialsProvider;
 import com.amazonaws.services.ec2.AmazonEC2;
@@ -29,14 +34,28 @@ public class AutoScaler implements Runnable {
 
     private static final int TIMER = 4000; // 4 seconds
 
+    // longest a worker is given to finish its requests before it is terminated anyway
+    public static long DRAIN_TIMEOUT = System.getenv("DRAIN_TIMEOUT") == null
+            ? 120000 : Long.parseLong(System.getenv("DRAIN_TIMEOUT"));
+
+    // how long each status request to a draining worker waits for completion
+    private static final long DRAIN_POLL = 5000;
+
+    // longest a new worker is given to boot and warm up before it is registered anyway
+    public static long READY_TIMEOUT = System.getenv("READY_TIMEOUT") == null
+            ? 300000 : Long.parseLong(System.getenv("READY_TIMEOUT"));
+
+    private static final long READY_POLL = 1000;
+
+    // workers created and not registered yet
+    private final AtomicInteger starting = new AtomicInteger();
+
     public AutoScaler(AWSDashboard awsDashboard, ASPolicy policy, AWSInterface awsInterface) {
         this.awsDashboard = awsDashboard;
         this.policy = policy;
         this.awsInterface = awsInterface;
 
-        Worker worker = awsInterface.createInstance();
-        System.out.println("Instance created, registering in dashboard");
-        this.awsDashboard.registerInstance(worker);
+        this.launch();
     }
 
     public void run() {
@@ -56,22 +75,151 @@ public class AutoScaler implements Runnable {
         Worker worker;
         switch (policy.evaluate(metrics)) {
             case Increase:
+                if (starting.get() > 0) {
+                    // the capacity asked for is still warming up
+                    System.out.println("Decided to create a new instance, but one is still starting");
+                    break;
+                }
                 System.out.println("Decided to create a new instance");
-                worker = awsInterface.createInstance();
-                System.out.println("Instance created, registering in dashboard");
-                this.awsDashboard.registerInstance(worker);
+                this.launch();
                 break;
             case Reduce:
                 System.out.println("Decided to delete an instance");
-                worker = awsInterface.forceTerminateInstance();
-                System.out.println("Instance destroyed, deregistering in dashboard");
+                Optional<Worker> idlest = idlest(metrics);
+                if (idlest.isEmpty()) {
+                    System.out.println("No worker with a known load to delete");
+                    break;
+                }
+                worker = idlest.get();
+                // stop routing to it first, then let it finish what it has
+                System.out.println("Deregistering instance in dashboard");
                 this.awsDashboard.unregisterInstance(worker);
+                final Worker draining = worker;
+                new Thread(() -> this.drainAndTerminate(draining), "drain-" + worker.getId()).start();
                 break;
             default:
                 break;
         }
     }
 
+    /**
+     * Creates a worker and registers it in the dashboard, so the load
+     * balancer routes to it, once it is ready (warmed up).
+     */
+    private void launch() {
+        Worker worker = awsInterface.createInstance();
+        starting.incrementAndGet();
+        new Thread(() -> {
+            try {
+                awaitReady(worker);
+                System.out.println("Instance ready, registering in dashboard");
+                this.awsDashboard.registerInstance(worker);
+            } finally {
+                starting.decrementAndGet();
+            }
+        }, "ready-" + worker.getId()).start();
+    }
+
+    /**
+     * Polls the worker's /ready until it answers 200, or READY_TIMEOUT.
+     * Workers that have no /ready (404) are taken as ready.
+     */
+    private void awaitReady(Worker worker) {
+        long deadline = System.currentTimeMillis() + READY_TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                String urlStr = "http://" + worker.getIP() + ":" + worker.getPort() + "/ready";
+                URL url = new URL(urlStr);
+                HttpURLConnection con = (HttpURLConnection) url.openConnection();
+                con.setRequestMethod("GET");
+                int status = con.getResponseCode();
+                con.disconnect();
+                if (status == 200 || status == 404) {
+                    return;
+                }
+            } catch (IOException e) {
+                // still booting
+            }
+            try {
+                Thread.sleep(READY_POLL);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+        System.out.printf("Worker %s not ready after %d ms\n", worker.getId(), READY_TIMEOUT);
+    }
+
+    /**
+     * The worker with the fewest requests in flight and queued, as last
+     * reported. Workers whose load is not known (not polled yet, or /load
+     * failed) are not picked, since they may be busy.
+     */
+    private Optional<Worker> idlest(Map<Worker, Optional<AggregateWorkerMetrics>> metrics) {
+        Optional<Worker> idlest = Optional.empty();
+        int min = Integer.MAX_VALUE;
+        for (Map.Entry<Worker, Optional<AggregateWorkerMetrics>> entry : metrics.entrySet()) {
+            if (entry.getValue().isEmpty() || !entry.getValue().get().hasLoad()) {
+                continue;
+            }
+            AggregateWorkerMetrics m = entry.getValue().get();
+            int load = m.getInFlight() + m.getQueued();
+            if (load < min) {
+                idlest = Optional.of(entry.getKey());
+                min = load;
+            }
+        }
+        return idlest;
+    }
+
+    /**
+     * Tells the worker to drain and terminates it once it has answered every
+     * request it accepted, or after DRAIN_TIMEOUT.
+     */
+    private void drainAndTerminate(Worker worker) {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        try {
+            boolean drained = drain(worker, "POST", 0);
+            while (!drained && System.currentTimeMillis() < deadline) {
+                long wait = Math.min(DRAIN_POLL, Math.max(1, deadline - System.currentTimeMillis()));
+                drained = drain(worker, "GET", wait);
+            }
+            if (!drained) {
+                System.out.printf("Worker %s did not drain in %d ms\n", worker.getId(), DRAIN_TIMEOUT);
+            }
+        } catch (IOException e) {
+            // nothing to wait for if the worker cannot be reached
+            System.out.printf("Could not drain worker %s: %s\n", worker.getId(), e.getMessage());
+        }
+
+        awsInterface.terminateInstance(worker);
+        System.out.printf("Instance %s destroyed\n", worker.getId());
+    }
+
+    /**
+     * Calls the worker's /drain, waiting up to wait ms for it to complete;
+     * returns whether it has.
+     */
+    private boolean drain(Worker worker, String method, long wait) throws IOException {
+        String urlStr = "http://" + worker.getIP() + ":" + worker.getPort() + "/drain?wait=" + wait;
+        URL url = new URL(urlStr);
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod(method);
+
+        ObjectInputStream in = new ObjectInputStream(con.getInputStream());
+        in.readBoolean();
+        boolean drained = in.readBoolean();
+        int open = in.readInt();
+        int inFlight = in.readInt();
+        int queued = in.readInt();
+        in.close();
+        con.disconnect();
+
+        System.out.printf("Draining %s: %d requests open (%d in flight, %d queued)\n",
+                worker.getId(), open, inFlight, queued);
+        return drained;
+    }
+
     public void start() {
         daemon = new Thread(this);
         daemon.start();
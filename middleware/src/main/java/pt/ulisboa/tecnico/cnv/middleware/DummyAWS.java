@@ -8,6 +8,7 @@ import pt.ulisboa.tecnico.cnv.imageproc.EnhanceImageHandler;
 import pt.ulisboa.tecnico.cnv.middleware.Utils.Pair;
 import pt.ulisboa.tecnico.cnv.common.Handler;
 import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetricCodec;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
@@ -23,8 +24,6 @@ import java.util.Random;
 import java.util.Stack;
 import java.util.Base64;
 import java.io.FileInputStream;
-import java.io.ObjectInputStream;
-import java.io.EOFException;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 
@@ -32,6 +31,8 @@ public class DummyAWS implements AWSInterface {
     private Stack<DummyWorker> workers;
     private Stack<Process> processes;
     private Map<String, Handler> handlers;
+    // ids are never reused, since workers can be terminated out of order
+    private int nextId;
 
     public DummyAWS() {
         this.processes = new Stack<>();
@@ -50,8 +51,8 @@ public class DummyAWS implements AWSInterface {
         return this.handlers.get(name);
     }
 
-    public Worker createInstance() {
-        int id = this.processes.size();
+    public synchronized Worker createInstance() {
+        int id = this.nextId++;
         int port = 9000 + id;
         System.out.printf("Launching instance on %d\n", port);
         ProcessBuilder processBuilder = new ProcessBuilder("launchInstance.sh", String.valueOf(port));
@@ -68,7 +69,7 @@ public class DummyAWS implements AWSInterface {
         return worker;
     }
 
-    public Worker forceTerminateInstance() {
+    public synchronized Worker forceTerminateInstance() {
         if (processes.size() == 0) {
             throw new RuntimeException("No instances to terminate");
         }
@@ -77,12 +78,25 @@ public class DummyAWS implements AWSInterface {
         return workers.pop();
     }
 
+    public synchronized void terminateInstance(Worker worker) {
+        int index = workers.indexOf(worker);
+        if (index < 0) {
+            throw new RuntimeException("No such instance " + worker.getId());
+        }
+
+        processes.remove(index).destroy();
+        workers.remove(index);
+    }
+
     public Optional<Pair<String, Integer>> callLambda(String lambdaName, String json) {
         // System.out.printf("lambda %s called with %s (%b)\n", lambdaName, json, lambdaName.equals("raytracer"));
         if (this.handlers.containsKey(lambdaName)) {
             // do similar to what lambda will do
             try {
                 JSONObject event = (JSONObject) JSONValue.parse(json);
+                if (event.containsKey("ping")) {
+                    return Optional.of(new Pair<>("pong", 200));
+                }
                 URI requestedUri = new URI((String) event.get("uri"));
                 InputStream stream = new ByteArrayInputStream(Base64.getDecoder().decode((String) event.get("body")));
                 String response = this.getHandlerFor(lambdaName).actuallyHandle(requestedUri, stream);
@@ -100,21 +114,11 @@ public class DummyAWS implements AWSInterface {
         String wid = w.getId();
         String filename = String.format("/tmp/dynamoDummy-%s.dsa", w.getPort());
         try (FileInputStream fis = new FileInputStream(filename)) {
-            ObjectInputStream ois = new ObjectInputStream(fis);
-
-            List<WorkerMetric> metrics = new ArrayList<>();
-            while (true) {
-                try {
-                    WorkerMetric metric = (WorkerMetric) ois.readObject();
-                    if (metric.getSeq() >= since) {
-                        metrics.add((WorkerMetric) ois.readObject());
-                    }
-                } catch (EOFException e) {
-                    break;
-                }
-            }
+            // the worker may be in the middle of a write, a metric cut short is skipped
+            List<WorkerMetric> metrics = WorkerMetricCodec.readAll(fis);
+            metrics.removeIf(metric -> metric.getSeq() < since);
             return metrics;
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
@@ -20,6 +20,10 @@ public class EnhanceLambda implements RequestHandler<Map<String, String>, String
 
     @Override
     public String handleRequest(Map<String,String> event, Context context) {
+        // keep-warm ping (see LambdaWarmer): keeps the container, does no work
+        if (event.containsKey("ping")) {
+            return LambdaWarmer.pong(event);
+        }
         try {
             URI requestedUri = new URI(event.get("uri"));
             InputStream stream = new ByteArrayInputStream(Base64.getDecoder().decode(event.get("body")));
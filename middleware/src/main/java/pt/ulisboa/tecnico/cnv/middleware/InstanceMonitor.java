@@ -41,11 +41,19 @@ public class InstanceMonitor implements Runnable {
     // Maps worker id to last read metric
     private Map<String, Long> lastRead = new HashMap<>();
 
+    // workers whose metrics are pushed to us are not polled
+    private MetricStreamClient streamClient;
+
     public InstanceMonitor(AWSDashboard awsDashboard, AWSInterface awsInterface){
         this.awsDashboard = awsDashboard;
         this.awsInterface = awsInterface;
     }
 
+    public InstanceMonitor(AWSDashboard awsDashboard, AWSInterface awsInterface, MetricStreamClient streamClient){
+        this(awsDashboard, awsInterface);
+        this.streamClient = streamClient;
+    }
+
     public double getCpuUsage(Worker worker) {
         try {
             // get cpu usage of an instance
@@ -80,15 +88,46 @@ public class InstanceMonitor implements Runnable {
         }
     }
 
+    /**
+     * In flight requests, queued requests and the limits of both, as reported
+     * by the worker, or zeros if it could not be reached.
+     */
+    public int[] getLoad(Worker worker) {
+        try {
+            String urlStr = "http://" + worker.getIP() + ":" + worker.getPort() + "/load";
+            URL url = new URL(urlStr);
+            HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            con.setRequestMethod("GET");
+
+            ObjectInputStream in = new ObjectInputStream(con.getInputStream());
+            int[] load = new int[] { in.readInt(), in.readInt(), in.readInt(), in.readInt() };
+            in.close();
+            con.disconnect();
+
+            System.out.printf("Load of %s: %d in flight, %d queued (limits %d, %d)\n",
+                    worker.getId(), load[0], load[1], load[2], load[3]);
+            return load;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new int[4];
+        }
+    }
+
     private void update() throws IOException, ClassNotFoundException {
         System.out.printf("Updating metrics on replicas (there are %d)\n", awsDashboard.getMetrics().size());
         for(Worker worker : this.awsDashboard.getMetrics().keySet()) {
             System.out.printf("Looking at worker with id %s\n", worker.getId());
+            if (this.streamClient != null && this.streamClient.isConnected(worker)) {
+                System.out.printf("Worker %s is streaming its metrics, not polling\n", worker.getId());
+                continue;
+            }
 
             System.out.printf("Getting CPU usage for worker %s\n", worker.getId());
             double cpuUsage = this.getCpuUsage(worker);
             System.out.printf("CPU usage for worker %s is %f\n", worker.getId(), cpuUsage);
 
+            int[] load = this.getLoad(worker);
+
             // get metrics from workers
             System.out.printf("Getting metrics for worker %s\n", worker.getId());
             List<WorkerMetric> metric = this.getMetric(worker);
@@ -100,7 +139,7 @@ public class InstanceMonitor implements Runnable {
             
             // update the metrics
             System.out.printf("Saving metrics for worker %s\n", worker.getId());
-            this.awsDashboard.updateMetrics(worker, new AggregateWorkerMetrics(metric, worker.getId(), cpuUsage));
+            this.awsDashboard.updateMetrics(worker, new AggregateWorkerMetrics(metric, worker.getId(), cpuUsage, load));
         }
     }
 
@@ -0,0 +1,65 @@
+package pt.ulisboa.tecnico.cnv.middleware;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+
+/**
+ * Runs a Lambda handler class the way the Lambda runtime does, in this JVM,
+ * to measure cold starts locally:
+ *
+ *   java -cp middleware-jar-with-dependencies.jar \
+ *       pt.ulisboa.tecnico.cnv.middleware.LambdaHarness <handler class> <uri> <body file> [warm invocations]
+ *
+ * The body file holds the HTTP request body the load balancer would forward
+ * (e.g. {"scene": ...} for the ray tracer, a data URL for the image
+ * handlers). Prints, in ms, the JVM start, the handler construction (the
+ * Lambda init phase), the first invocation and the median of the warm
+ * invocations. Run it in a fresh JVM for every measurement (see
+ * scripts/lambda-coldstart.sh).
+ */
+public class LambdaHarness {
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("usage: LambdaHarness <handler class> <uri> <body file> [warm invocations]");
+            System.exit(1);
+        }
+        int warm = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        Map<String, String> event = new HashMap<>();
+        event.put("uri", args[1]);
+        event.put("body", Base64.getEncoder().encodeToString(Files.readAllBytes(Paths.get(args[2]))));
+
+        // up to main: JVM boot and loading this class
+        long jvm = ManagementFactory.getRuntimeMXBean().getUptime();
+
+        long start = System.nanoTime();
+        RequestHandler<Map<String, String>, String> handler = (RequestHandler<Map<String, String>, String>)
+                Class.forName(args[0]).getDeclaredConstructor().newInstance();
+        long init = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        handler.handleRequest(event, null);
+        long first = System.nanoTime() - start;
+
+        long[] times = new long[warm];
+        for (int i = 0; i < warm; i++) {
+            start = System.nanoTime();
+            handler.handleRequest(event, null);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        double median = warm == 0 ? 0 : times[warm / 2] / 1e6;
+
+        System.out.printf("%s: jvm %d ms, init %.1f ms, first %.1f ms, warm median %.1f ms (%d invocations)\n",
+                args[0], jvm, init / 1e6, first / 1e6, median, warm);
+    }
+}
@@ -0,0 +1,98 @@
+package pt.ulisboa.tecnico.cnv.middleware;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps Lambda containers warm by pinging every function each PING_MS, so
+ * the load balancer's overflow to Lambda does not pay a cold start right
+ * when the workers are saturated.
+ *
+ * Each round sends CONCURRENCY pings to each function at once; the
+ * functions answer them without doing any work, but hold the answer for
+ * HOLD_MS when there are several, so the pings overlap and keep that many
+ * containers alive. Off unless LAMBDA_PING_MS is set.
+ */
+public class LambdaWarmer implements Runnable {
+
+    // 0 disables pinging; Lambda reclaims idle containers after some minutes
+    public static long PING_MS = System.getenv("LAMBDA_PING_MS") == null
+            ? 0 : Long.parseLong(System.getenv("LAMBDA_PING_MS"));
+
+    // containers kept warm per function
+    public static int CONCURRENCY = System.getenv("LAMBDA_PING_CONCURRENCY") == null
+            ? 1 : Integer.parseInt(System.getenv("LAMBDA_PING_CONCURRENCY"));
+
+    private static final String[] FUNCTIONS = { "raytracer", "blurimage", "enhanceimage" };
+
+    // long enough for concurrent pings to land on different containers
+    private static final long HOLD_MS = 100;
+
+    private static final String PING = String.format("{\"ping\": \"true\", \"hold\": \"%d\"}",
+            CONCURRENCY > 1 ? HOLD_MS : 0);
+
+    private final AWSInterface awsInterface;
+
+    public LambdaWarmer(AWSInterface awsInterface) {
+        this.awsInterface = awsInterface;
+    }
+
+    /**
+     * Answer of a function to a ping event.
+     */
+    public static String pong(Map<String, String> event) {
+        long hold = Long.parseLong(event.getOrDefault("hold", "0"));
+        if (hold > 0) {
+            try {
+                Thread.sleep(Math.min(hold, 1000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return "pong";
+    }
+
+    public void start() {
+        if (PING_MS > 0) {
+            Thread daemon = new Thread(this, "lambda-warmer");
+            daemon.setDaemon(true);
+            daemon.start();
+        }
+    }
+
+    public void run() {
+        ExecutorService pool = Executors.newFixedThreadPool(FUNCTIONS.length * CONCURRENCY);
+        while (true) {
+            long start = System.currentTimeMillis();
+            List<Future<?>> pings = new ArrayList<>();
+            for (String function : FUNCTIONS) {
+                for (int i = 0; i < CONCURRENCY; i++) {
+                    pings.add(pool.submit(() -> awsInterface.callLambda(function, PING)));
+                }
+            }
+            for (Future<?> ping : pings) {
+                try {
+                    ping.get();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    return;
+                } catch (ExecutionException e) {
+                    System.out.printf("Lambda ping failed: %s\n", e.getCause());
+                }
+            }
+            System.out.printf("Pinged %d lambdas in %d ms\n", pings.size(), System.currentTimeMillis() - start);
+
+            try {
+                Thread.sleep(PING_MS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+}
@@ -8,8 +8,10 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.sun.net.httpserver.HttpHandler;
@@ -45,7 +47,7 @@ public class LoadBalancer implements HttpHandler, Runnable {
 
     private Thread daemon;
 
-    private Map<Worker, Queue<Job>> status = new HashMap<>();
+    private Map<Worker, Queue<Job>> status = new ConcurrentHashMap<>();
 
     public LoadBalancer(AWSDashboard awsDashboard, AWSInterface awsInterface) {
         this.awsDashboard = awsDashboard;
@@ -70,26 +72,14 @@ public class LoadBalancer implements HttpHandler, Runnable {
 
     /*
      * Notifies load balancer of imminent destruction of a worker.
-     * Blocks until load balancer ensure that no requests are running on the
-     * about-to-be-destructed worker.
+     * Stops routing new requests to it; requests already forwarded run to the
+     * end, since the worker is drained before it is terminated (see
+     * AutoScaler).
      */
     public void deregisterWorker(Worker worker) {
-        if (!this.status.containsKey(worker)) {
+        if (this.status.remove(worker) == null) {
             throw new RuntimeException("Trying to remove existing worker.");
         }
-
-        // wait for worker queue to be empty
-        Queue<Job> q = this.status.remove(worker);
-        while (q.size() > 0) {
-            try {
-                Thread.sleep(100);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-
-            }
-        }
-
-        this.status.remove(worker);
     }
 
 
@@ -104,19 +94,25 @@ public class LoadBalancer implements HttpHandler, Runnable {
 
         try {
             boolean good = false;
-            int tries = 0;
+            // workers that rejected or failed the request, or left meanwhile
+            Set<Worker> excluded = new HashSet<>();
             byte[] content = exchange.getRequestBody().readAllBytes();
-            while (!good && tries < 3) {
+            while (!good) {
                 InputStream copy = new ByteArrayInputStream(content);
                 exchange.setStreams(copy, null);
 
-                tries += 1;
                 if (!optWorker.isPresent()) {
                     System.out.println("No good workers available, invoking lambda");
                     good = invokeLambda(exchange);
-                } else {
-                    System.out.println("Worker selected, forwarding the request");
-                    good = forwardTo(optWorker.get(), exchange);
+                    break;
+                }
+                System.out.println("Worker selected, forwarding the request");
+                Worker worker = optWorker.get();
+                good = forwardTo(worker, exchange);
+                if (!good) {
+                    // try the other workers before falling back to a lambda
+                    excluded.add(worker);
+                    optWorker = this.policy.choose(exchange, this.awsDashboard.getMetrics(), excluded);
                 }
             }
 
@@ -132,13 +128,21 @@ public class LoadBalancer implements HttpHandler, Runnable {
 
 
     /**
-     * Invokes lambda to handle request.
+     * Invokes lambda to handle request. The image functions only understand
+     * data URLs, so a raw image body (Content-Type image/*) is sent to them as
+     * one, and the image in the data URL they answer is sent back raw, as a
+     * worker would.
      */
     private boolean invokeLambda(HttpExchange exchange) throws IOException {
 
         System.out.println("Invoke lambda called");
         String lambdaName = exchange.getRequestURI().toString().split("\\?")[0].substring(1);
-        String json = encodeRequestAsJson(exchange);
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String imageType = contentType == null ? null : contentType.split(";")[0].trim();
+        if (imageType != null && !imageType.startsWith("image/")) {
+            imageType = null;
+        }
+        String json = encodeRequestAsJson(exchange, imageType);
         Optional<Pair<String, Integer>> lambdaResponse = this.awsInterface.callLambda(lambdaName, json);
 
         if (lambdaResponse.isEmpty()) {
@@ -147,6 +151,19 @@ public class LoadBalancer implements HttpHandler, Runnable {
 
         String response = lambdaResponse.get().getKey();
 
+        if (imageType != null && lambdaResponse.get().getValue() == 200) {
+            byte[] image = imageFromLambdaResponse(response);
+            if (image == null) {
+                exchange.sendResponseHeaders(502, -1);
+            } else {
+                exchange.getResponseHeaders().add("Content-Type", imageType);
+                exchange.sendResponseHeaders(200, image.length);
+                exchange.getResponseBody().write(image);
+            }
+            exchange.close();
+            return true;
+        }
+
         exchange.sendResponseHeaders(lambdaResponse.get().getValue(), response.length());
         OutputStream os = exchange.getResponseBody();
         os.write(response.getBytes());
@@ -155,9 +172,17 @@ public class LoadBalancer implements HttpHandler, Runnable {
     }
 
     /*
-     * Forwards request to running worker.
+     * Forwards request to running worker. Returns false, with nothing sent to
+     * the client, if the worker could not be reached or answered 503; any
+     * other answer is relayed as is.
      */
     private boolean forwardTo(Worker worker, HttpExchange exchange) throws IOException {
+        // the worker may be deregistered meanwhile, keep its queue at hand
+        Queue<Job> jobs = this.status.get(worker);
+        if (jobs == null) {
+            return false;
+        }
+
         System.out.printf("Forwarding request to worker %s\n", worker.getId());
         System.out.printf("The method is %s\n", exchange.getRequestMethod());
 
@@ -176,35 +201,75 @@ public class LoadBalancer implements HttpHandler, Runnable {
             }
         }
 
-        // copy exchange body to forwarded connection
-        if (exchange.getRequestBody() != null) {
-            // mark that application wants to write data to connection
-            forwardCon.setDoOutput(true); 
-            forwardCon.getOutputStream().write(exchange.getRequestBody().readAllBytes());
-            forwardCon.getOutputStream().close();
-        }
-
+        // the worker runs cheaper queued requests first
+        long estimate = estimator.estimate(exchange);
+        forwardCon.setRequestProperty("X-Estimated-Cost", String.valueOf(estimate));
 
         long start = System.nanoTime();
-        forwardCon.connect();
-
-        Job job = new Job(worker, estimator.estimate(exchange));
-        this.status.get(worker).add(job);
-
-        System.out.println("Waiting for worker to do its thing");
+        Job job = new Job(worker, estimate);
+        jobs.add(job);
+
+        // get the response from worker (503 if its admission queue is full or
+        // it is draining, with or without X-Draining); nothing was sent to the
+        // client yet, so the request can be retried elsewhere if the worker is
+        // gone or did not take it
+        int responseCode;
+        try {
+            // copy exchange body to forwarded connection
+            if (exchange.getRequestBody() != null) {
+                // mark that application wants to write data to connection
+                forwardCon.setDoOutput(true); 
+                forwardCon.getOutputStream().write(exchange.getRequestBody().readAllBytes());
+                forwardCon.getOutputStream().close();
+            }
 
-        // get the response from worker
-        InputStream responseStream = forwardCon.getInputStream();
+            forwardCon.connect();
 
-        if (forwardCon.getResponseCode() != 200) {
+            System.out.println("Waiting for worker to do its thing");
+            responseCode = forwardCon.getResponseCode();
+        } catch (IOException e) {
+            System.out.printf("Worker %s failed: %s\n", worker.getId(), e.getMessage());
+            jobs.remove(job);
+            return false;
+        }
+        // only a worker that is full or draining did not take the request;
+        // any other answer (e.g. 400 or 500 for an image that cannot be
+        // decoded) would be the same elsewhere, so it goes to the client
+        if (responseCode == 503) {
+            System.out.printf("Worker %s answered %d\n", worker.getId(), responseCode);
+            jobs.remove(job);
+            forwardCon.disconnect();
             return false;
         }
+        InputStream responseStream = responseCode >= 400 ? forwardCon.getErrorStream() : forwardCon.getInputStream();
+
+        // update information with actual time taken, unless the request failed
+        // or the worker served the response from its result cache or from an
+        // identical request in progress (the time says nothing about the cost)
+        String cache = forwardCon.getHeaderField("X-Cache");
+        String coalesced = forwardCon.getHeaderField("X-Coalesced");
+        if (responseCode == 200 && !"HIT".equals(cache) && coalesced == null) {
+            this.estimator.updateInfo(exchange,  System.nanoTime() - start);
+        }
+        if (cache != null) {
+            exchange.getResponseHeaders().add("X-Cache", cache);
+        }
 
-        // update information with actual time taken
-        this.estimator.updateInfo(exchange,  System.nanoTime() - start);
+        // binary image responses need their content type
+        String contentType = forwardCon.getContentType();
+        if (contentType != null) {
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+        }
 
-        // copy response code
-        exchange.sendResponseHeaders(forwardCon.getResponseCode(), 0);
+        // copy response code; error answers may have no body at all
+        if (responseStream == null) {
+            jobs.remove(job);
+            exchange.sendResponseHeaders(responseCode, -1);
+            exchange.close();
+            forwardCon.disconnect();
+            return true;
+        }
+        exchange.sendResponseHeaders(responseCode, 0);
 
         // get the output stream to write the response back to the original client
         OutputStream outputStream = exchange.getResponseBody();
@@ -212,13 +277,14 @@ public class LoadBalancer implements HttpHandler, Runnable {
         // relay the response back to the original client
         byte[] buffer = new byte[4096];
         int bytesRead;
-        while ((bytesRead = responseStream.read(buffer)) != -1) {
-            outputStream.write(buffer, 0, bytesRead);
+        try {
+            while ((bytesRead = responseStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+        } finally {
+            jobs.remove(job);
         }
 
-        while (this.status.get(worker).peek() != job) {}
-        this.status.get(worker).poll();
-
         System.out.println("Got response from worker");
 
 
@@ -251,12 +317,39 @@ public class LoadBalancer implements HttpHandler, Runnable {
 
     /**
      * Encodes HTTP request 
+     *
+     * @param imageType media type of a raw image body, which is turned into a
+     *        data URL, or null to send the body as it is
      */
-    private String encodeRequestAsJson(HttpExchange exchange) throws IOException {
+    private String encodeRequestAsJson(HttpExchange exchange, String imageType) throws IOException {
         String uri = exchange.getRequestURI().toString();
         byte[] body = exchange.getRequestBody().readAllBytes();
+        if (imageType != null) {
+            body = String.format("data:%s;base64,%s", imageType, Base64.getEncoder().encodeToString(body))
+                    .getBytes(StandardCharsets.US_ASCII);
+        }
         String bodyEncoded = Base64.getEncoder().encodeToString(body);
 
         return String.format("{\"uri\": \"%s\", \"body\": \"%s\"}", uri, bodyEncoded);
     }
+
+    /**
+     * Image in the data URL an image function answered, or null if the
+     * response is not one. The response is the base64 of the function's
+     * payload, a JSON string.
+     */
+    private static byte[] imageFromLambdaResponse(String response) {
+        try {
+            String payload = new String(Base64.getDecoder().decode(response), StandardCharsets.US_ASCII);
+            // neither the data URL prefix nor base64 has quotes or escapes
+            String dataUrl = payload.replace("\"", "").replace("\\", "").trim();
+            int comma = dataUrl.indexOf(',');
+            if (!dataUrl.startsWith("data:image/") || comma < 0) {
+                return null;
+            }
+            return Base64.getDecoder().decode(dataUrl.substring(comma + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
 }
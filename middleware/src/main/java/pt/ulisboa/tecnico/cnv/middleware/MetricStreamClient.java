@@ -0,0 +1,165 @@
+package pt.ulisboa.tecnico.cnv.middleware;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import pt.ulisboa.tecnico.cnv.common.WorkerMetricCodec;
+import pt.ulisboa.tecnico.cnv.middleware.metrics.AggregateWorkerMetrics;
+
+/**
+ * Keeps a /stream connection open to every registered worker and updates
+ * the dashboard on every frame the worker pushes (see the worker's
+ * StreamHandler), so the balancer and autoscaler see completed requests and
+ * load within milliseconds instead of once per InstanceMonitor poll.
+ *
+ * The metrics of a worker's aggregate are those completed in the last
+ * WINDOW_MS, the same span InstanceMonitor reports per poll. While a
+ * worker's stream is up, InstanceMonitor leaves the worker alone; if the
+ * stream drops, it is reopened after RECONNECT_MS and polling covers the
+ * gap.
+ *
+ * Each stream keeps one aggregate, handed to the dashboard once and then
+ * updated in place: metrics are added as they arrive and dropped as they
+ * leave the window, and every load frame replaces the load.
+ */
+public class MetricStreamClient {
+
+    private static final int METRIC = 1;
+    private static final int LOAD = 2;
+
+    // span of completed requests kept per worker
+    private static long WINDOW_MS = System.getenv("STREAM_WINDOW_MS") == null
+            ? 5000 : Long.parseLong(System.getenv("STREAM_WINDOW_MS"));
+
+    private static final long RECONNECT_MS = 1000;
+
+    // a stream with no frame for this long is considered dead
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    private final AWSDashboard awsDashboard;
+
+    private final Map<String, Thread> streams = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> connected = new ConcurrentHashMap<>();
+
+    public MetricStreamClient(AWSDashboard awsDashboard) {
+        this.awsDashboard = awsDashboard;
+    }
+
+    public void start() {
+        this.awsDashboard.registerRegisterWorker(this::open);
+        this.awsDashboard.registerDeregisterWorker(this::close);
+    }
+
+    /**
+     * Whether the worker's stream is up, so its metrics are current.
+     */
+    public boolean isConnected(Worker worker) {
+        return this.connected.getOrDefault(worker.getId(), false);
+    }
+
+    private void open(Worker worker) {
+        Thread thread = new Thread(() -> follow(worker), "stream-" + worker.getId());
+        thread.setDaemon(true);
+        if (this.streams.putIfAbsent(worker.getId(), thread) == null) {
+            thread.start();
+        }
+    }
+
+    private void close(Worker worker) {
+        Thread thread = this.streams.remove(worker.getId());
+        this.connected.remove(worker.getId());
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void follow(Worker worker) {
+        while (this.streams.get(worker.getId()) == Thread.currentThread()) {
+            try {
+                read(worker);
+            } catch (IOException e) {
+                System.out.printf("Metric stream from %s failed: %s\n", worker.getId(), e.getMessage());
+            } finally {
+                this.connected.remove(worker.getId());
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void read(Worker worker) throws IOException {
+        double cpuUsage = identify(worker);
+
+        String urlStr = "http://" + worker.getIP() + ":" + worker.getPort() + "/stream";
+        HttpURLConnection con = (HttpURLConnection) new URL(urlStr).openConnection();
+        con.setRequestMethod("GET");
+        con.setReadTimeout(READ_TIMEOUT_MS);
+
+        // updated in place as frames arrive; published once the first frames are read
+        AggregateWorkerMetrics aggregate = new AggregateWorkerMetrics(new ArrayList<>(), worker.getId(), cpuUsage, new int[4]);
+        Deque<Long> arrivals = new ArrayDeque<>();
+        boolean published = false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(con.getInputStream()))) {
+            System.out.printf("Metric stream from %s open\n", worker.getId());
+            this.connected.put(worker.getId(), true);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                int type = in.readUnsignedByte();
+                long now = System.currentTimeMillis();
+                if (type == METRIC) {
+                    aggregate.addMetric(WorkerMetricCodec.read(in));
+                    arrivals.addLast(now);
+                } else if (type == LOAD) {
+                    int[] load = new int[] { in.readInt(), in.readInt(), in.readInt(), in.readInt() };
+                    aggregate.setLoad(in.readDouble(), load);
+                } else {
+                    throw new IOException("unknown frame type " + type);
+                }
+
+                while (!arrivals.isEmpty() && arrivals.peekFirst() < now - WINDOW_MS) {
+                    arrivals.removeFirst();
+                    aggregate.removeOldest();
+                }
+
+                // publish once the frames that arrived together are read,
+                // unless the worker was deregistered meanwhile
+                if (!published && in.available() == 0 && this.streams.get(worker.getId()) == Thread.currentThread()) {
+                    this.awsDashboard.updateMetrics(worker, aggregate);
+                    published = true;
+                }
+            }
+        } finally {
+            con.disconnect();
+        }
+    }
+
+    /**
+     * Tells the worker its id through /cpuUsage, as InstanceMonitor's polls
+     * do, and returns the CPU usage it answers.
+     */
+    private double identify(Worker worker) throws IOException {
+        String urlStr = "http://" + worker.getIP() + ":" + worker.getPort() + "/cpuUsage?id=" + worker.getId();
+        HttpURLConnection con = (HttpURLConnection) new URL(urlStr).openConnection();
+        con.setRequestMethod("GET");
+        con.setReadTimeout(READ_TIMEOUT_MS);
+        try (ObjectInputStream in = new ObjectInputStream(con.getInputStream())) {
+            return in.readDouble();
+        } finally {
+            con.disconnect();
+        }
+    }
+}
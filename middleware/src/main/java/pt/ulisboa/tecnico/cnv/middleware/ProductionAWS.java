@@ -159,7 +159,13 @@ public class ProductionAWS implements AWSInterface {
             throw new RuntimeException("No worker to terminate.");
         }
 
-        Worker abstractWorker = optWorker.get();
+        Worker worker = optWorker.get();
+        this.terminateInstance(worker);
+        return worker;
+    }
+
+    // terminate a given instance
+    public void terminateInstance(Worker abstractWorker) {
         ProductionWorker worker = (ProductionWorker) abstractWorker;
         Instance instance = worker.getInstance();
 
@@ -170,7 +176,6 @@ public class ProductionAWS implements AWSInterface {
         if (result.getTerminatingInstances().size() != 1) {
             throw new RuntimeException("Failed to terminate instance.");
         }
-        return worker;
     }
 
     public Optional<Pair<String, Integer>> callLambda(String functionName, String jsonPayload) {
@@ -183,7 +188,8 @@ public class ProductionAWS implements AWSInterface {
             System.out.printf("About to invoke\n");
             InvokeResult result = this.lambdaClient.invoke(invokeRequest);
             System.out.printf("Got result\n");
-            int statusCode = result.getStatusCode();
+            // a function that threw still comes back with 200, the error is flagged apart
+            int statusCode = result.getFunctionError() == null ? result.getStatusCode() : 500;
             ByteBuffer buffer = result.getPayload();
             byte[] bytes = new byte[buffer.remaining()];
             buffer.get(bytes);
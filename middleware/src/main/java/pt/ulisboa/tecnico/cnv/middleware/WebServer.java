@@ -40,7 +40,14 @@ public class WebServer {
         loadBalancer.start();
         System.out.println("LoadBalancer started on port 8000...");
 
-        InstanceMonitor instanceMonitor = new InstanceMonitor(awsDashboard, awsInterface);
+        MetricStreamClient streamClient = new MetricStreamClient(awsDashboard);
+        streamClient.start();
+        System.out.println("Metric streams started");
+
+        LambdaWarmer lambdaWarmer = new LambdaWarmer(awsInterface);
+        lambdaWarmer.start();
+
+        InstanceMonitor instanceMonitor = new InstanceMonitor(awsDashboard, awsInterface, streamClient);
         instanceMonitor.start();
         System.out.println("Instance monitor started");
     }
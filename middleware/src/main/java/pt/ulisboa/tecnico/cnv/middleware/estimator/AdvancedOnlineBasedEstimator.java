@@ -54,6 +54,9 @@ public class AdvancedOnlineBasedEstimator implements Estimator {
     // update rate
     private double XI = 0.9;
 
+    // cost feature of blur and enhance requests
+    private final ImageMegapixels megapixels = new ImageMegapixels(XI);
+
     private static int REFLEXIVE_WEIGHT = 5;
     private static int TRANSMITTIVE_WEIGHT = 5;
 
@@ -63,15 +66,15 @@ public class AdvancedOnlineBasedEstimator implements Estimator {
     }
 
     public long estimateBlur(HttpExchange exchange) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        System.out.println("Estimating Blur: BodySize = " + bodySize + ", Alpha = " + alpha + ", Estimate = " + this.alpha * bodySize);
-        return (long) (this.alpha * bodySize);
+        double megapixels = this.megapixels.of(exchange);
+        System.out.println("Estimating Blur: Megapixels = " + megapixels + ", Alpha = " + alpha + ", Estimate = " + this.alpha * megapixels);
+        return (long) (this.alpha * megapixels);
     }
 
     public long estimateEnhance(HttpExchange exchange) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        System.out.println("Estimating Enhance: BodySize = " + bodySize + ", Beta = " + beta + ", Estimate = " + this.beta * bodySize);
-        return (long) (this.beta * bodySize);
+        double megapixels = this.megapixels.of(exchange);
+        System.out.println("Estimating Enhance: Megapixels = " + megapixels + ", Beta = " + beta + ", Estimate = " + this.beta * megapixels);
+        return (long) (this.beta * megapixels);
     }
 
     public long estimateRayTracer(HttpExchange exchange) {
@@ -125,19 +128,19 @@ public class AdvancedOnlineBasedEstimator implements Estimator {
     }
 
     public void updateBlur(HttpExchange exchange, long time) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        this.nblur = this.nblur * XI + (1 - XI) * (time * bodySize);
-        this.dblur = this.dblur * XI + (1 - XI) * (bodySize * bodySize);
+        double megapixels = this.megapixels.update(exchange);
+        this.nblur = this.nblur * XI + (1 - XI) * (time * megapixels);
+        this.dblur = this.dblur * XI + (1 - XI) * (megapixels * megapixels);
         this.alpha = this.nblur / this.dblur;
-        System.out.println("Updating Blur: BodySize = " + bodySize + ", Time = " + time + ", NBlur = " + nblur + ", DBlur = " + dblur + ", Alpha = " + alpha);
+        System.out.println("Updating Blur: Megapixels = " + megapixels + ", Time = " + time + ", NBlur = " + nblur + ", DBlur = " + dblur + ", Alpha = " + alpha);
     }
 
     public void updateEnhance(HttpExchange exchange, long time) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        this.nenhance = this.nenhance * XI + (1 - XI) * (time * bodySize);
-        this.denhance = this.denhance * XI + (1 - XI) * (bodySize * bodySize);
+        double megapixels = this.megapixels.update(exchange);
+        this.nenhance = this.nenhance * XI + (1 - XI) * (time * megapixels);
+        this.denhance = this.denhance * XI + (1 - XI) * (megapixels * megapixels);
         this.beta = this.nenhance / this.denhance;
-        System.out.println("Updating Enhance: BodySize = " + bodySize + ", Time = " + time + ", NEnhance = " + nenhance + ", DEnhance = " + denhance + ", Beta = " + beta);
+        System.out.println("Updating Enhance: Megapixels = " + megapixels + ", Time = " + time + ", NEnhance = " + nenhance + ", DEnhance = " + denhance + ", Beta = " + beta);
     }
 
     public void updateRayTracer(HttpExchange exchange, long time) {
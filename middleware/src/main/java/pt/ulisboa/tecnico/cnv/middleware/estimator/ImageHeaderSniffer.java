@@ -0,0 +1,197 @@
+package pt.ulisboa.tecnico.cnv.middleware.estimator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Reads the dimensions of the image in an image processing request from the
+ * first bytes of its body, without decoding the image. Works on both the
+ * data URL body and raw (binary) image bodies, for JPEG, PNG and BMP.
+ *
+ * Only a prefix of the body is read; it is pushed back in front of the rest
+ * of the body so the request can still be forwarded. The result is kept as an
+ * attribute of the exchange, so every estimate and update of the same
+ * request reuses it.
+ */
+public class ImageHeaderSniffer {
+
+    // image bytes looked at, enough for JPEG headers after a typical EXIF block
+    private static final int SNIFF_BYTES = 64 * 1024;
+
+    private static final String ATTRIBUTE = "imageInfo";
+
+    public static class ImageInfo {
+        public final int width;
+        public final int height;
+        public final int channels;
+
+        public ImageInfo(int width, int height, int channels) {
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+        }
+
+        public double megapixels() {
+            return (double) width * height / 1_000_000;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + "x" + channels;
+        }
+    }
+
+    /**
+     * Dimensions of the image in the body of exchange, if its header could be
+     * parsed from the first bytes.
+     */
+    @SuppressWarnings("unchecked")
+    public static Optional<ImageInfo> sniff(HttpExchange exchange) {
+        Object cached = exchange.getAttribute(ATTRIBUTE);
+        if (cached != null) {
+            return (Optional<ImageInfo>) cached;
+        }
+
+        Optional<ImageInfo> info = Optional.empty();
+        try {
+            InputStream body = exchange.getRequestBody();
+            // base64 takes 4 characters for every 3 bytes, plus the data URL prefix
+            byte[] prefix = body.readNBytes(SNIFF_BYTES / 3 * 4 + 64);
+            exchange.setStreams(new SequenceInputStream(new ByteArrayInputStream(prefix), body), null);
+            info = parse(decodePrefix(prefix));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        System.out.println("Sniffed image header: " + info.map(ImageInfo::toString).orElse("unknown"));
+        exchange.setAttribute(ATTRIBUTE, info);
+        return info;
+    }
+
+    /**
+     * Image bytes at the start of a body, decoding the base64 of a data URL.
+     */
+    static byte[] decodePrefix(byte[] prefix) {
+        String start = new String(prefix, 0, Math.min(prefix.length, 5), StandardCharsets.US_ASCII);
+        if (!start.equals("data:")) {
+            return prefix;
+        }
+
+        int comma = 0;
+        while (comma < prefix.length && prefix[comma] != ',') {
+            comma++;
+        }
+
+        // keep only base64 characters, in whole groups of four
+        StringBuilder encoded = new StringBuilder();
+        for (int i = comma + 1; i < prefix.length; i++) {
+            char c = (char) prefix[i];
+            if (Character.isLetterOrDigit(c) || c == '+' || c == '/') {
+                encoded.append(c);
+            }
+        }
+        encoded.setLength(encoded.length() / 4 * 4);
+        return Base64.getDecoder().decode(encoded.toString());
+    }
+
+    static Optional<ImageInfo> parse(byte[] data) {
+        if (data.length >= 24 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return parsePng(data);
+        }
+        if (data.length >= 4 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8) {
+            return parseJpeg(data);
+        }
+        if (data.length >= 30 && data[0] == 'B' && data[1] == 'M') {
+            return parseBmp(data);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * IHDR is always the first chunk: width and height at 16 and 20, color
+     * type at 25.
+     */
+    private static Optional<ImageInfo> parsePng(byte[] data) {
+        int width = readIntBE(data, 16);
+        int height = readIntBE(data, 20);
+        int channels;
+        switch (data.length > 25 ? data[25] : 2) {
+            case 0: channels = 1; break;  // gray
+            case 3: channels = 3; break;  // palette, decoded to RGB
+            case 4: channels = 2; break;  // gray and alpha
+            case 6: channels = 4; break;  // RGBA
+            default: channels = 3;        // RGB
+        }
+        return Optional.of(new ImageInfo(width, height, channels));
+    }
+
+    /**
+     * Walks the marker segments up to the first start of frame (SOFn), which
+     * holds height, width and number of components.
+     */
+    private static Optional<ImageInfo> parseJpeg(byte[] data) {
+        int i = 2;
+        while (i + 4 <= data.length) {
+            if ((data[i] & 0xFF) != 0xFF) {
+                return Optional.empty();
+            }
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                i++;
+                continue;
+            }
+            boolean standalone = marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7);
+            if (standalone) {
+                i += 2;
+                continue;
+            }
+            int length = readShortBE(data, i + 2);
+            boolean sof = marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (sof) {
+                if (i + 10 > data.length) {
+                    return Optional.empty();
+                }
+                int height = readShortBE(data, i + 5);
+                int width = readShortBE(data, i + 7);
+                int channels = data[i + 9] & 0xFF;
+                return Optional.of(new ImageInfo(width, height, channels));
+            }
+            i += 2 + length;
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * BITMAPINFOHEADER (and later versions): width, height (negative for
+     * top-down images) and bits per pixel at 18, 22 and 28, little endian.
+     */
+    private static Optional<ImageInfo> parseBmp(byte[] data) {
+        int width = readIntLE(data, 18);
+        int height = Math.abs(readIntLE(data, 22));
+        int bits = (data[28] & 0xFF) | (data[29] & 0xFF) << 8;
+        // palette images are decoded to RGB
+        return Optional.of(new ImageInfo(width, height, bits <= 8 ? 3 : bits / 8));
+    }
+
+    private static int readShortBE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readIntBE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+
+    private static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,58 @@
+package pt.ulisboa.tecnico.cnv.middleware.estimator;
+
+import java.util.Optional;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Cost feature of an image request: the megapixels of its image, read from
+ * the image header (see ImageHeaderSniffer). If the header cannot be read,
+ * they are guessed from the body size with the average ratio seen in the
+ * requests whose header could.
+ *
+ * Only update learns the ratio, and estimators call it once per request
+ * (from updateInfo), so estimating a request does not count it twice.
+ */
+public class ImageMegapixels {
+
+    // update rate of the ratio
+    private final double xi;
+
+    // megapixels per body byte, to guess the megapixels of unreadable images
+    private double megapixelsPerByte = 0.0;
+
+    public ImageMegapixels(double xi) {
+        this.xi = xi;
+    }
+
+    /**
+     * Megapixels of the image of exchange.
+     */
+    public double of(HttpExchange exchange) {
+        long bodySize = bodySize(exchange);
+        Optional<ImageHeaderSniffer.ImageInfo> info = ImageHeaderSniffer.sniff(exchange);
+        if (info.isPresent()) {
+            return info.get().megapixels();
+        }
+        return bodySize > 0 ? bodySize * this.megapixelsPerByte : 0.0;
+    }
+
+    /**
+     * Megapixels of the image of a finished request, learning the megapixels
+     * per byte from it if its header could be read.
+     */
+    public double update(HttpExchange exchange) {
+        long bodySize = bodySize(exchange);
+        Optional<ImageHeaderSniffer.ImageInfo> info = ImageHeaderSniffer.sniff(exchange);
+        if (info.isPresent() && bodySize > 0) {
+            double ratio = info.get().megapixels() / bodySize;
+            this.megapixelsPerByte = this.megapixelsPerByte == 0.0 ? ratio : this.megapixelsPerByte * xi + (1 - xi) * ratio;
+        }
+        return of(exchange);
+    }
+
+    private static long bodySize(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        return contentLength == null ? -1 : Long.parseLong(contentLength);
+    }
+}
@@ -5,24 +5,35 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.EnumMap;
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.LUDecomposition;
 import java.net.URI;
 
+import pt.ulisboa.tecnico.cnv.imageproc.BlurImageHandler.Quality;
+
 /*
  * Estimator that uses only offline computed predictions for requests
  */
 public class OnlineBasedEstimator implements Estimator {
 
-    // slope for blur
-    private double alpha = 0.0;
+    /**
+     * Online least squares slope (time per megapixel) for one blur quality mode.
+     */
+    private static class BlurSlope {
+        // slope for blur
+        private double alpha = 0.0;
+
+        // nominator blur
+        private double nblur = 0.0;
 
-    // nominator blur
-    private double nblur = 0.0;
+        // denominator blur
+        private double dblur = 0.0;
+    }
 
-    // denominator blur
-    private double dblur = 0.0;
+    // each quality mode has its own cost per byte
+    private Map<Quality, BlurSlope> blurSlopes = new EnumMap<>(Quality.class);
 
     // slope for enhance
     private double beta = 0.0;
@@ -45,19 +56,31 @@ public class OnlineBasedEstimator implements Estimator {
     // update rate
     private double XI = 0.9;
 
+    // cost feature of blur and enhance requests
+    private final ImageMegapixels megapixels = new ImageMegapixels(XI);
+
     public OnlineBasedEstimator() {
+        for (Quality quality : Quality.values()) {
+            this.blurSlopes.put(quality, new BlurSlope());
+        }
+    }
+
+    private Quality blurQuality(HttpExchange exchange) {
+        return Quality.fromParameters(queryToMap(exchange.getRequestURI().getRawQuery()));
     }
 
     public long estimateBlur(HttpExchange exchange) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        System.out.println("Estimating Blur: BodySize = " + bodySize + ", Alpha = " + alpha + ", Estimate = " + this.alpha * bodySize);
-        return (long) (this.alpha * bodySize);
+        double megapixels = this.megapixels.of(exchange);
+        Quality quality = blurQuality(exchange);
+        double alpha = this.blurSlopes.get(quality).alpha;
+        System.out.println("Estimating Blur (" + quality + "): Megapixels = " + megapixels + ", Alpha = " + alpha + ", Estimate = " + alpha * megapixels);
+        return (long) (alpha * megapixels);
     }
 
     public long estimateEnhance(HttpExchange exchange) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        System.out.println("Estimating Enhance: BodySize = " + bodySize + ", Beta = " + beta + ", Estimate = " + this.beta * bodySize);
-        return (long) (this.beta * bodySize);
+        double megapixels = this.megapixels.of(exchange);
+        System.out.println("Estimating Enhance: Megapixels = " + megapixels + ", Beta = " + beta + ", Estimate = " + this.beta * megapixels);
+        return (long) (this.beta * megapixels);
     }
 
     public long estimateRayTracer(HttpExchange exchange) {
@@ -74,19 +97,21 @@ public class OnlineBasedEstimator implements Estimator {
     }
 
     public void updateBlur(HttpExchange exchange, long time) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        this.nblur = this.nblur * XI + (1 - XI) * (time * bodySize);
-        this.dblur = this.dblur * XI + (1 - XI) * (bodySize * bodySize);
-        this.alpha = this.nblur / this.dblur;
-        System.out.println("Updating Blur: BodySize = " + bodySize + ", Time = " + time + ", NBlur = " + nblur + ", DBlur = " + dblur + ", Alpha = " + alpha);
+        double megapixels = this.megapixels.update(exchange);
+        Quality quality = blurQuality(exchange);
+        BlurSlope slope = this.blurSlopes.get(quality);
+        slope.nblur = slope.nblur * XI + (1 - XI) * (time * megapixels);
+        slope.dblur = slope.dblur * XI + (1 - XI) * (megapixels * megapixels);
+        slope.alpha = slope.nblur / slope.dblur;
+        System.out.println("Updating Blur (" + quality + "): Megapixels = " + megapixels + ", Time = " + time + ", NBlur = " + slope.nblur + ", DBlur = " + slope.dblur + ", Alpha = " + slope.alpha);
     }
 
     public void updateEnhance(HttpExchange exchange, long time) {
-        long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
-        this.nenhance = this.nenhance * XI + (1 - XI) * (time * bodySize);
-        this.denhance = this.denhance * XI + (1 - XI) * (bodySize * bodySize);
+        double megapixels = this.megapixels.update(exchange);
+        this.nenhance = this.nenhance * XI + (1 - XI) * (time * megapixels);
+        this.denhance = this.denhance * XI + (1 - XI) * (megapixels * megapixels);
         this.beta = this.nenhance / this.denhance;
-        System.out.println("Updating Enhance: BodySize = " + bodySize + ", Time = " + time + ", NEnhance = " + nenhance + ", DEnhance = " + denhance + ", Beta = " + beta);
+        System.out.println("Updating Enhance: Megapixels = " + megapixels + ", Time = " + time + ", NEnhance = " + nenhance + ", DEnhance = " + denhance + ", Beta = " + beta);
     }
 
     public void updateRayTracer(HttpExchange exchange, long time) {
@@ -180,7 +205,7 @@ public class OnlineBasedEstimator implements Estimator {
 
     public Map<String, String> queryToMap(String query) {
         if (query == null) {
-            return null;
+            return new HashMap<>();
         }
         Map<String, String> result = new HashMap<>();
         for (String param : query.split("&")) {
@@ -2,25 +2,67 @@ package pt.ulisboa.tecnico.cnv.middleware.metrics;
 
 import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
 
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 /**
- * 
+ * What is known of a worker: its recent metrics, CPU usage and admission
+ * state.
+ *
+ * InstanceMonitor builds a new one per poll; MetricStreamClient keeps one per
+ * stream and updates it as frames arrive, while the balancer and autoscaler
+ * read it from other threads.
  */
 public class AggregateWorkerMetrics {
     
-    private List<WorkerMetric> metrics;
+    private final Deque<WorkerMetric> metrics;
     private String instanceId;
-    private double cpuUsage;
+    private volatile double cpuUsage;
+
+    // admission state of the worker (see the worker's /load endpoint):
+    // in flight, queued, max concurrent, max queue, replaced as a whole
+    private volatile int[] load = new int[4];
 
     public AggregateWorkerMetrics(List<WorkerMetric> metrics, String instanceId, double cpuUsage){
-        this.metrics = metrics;
+        this.metrics = new ConcurrentLinkedDeque<>(metrics);
         this.instanceId = instanceId;
         this.cpuUsage = cpuUsage;
     }
 
+    public AggregateWorkerMetrics(List<WorkerMetric> metrics, String instanceId, double cpuUsage, int[] load){
+        this(metrics, instanceId, cpuUsage);
+        this.load = load.clone();
+    }
+
+    /**
+     * Copy of the metrics, oldest first.
+     */
     public List<WorkerMetric> getMetrics(){
-        return this.metrics;
+        return new ArrayList<>(this.metrics);
+    }
+
+    /**
+     * Adds a metric after the others.
+     */
+    public void addMetric(WorkerMetric metric){
+        this.metrics.addLast(metric);
+    }
+
+    /**
+     * Drops the oldest metric.
+     */
+    public void removeOldest(){
+        this.metrics.pollFirst();
+    }
+
+    /**
+     * Replaces the CPU usage and admission state.
+     */
+    public void setLoad(double cpuUsage, int[] load){
+        this.load = load.clone();
+        this.cpuUsage = cpuUsage;
     }
 
     public String getInstanceId(){
@@ -30,4 +72,33 @@ public class AggregateWorkerMetrics {
     public double getCpuUsage(){
         return this.cpuUsage;
     }
+
+    public int getInFlight(){
+        return this.load[0];
+    }
+
+    public int getQueued(){
+        return this.load[1];
+    }
+
+    public int getMaxConcurrent(){
+        return this.load[2];
+    }
+
+    /**
+     * Whether the worker's admission state was reported: every worker admits
+     * at least one request at a time, so a limit of 0 means it is unknown.
+     */
+    public boolean hasLoad(){
+        return this.load[2] > 0;
+    }
+
+    /**
+     * Whether the worker's admission queue was full, so it would reject new
+     * requests with 503.
+     */
+    public boolean isSaturated(){
+        int[] load = this.load;
+        return load[3] > 0 && load[1] >= load[3];
+    }
 }
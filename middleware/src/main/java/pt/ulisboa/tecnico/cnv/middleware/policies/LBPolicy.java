@@ -3,8 +3,10 @@ package pt.ulisboa.tecnico.cnv.middleware.policies;
 import pt.ulisboa.tecnico.cnv.middleware.metrics.AggregateWorkerMetrics;
 import pt.ulisboa.tecnico.cnv.middleware.Worker;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import com.sun.net.httpserver.HttpExchange;
 
@@ -15,4 +17,15 @@ import com.sun.net.httpserver.HttpExchange;
  */
 public interface LBPolicy {
     public Optional<Worker> choose(HttpExchange exchange, Map<Worker, Optional<AggregateWorkerMetrics>> metrics);
+
+    /**
+     * Same as choose, but never picks one of the excluded workers (e.g. the
+     * ones that already rejected the request).
+     */
+    default Optional<Worker> choose(HttpExchange exchange, Map<Worker, Optional<AggregateWorkerMetrics>> metrics,
+            Set<Worker> excluded) {
+        Map<Worker, Optional<AggregateWorkerMetrics>> candidates = new HashMap<>(metrics);
+        candidates.keySet().removeAll(excluded);
+        return choose(exchange, candidates).filter(worker -> !excluded.contains(worker));
+    }
 }
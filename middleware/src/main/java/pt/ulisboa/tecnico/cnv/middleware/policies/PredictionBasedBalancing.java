@@ -1,8 +1,10 @@
 package pt.ulisboa.tecnico.cnv.middleware.policies;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
+import java.util.Set;
 
 import com.sun.net.httpserver.HttpExchange;
 
@@ -28,6 +30,12 @@ public class PredictionBasedBalancing implements LBPolicy {
     }
 
     public Optional<Worker> choose(HttpExchange exchange, Map<Worker, Optional<AggregateWorkerMetrics>> metrics) {
+        return choose(exchange, metrics, Collections.emptySet());
+    }
+
+    @Override
+    public Optional<Worker> choose(HttpExchange exchange, Map<Worker, Optional<AggregateWorkerMetrics>> metrics,
+            Set<Worker> excluded) {
         long estimate = this.estimator.estimate(exchange);
         long lambdaPrediction = 500;
 
@@ -37,6 +45,15 @@ public class PredictionBasedBalancing implements LBPolicy {
         Optional<Long> min = Optional.empty();
 
         for (Map.Entry<Worker, Queue<Job>> entry : status.entrySet()) {
+            if (excluded.contains(entry.getKey())) {
+                continue;
+            }
+            Optional<AggregateWorkerMetrics> workerMetrics = metrics.getOrDefault(entry.getKey(), Optional.empty());
+            if (workerMetrics.isPresent() && workerMetrics.get().isSaturated()) {
+                System.out.println("Worker " + entry.getKey() + " has a full admission queue.");
+                continue;
+            }
+
             long worstCasePrediction = entry.getValue().stream().mapToLong(job -> job.getDuration()).sum();
             System.out.println("Worker: " + entry.getKey() + ", Current load (worst case): " + worstCasePrediction);
             if (worstCasePrediction < lambdaPrediction * ALPHA) {
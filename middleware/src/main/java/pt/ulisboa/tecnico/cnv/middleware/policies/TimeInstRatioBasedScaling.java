@@ -5,6 +5,7 @@ import com.amazonaws.services.ec2.model.Instance;
 import pt.ulisboa.tecnico.cnv.middleware.Utils.Pair;
 import pt.ulisboa.tecnico.cnv.middleware.Worker;
 import pt.ulisboa.tecnico.cnv.middleware.metrics.AggregateWorkerMetrics;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -99,14 +100,24 @@ public class TimeInstRatioBasedScaling implements ASPolicy {
 
         System.out.printf("The average CPU ratio was %f\n", cpu);
 
-        // get average time/instruction ratio
+        // get average time/instruction ratio, each sampled request weighing as
+        // many requests as it stands for
         // if there's nothing, the load is low and ratio is take to be 0
-        double ratio = metrics.entrySet().stream()
+        double[] sums = new double[2];
+        metrics.entrySet().stream()
             .map(p -> p.getValue())
             .filter(p -> p.isPresent())
             .flatMap(m -> m.get().getMetrics().stream())
-            .mapToDouble(m -> ((double)m.getDuration()) / m.getRawData().get("ninsts"))
-            .average().orElse(0.0);
+            // requests served from a worker's result cache ran no instrumented code
+            .filter(m -> m.getCounter(WorkerMetric.Counter.CACHE_HIT) == 0)
+            // only sampled requests had their instructions counted
+            .filter(m -> m.getCounter(WorkerMetric.Counter.SAMPLE_WEIGHT) > 0 && m.getCounter(WorkerMetric.Counter.NINSTS) > 0)
+            .forEach(m -> {
+                double weight = m.getCounter(WorkerMetric.Counter.SAMPLE_WEIGHT);
+                sums[0] += weight * m.getDuration() / m.getCounter(WorkerMetric.Counter.NINSTS);
+                sums[1] += weight;
+            });
+        double ratio = sums[1] == 0 ? 0.0 : sums[0] / sums[1];
 
         System.out.printf("The average time/insts ratio was %f\n", ratio);
 
@@ -0,0 +1,240 @@
+package pt.ulisboa.tecnico.cnv.middleware;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.middleware.Utils.Pair;
+
+/**
+ * Sends requests through a LoadBalancer to two fake workers, which answer
+ * with scripted statuses, and checks which answers are retried elsewhere and
+ * which reach the client as they are.
+ */
+public class LoadBalancerTest {
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    private HttpServer front;
+
+    private AWSDashboard dashboard;
+
+    // statuses the workers answer, in the order requests reach any of them
+    private List<Integer> script;
+
+    private final AtomicInteger workerCalls = new AtomicInteger();
+
+    private final AtomicInteger lambdaCalls = new AtomicInteger();
+
+    // the last event a lambda was called with, and what lambdas answer
+    private volatile String lambdaEvent;
+    private volatile String lambdaResponse = "lambda";
+
+    private final AWSInterface aws = new AWSInterface() {
+        @Override
+        public Worker forceTerminateInstance() {
+            return null;
+        }
+
+        @Override
+        public void terminateInstance(Worker worker) {
+        }
+
+        @Override
+        public Worker createInstance() {
+            return null;
+        }
+
+        @Override
+        public Optional<Pair<String, Integer>> callLambda(String lambdaName, String inputEvent) {
+            lambdaCalls.incrementAndGet();
+            lambdaEvent = inputEvent;
+            return Optional.of(new Pair<>(lambdaResponse, 200));
+        }
+
+        @Override
+        public List<WorkerMetric> getMetricsForSince(Worker w, long since) {
+            return new ArrayList<>();
+        }
+    };
+
+    private Worker startWorker(String id) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            int call = workerCalls.getAndIncrement();
+            int status = call < script.size() ? script.get(call) : 200;
+            if (status == 503) {
+                exchange.getResponseHeaders().add("X-Draining", "true");
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                byte[] body = (id + " " + status).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+        servers.add(server);
+        return new DummyWorker(server.getAddress().getPort(), id);
+    }
+
+    @Before
+    public void start() throws IOException {
+        dashboard = new AWSDashboard();
+        LoadBalancer balancer = new LoadBalancer(dashboard, aws);
+        front = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        front.createContext("/", balancer);
+        front.start();
+    }
+
+    @After
+    public void stop() {
+        front.stop(0);
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+    }
+
+    private void twoWorkers() throws IOException {
+        dashboard.registerInstance(startWorker("a"));
+        dashboard.registerInstance(startWorker("b"));
+    }
+
+    /**
+     * Posts a body to the balancer and returns the status and body it answers.
+     */
+    private Pair<Integer, String> post() throws IOException {
+        URL url = new URL("http://127.0.0.1:" + front.getAddress().getPort() + "/blurimage");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write("not an image".getBytes(StandardCharsets.UTF_8));
+        }
+        int status = connection.getResponseCode();
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        String body = in == null ? "" : new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        connection.disconnect();
+        return new Pair<>(status, body);
+    }
+
+    @Test
+    public void clientErrorsAreRelayedNotRetried() throws IOException {
+        twoWorkers();
+        for (int status : new int[] { 400, 415 }) {
+            script = Arrays.asList(status, status);
+            workerCalls.set(0);
+            Pair<Integer, String> response = post();
+            assertEquals(status, (int) response.getKey());
+            assertEquals(" " + status, response.getValue().substring(1));
+            assertEquals(1, workerCalls.get());
+        }
+        assertEquals(0, lambdaCalls.get());
+    }
+
+    @Test
+    public void serverErrorsAreRelayedNotRetried() throws IOException {
+        twoWorkers();
+        script = Arrays.asList(500, 500);
+        Pair<Integer, String> response = post();
+        assertEquals(500, (int) response.getKey());
+        assertEquals(" 500", response.getValue().substring(1));
+        assertEquals(1, workerCalls.get());
+        assertEquals(0, lambdaCalls.get());
+    }
+
+    @Test
+    public void unavailableWorkerIsRetriedElsewhere() throws IOException {
+        twoWorkers();
+        script = Arrays.asList(503, 200);
+        Pair<Integer, String> response = post();
+        assertEquals(200, (int) response.getKey());
+        assertEquals(" 200", response.getValue().substring(1));
+        assertEquals(2, workerCalls.get());
+        assertEquals(0, lambdaCalls.get());
+    }
+
+    @Test
+    public void lambdaWhenEveryWorkerIsUnavailable() throws IOException {
+        twoWorkers();
+        script = Arrays.asList(503, 503);
+        Pair<Integer, String> response = post();
+        assertEquals(200, (int) response.getKey());
+        assertEquals("lambda", response.getValue());
+        assertEquals(2, workerCalls.get());
+        assertEquals(1, lambdaCalls.get());
+    }
+
+    @Test
+    public void unreachableWorkerIsRetriedElsewhere() throws IOException {
+        int closedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+        dashboard.registerInstance(new DummyWorker(closedPort, "gone"));
+        dashboard.registerInstance(startWorker("b"));
+        script = Arrays.asList(200);
+        Pair<Integer, String> response = post();
+        assertEquals(200, (int) response.getKey());
+        assertEquals("b 200", response.getValue());
+        assertEquals(1, workerCalls.get());
+        assertEquals(0, lambdaCalls.get());
+    }
+
+    @Test
+    public void binaryBodiesReachTheLambdaAsDataUrls() throws IOException {
+        byte[] image = { (byte) 0x89, 'P', 'N', 'G', 0, 1, 2, (byte) 0xFF };
+        byte[] processed = { (byte) 0x89, 'P', 'N', 'G', 3, 4, 5 };
+        // the lambda's payload is a JSON string, which callLambda hands back in base64
+        String answer = "\"data:image/png;base64," + Base64.getEncoder().encodeToString(processed) + "\"";
+        lambdaResponse = Base64.getEncoder().encodeToString(answer.getBytes(StandardCharsets.US_ASCII));
+
+        URL url = new URL("http://127.0.0.1:" + front.getAddress().getPort() + "/blurimage?quality=box");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "image/png");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(image);
+        }
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("image/png", connection.getContentType());
+        try (InputStream in = connection.getInputStream()) {
+            assertArrayEquals(processed, in.readAllBytes());
+        }
+        connection.disconnect();
+
+        Matcher body = Pattern.compile("\"body\": \"([^\"]*)\"").matcher(lambdaEvent);
+        assertTrue(body.find());
+        String dataUrl = new String(Base64.getDecoder().decode(body.group(1)), StandardCharsets.US_ASCII);
+        String prefix = "data:image/png;base64,";
+        assertTrue(dataUrl, dataUrl.startsWith(prefix));
+        assertArrayEquals(image, Base64.getDecoder().decode(dataUrl.substring(prefix.length())));
+        assertEquals(1, lambdaCalls.get());
+    }
+}
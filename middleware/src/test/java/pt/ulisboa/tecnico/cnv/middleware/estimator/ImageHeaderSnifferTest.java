@@ -0,0 +1,139 @@
+package pt.ulisboa.tecnico.cnv.middleware.estimator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Optional;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import pt.ulisboa.tecnico.cnv.middleware.estimator.ImageHeaderSniffer.ImageInfo;
+
+public class ImageHeaderSnifferTest {
+
+    private static byte[] encode(int width, int height, int type, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(new BufferedImage(width, height, type), format, out));
+        return out.toByteArray();
+    }
+
+    private static void assertInfo(int width, int height, int channels, Optional<ImageInfo> info) {
+        assertTrue(info.isPresent());
+        assertEquals(width, info.get().width);
+        assertEquals(height, info.get().height);
+        assertEquals(channels, info.get().channels);
+    }
+
+    @Test
+    public void pngHeader() throws IOException {
+        assertInfo(37, 21, 3, ImageHeaderSniffer.parse(encode(37, 21, BufferedImage.TYPE_3BYTE_BGR, "png")));
+        assertInfo(37, 21, 1, ImageHeaderSniffer.parse(encode(37, 21, BufferedImage.TYPE_BYTE_GRAY, "png")));
+        assertInfo(37, 21, 4, ImageHeaderSniffer.parse(encode(37, 21, BufferedImage.TYPE_INT_ARGB, "png")));
+        assertInfo(37, 21, 3, ImageHeaderSniffer.parse(encode(37, 21, BufferedImage.TYPE_BYTE_INDEXED, "png")));
+    }
+
+    @Test
+    public void jpegHeader() throws IOException {
+        assertInfo(50, 30, 3, ImageHeaderSniffer.parse(encode(50, 30, BufferedImage.TYPE_3BYTE_BGR, "jpeg")));
+        assertInfo(50, 30, 1, ImageHeaderSniffer.parse(encode(50, 30, BufferedImage.TYPE_BYTE_GRAY, "jpeg")));
+    }
+
+    @Test
+    public void jpegSegmentsBeforeTheFrame() {
+        byte[] app1 = new byte[40_000];
+        byte[] data = concat(
+                new byte[] { (byte) 0xFF, (byte) 0xD8 },
+                // an EXIF-sized APP1 segment
+                segment(0xE1, app1),
+                // fill bytes before a marker
+                new byte[] { (byte) 0xFF, (byte) 0xFF },
+                // DHT shares the SOF range but is not a frame
+                segment(0xC4, new byte[] { 0x00, 0x01, 0x02 }),
+                // progressive frame: precision, height 3000, width 4000, 3 components
+                segment(0xC2, new byte[] { 8, 0x0B, (byte) 0xB8, 0x0F, (byte) 0xA0, 3 }));
+        assertInfo(4000, 3000, 3, ImageHeaderSniffer.parse(data));
+
+        // cut before the frame
+        assertFalse(ImageHeaderSniffer.parse(Arrays.copyOf(data, 2 + 4 + app1.length + 2)).isPresent());
+        // not a marker where one should be
+        data[2 + 4 + app1.length] = 0x00;
+        assertFalse(ImageHeaderSniffer.parse(data).isPresent());
+    }
+
+    @Test
+    public void bmpHeader() throws IOException {
+        byte[] bottomUp = encode(13, 9, BufferedImage.TYPE_3BYTE_BGR, "bmp");
+        assertInfo(13, 9, 3, ImageHeaderSniffer.parse(bottomUp));
+
+        // a negative height marks rows stored top-down
+        byte[] topDown = bottomUp.clone();
+        int negative = -9;
+        for (int i = 0; i < 4; i++) {
+            topDown[22 + i] = (byte) (negative >> 8 * i);
+        }
+        assertInfo(13, 9, 3, ImageHeaderSniffer.parse(topDown));
+    }
+
+    @Test
+    public void unknownFormat() {
+        assertFalse(ImageHeaderSniffer.parse("GIF89a and more bytes to be long enough".getBytes(StandardCharsets.US_ASCII)).isPresent());
+        assertFalse(ImageHeaderSniffer.parse(new byte[0]).isPresent());
+    }
+
+    @Test
+    public void binaryPrefixUnchanged() throws IOException {
+        byte[] png = encode(10, 10, BufferedImage.TYPE_3BYTE_BGR, "png");
+        assertSame(png, ImageHeaderSniffer.decodePrefix(png));
+    }
+
+    @Test
+    public void dataUrlPrefixCutMidQuartet() throws IOException {
+        byte[] png = encode(37, 21, BufferedImage.TYPE_3BYTE_BGR, "png");
+        String url = "data:image/png;base64," + Base64.getEncoder().encodeToString(png);
+        int start = url.indexOf(',') + 1;
+        for (int extra = 0; extra < 4; extra++) {
+            byte[] prefix = url.substring(0, start + 4 * 10 + extra).getBytes(StandardCharsets.US_ASCII);
+            // the incomplete quartet is left out
+            assertArrayEquals(Arrays.copyOf(png, 30), ImageHeaderSniffer.decodePrefix(prefix));
+            assertInfo(37, 21, 3, ImageHeaderSniffer.parse(ImageHeaderSniffer.decodePrefix(prefix)));
+        }
+    }
+
+    @Test
+    public void dataUrlPrefixWithLineBreaks() throws IOException {
+        byte[] jpeg = encode(50, 30, BufferedImage.TYPE_3BYTE_BGR, "jpeg");
+        String url = "data:image/jpeg;base64," + Base64.getMimeEncoder().encodeToString(jpeg);
+        byte[] prefix = url.substring(0, 400).getBytes(StandardCharsets.US_ASCII);
+        byte[] decoded = ImageHeaderSniffer.decodePrefix(prefix);
+        assertArrayEquals(Arrays.copyOf(jpeg, decoded.length), decoded);
+    }
+
+    private static byte[] segment(int marker, byte[] payload) {
+        byte[] segment = new byte[4 + payload.length];
+        segment[0] = (byte) 0xFF;
+        segment[1] = (byte) marker;
+        segment[2] = (byte) ((payload.length + 2) >> 8);
+        segment[3] = (byte) (payload.length + 2);
+        System.arraycopy(payload, 0, segment, 4, payload.length);
+        return segment;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.writeBytes(part);
+        }
+        return out.toByteArray();
+    }
+}
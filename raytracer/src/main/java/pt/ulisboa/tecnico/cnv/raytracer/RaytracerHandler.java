@@ -2,69 +2,46 @@ package pt.ulisboa.tecnico.cnv.raytracer;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
-import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
-import java.io.InputStream;
-import java.io.InputStream;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicReference;
 import pt.ulisboa.tecnico.cnv.common.Handler;
+import pt.ulisboa.tecnico.cnv.common.ImageEncoder;
 
 public class RaytracerHandler implements HttpHandler, RequestHandler<Map<String, String>, String>, Handler {
 
-    private final static ObjectMapper mapper = new ObjectMapper();
-    
     public String actuallyHandle(URI requestedUri, InputStream stream)  {
         try {
-            String query = requestedUri.getRawQuery();
-            Map<String, String> parameters = queryToMap(query);
-
-            int scols = Integer.parseInt(parameters.get("scols"));
-            int srows = Integer.parseInt(parameters.get("srows"));
-            int wcols = Integer.parseInt(parameters.get("wcols"));
-            int wrows = Integer.parseInt(parameters.get("wrows"));
-            int coff = Integer.parseInt(parameters.get("coff"));
-            int roff = Integer.parseInt(parameters.get("roff"));
-            Main.ANTI_ALIAS = Boolean.parseBoolean(parameters.getOrDefault("aa", "false"));
-            Main.MULTI_THREAD = Boolean.parseBoolean(parameters.getOrDefault("multi", "false"));
-
-            Map<String, Object> body = mapper.readValue(stream, new TypeReference<>() {});
-
-            byte[] input = ((String) body.get("scene")).getBytes();
-            byte[] texmap = null;
-            if (body.containsKey("texmap")) {
-                // Convert ArrayList<Integer> to byte[]
-                ArrayList<Integer> texmapBytes = (ArrayList<Integer>) body.get("texmap");
-                texmap = new byte[texmapBytes.size()];
-                for (int i = 0; i < texmapBytes.size(); i++) {
-                    texmap[i] = texmapBytes.get(i).byteValue();
-                }
-            }
-
-            byte[] result = handleRequest(input, texmap, scols, srows, wcols, wrows, coff, roff);
-            String response = String.format("data:image/bmp;base64,%s", Base64.getEncoder().encodeToString(result));
-
-            return response;
+            return render(RaytracerRequest.parse(requestedUri, stream));
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
         }
     }
 
+    private String render(RaytracerRequest request) {
+        String format = request.getFormat();
+        byte[] result;
+        try {
+            BufferedImage image = request.draw();
+            result = ImageEncoder.encode(image, format);
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = e.getMessage().getBytes();
+        }
+        return String.format("data:image/%s;base64,%s", format, Base64.getEncoder().encodeToString(result));
+    }
+
     @Override
     public void handle(HttpExchange he) throws IOException {
         // Handling CORS
@@ -77,10 +54,8 @@ public class RaytracerHandler implements HttpHandler, RequestHandler<Map<String,
             return;
         }
 
-        // Parse request
-        URI requestedUri = he.getRequestURI();
-        InputStream stream = he.getRequestBody();
-        String response = actuallyHandle(requestedUri, stream);
+        // Parse request, unless the web server already did
+        String response = render(RaytracerRequest.of(he));
 
         he.sendResponseHeaders(200, response.length());
         OutputStream os = he.getResponseBody();
@@ -104,14 +79,12 @@ public class RaytracerHandler implements HttpHandler, RequestHandler<Map<String,
         return result;
     }
 
-    private byte[] handleRequest(byte[] input, byte[] texmap, int scols, int srows, int wcols, int wrows, int coff, int roff) {
+    private byte[] handleRequest(byte[] input, byte[] texmap, int scols, int srows, int wcols, int wrows, int coff, int roff, String format) {
         try {
             RayTracer rayTracer = new RayTracer(scols, srows, wcols, wrows, coff, roff);
             rayTracer.readScene(input, texmap);
             BufferedImage image = rayTracer.draw();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(image, "bmp", baos);
-            return baos.toByteArray();
+            return ImageEncoder.encode(image, format);
         } catch (Exception e) {
             e.printStackTrace();
             return e.getMessage().getBytes();
@@ -131,7 +104,7 @@ public class RaytracerHandler implements HttpHandler, RequestHandler<Map<String,
         Base64.Decoder decoder = Base64.getDecoder();
         byte[] input = decoder.decode(event.get("input"));
         byte[] texmap = event.containsKey("texmap") ? decoder.decode(event.get("texmap")) : null;
-        byte[] byteArrayResult = handleRequest(input, texmap, scols, srows, wcols, wrows, coff, roff);
+        byte[] byteArrayResult = handleRequest(input, texmap, scols, srows, wcols, wrows, coff, roff, event.getOrDefault("format", "bmp"));
         return Base64.getEncoder().encodeToString(byteArrayResult);
     }
 }
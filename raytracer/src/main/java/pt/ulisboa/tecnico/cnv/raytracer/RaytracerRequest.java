@@ -0,0 +1,170 @@
+package pt.ulisboa.tecnico.cnv.raytracer;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A ray tracing request, decoded once: query parameters, scene and texture
+ * map, and the RayTracer with the scene already read.
+ *
+ * The web server's metrics wrapper decodes the request to extract scene
+ * features and stores it in the exchange (ATTRIBUTE); RaytracerHandler then
+ * renders the same RayTracer instead of decoding the body again.
+ *
+ * The body is read with Jackson's streaming parser, so the texture map goes
+ * straight into a byte array instead of a list of boxed integers.
+ */
+public class RaytracerRequest {
+
+    public static final String ATTRIBUTE = "raytracerRequest";
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final Map<String, String> parameters;
+    private final int scols, srows, wcols, wrows, coff, roff;
+    private final boolean antiAlias;
+    private final boolean multiThread;
+    private final String format;
+    private final byte[] scene;
+    private final byte[] texmap;
+    private final RayTracer rayTracer;
+
+    private RaytracerRequest(Map<String, String> parameters, byte[] scene, byte[] texmap) {
+        this.parameters = parameters;
+        this.scols = Integer.parseInt(parameters.get("scols"));
+        this.srows = Integer.parseInt(parameters.get("srows"));
+        this.wcols = Integer.parseInt(parameters.get("wcols"));
+        this.wrows = Integer.parseInt(parameters.get("wrows"));
+        this.coff = Integer.parseInt(parameters.get("coff"));
+        this.roff = Integer.parseInt(parameters.get("roff"));
+        this.antiAlias = Boolean.parseBoolean(parameters.getOrDefault("aa", "false"));
+        this.multiThread = Boolean.parseBoolean(parameters.getOrDefault("multi", "false"));
+        this.format = parameters.getOrDefault("format", "bmp");
+        this.scene = scene;
+        this.texmap = texmap;
+
+        this.rayTracer = new RayTracer(scols, srows, wcols, wrows, coff, roff);
+        this.rayTracer.readScene(scene, texmap);
+    }
+
+    /**
+     * The request decoded earlier for this exchange, or decoded now (and
+     * stored for later handlers).
+     */
+    public static RaytracerRequest of(HttpExchange exchange) throws IOException {
+        RaytracerRequest request = (RaytracerRequest) exchange.getAttribute(ATTRIBUTE);
+        if (request == null) {
+            request = parse(exchange.getRequestURI(), exchange.getRequestBody());
+            exchange.setAttribute(ATTRIBUTE, request);
+        }
+        return request;
+    }
+
+    public static RaytracerRequest parse(URI uri, InputStream body) throws IOException {
+        Map<String, String> parameters = queryToMap(uri.getRawQuery());
+
+        byte[] scene = null;
+        byte[] texmap = null;
+        try (JsonParser parser = factory.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("request body is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("scene") && value == JsonToken.VALUE_STRING) {
+                    scene = parser.getText().getBytes();
+                } else if (field.equals("texmap") && value == JsonToken.START_ARRAY) {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        bytes.write(parser.getIntValue());
+                    }
+                    texmap = bytes.toByteArray();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (scene == null) {
+            throw new IOException("request body has no scene");
+        }
+        return new RaytracerRequest(parameters, scene, texmap);
+    }
+
+    /**
+     * Sets the global rendering options of this request and renders it.
+     */
+    public BufferedImage draw() {
+        Main.ANTI_ALIAS = antiAlias;
+        Main.MULTI_THREAD = multiThread;
+        return rayTracer.draw();
+    }
+
+    /**
+     * Camera and scene features recorded with the request's metrics.
+     */
+    public Map<String, String> getFeatures() {
+        Camera camera = rayTracer.getCamera();
+        Map<String, String> data = new HashMap<>();
+        data.put("eye", camera.getEye().toString());
+        data.put("vx", camera.getVx().toString());
+        data.put("vy", camera.getVy().toString());
+        data.put("vz", camera.getVz().toString());
+        data.put("windowDistance", Double.toString(camera.getWindowDistance()));
+        data.put("windowWidth", Double.toString(camera.getWindowWidth()));
+        data.put("windowHeight", Double.toString(camera.getWindowHeight()));
+        data.put("rows", Double.toString(camera.getRows()));
+        data.put("cols", Double.toString(camera.getCols()));
+        data.put("lightCount", Integer.toString(rayTracer.getLights().size()));
+        data.put("shapeCount", Integer.toString(rayTracer.getShapes().size()));
+        data.put("wcols", Integer.toString(wcols));
+        data.put("wrows", Integer.toString(wrows));
+        return data;
+    }
+
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public byte[] getScene() {
+        return scene;
+    }
+
+    public byte[] getTexmap() {
+        return texmap;
+    }
+
+    public RayTracer getRayTracer() {
+        return rayTracer;
+    }
+
+    private static Map<String, String> queryToMap(String query) {
+        Map<String, String> result = new HashMap<>();
+        if (query == null) {
+            return result;
+        }
+        for (String param : query.split("&")) {
+            String[] entry = param.split("=");
+            if (entry.length > 1) {
+                result.put(entry[0], entry[1]);
+            } else {
+                result.put(entry[0], "");
+            }
+        }
+        return result;
+    }
+}
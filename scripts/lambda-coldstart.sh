@@ -0,0 +1,37 @@
+#!/usr/bin/env bash
+
+# Measures cold and warm latency of each Lambda handler locally: every run is
+# a fresh JVM (like a new Lambda container) running LambdaHarness, with the
+# JVM options the functions get (see register-lambda.sh), with and without the
+# AppCDS archive built by package-lambda.sh.
+#
+# Usage: ./lambda-coldstart.sh [runs per configuration]
+
+RUNS=${1:-3}
+JAVA=${LAMBDA_JAVA:-java}
+TARGET=$(cd ../middleware/target && pwd)
+JAR=$TARGET/middleware-1.0.0-SNAPSHOT-jar-with-dependencies.jar
+ARCHIVE=$TARGET/lambda/lambda.jsa
+
+source ./lambda-samples.sh $(mktemp -d)
+
+configurations=("-Xshare:auto")
+if [ -f $ARCHIVE ]; then
+    # the archive only maps with the class path it was dumped with
+    cd $TARGET/lambda
+    JAR=lib/middleware.jar
+    configurations+=("-Xshare:auto -XX:SharedArchiveFile=$ARCHIVE")
+    configurations+=("-Xshare:auto -XX:SharedArchiveFile=$ARCHIVE -XX:TieredStopAtLevel=1")
+else
+    echo "No archive in $ARCHIVE, run package-lambda.sh to compare with it"
+fi
+
+while read -r handler uri body; do
+    for options in "${configurations[@]}"; do
+        echo "== $options"
+        for run in $(seq $RUNS); do
+            $JAVA $options -cp $JAR pt.ulisboa.tecnico.cnv.middleware.LambdaHarness $handler "$uri" $body 10 \
+                | grep "warm median"
+        done
+    done
+done <<< "$SAMPLES"
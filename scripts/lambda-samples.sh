@@ -0,0 +1,17 @@
+#!/usr/bin/env bash
+
+# Writes a sample request body for each Lambda function into the directory
+# given as argument, and sets SAMPLES to "<handler class> <uri> <body file>"
+# lines for LambdaHarness. Sourced by package-lambda.sh and lambda-coldstart.sh.
+
+SAMPLE_DIR=$1
+RESOURCES=$(cd "$(dirname "${BASH_SOURCE[0]}")/.." && pwd)
+mkdir -p $SAMPLE_DIR
+
+# the ray tracer takes a JSON body with the scene, the image handlers a data URL
+printf '{"scene":"%s"}' "$(tr -d '\r' < $RESOURCES/raytracer/resources/test01.txt | sed ':a;N;$!ba;s/\n/\\n/g')" > $SAMPLE_DIR/raytracer.json
+printf 'data:image/jpg;base64,%s' "$(base64 -w0 $RESOURCES/imageproc/resources/cat.jpg)" > $SAMPLE_DIR/image.txt
+
+SAMPLES="pt.ulisboa.tecnico.cnv.middleware.RayTracerLambda /raytracer?scols=200&srows=150&wcols=200&wrows=150&coff=0&roff=0&aa=false $SAMPLE_DIR/raytracer.json
+pt.ulisboa.tecnico.cnv.middleware.BlurLambda /blurimage $SAMPLE_DIR/image.txt
+pt.ulisboa.tecnico.cnv.middleware.EnhanceLambda /enhanceimage $SAMPLE_DIR/image.txt"
@@ -0,0 +1,40 @@
+#!/usr/bin/env bash
+
+# Builds the startup-optimized package of the Lambda functions,
+# middleware/target/lambda.zip: the middleware jar (in lib/, where the Lambda
+# runtime looks for jars) and an AppCDS archive, lambda.jsa, of the classes a
+# training run of the three handlers loads. register-lambda.sh deploys it when
+# it exists.
+#
+# The archive must be dumped by the same JVM version the functions run on
+# (java11 by default, set LAMBDA_JAVA to its java binary). It is used with
+# -Xshare:auto, so a JVM that cannot map it just starts as before.
+
+source ./config.sh
+
+JAVA=${LAMBDA_JAVA:-java}
+TARGET=$(cd ../middleware/target && pwd)
+BUILD=$TARGET/lambda
+
+rm -rf $BUILD $TARGET/lambda.zip
+mkdir -p $BUILD/lib
+cp $TARGET/middleware-1.0.0-SNAPSHOT-jar-with-dependencies.jar $BUILD/lib/middleware.jar || exit 1
+
+source ./lambda-samples.sh $BUILD/train
+
+# training run: the classes each handler loads to serve a request
+cd $BUILD
+i=0
+while read -r handler uri body; do
+    $JAVA -XX:DumpLoadedClassList=train/classes-$i.lst -cp lib/middleware.jar \
+        pt.ulisboa.tecnico.cnv.middleware.LambdaHarness $handler "$uri" $body 2 \
+        || echo "Training run of $handler failed, its classes may be missing from the archive"
+    i=$((i + 1))
+done <<< "$SAMPLES"
+cat train/classes-*.lst | sort -u > train/classes.lst
+
+$JAVA -Xshare:dump -XX:SharedClassListFile=train/classes.lst -XX:SharedArchiveFile=lambda.jsa \
+    -cp lib/middleware.jar || exit 1
+
+zip -r $TARGET/lambda.zip lib lambda.jsa || exit 1
+echo "Lambda package in $TARGET/lambda.zip ($(wc -l < train/classes.lst) classes archived)"
@@ -14,10 +14,24 @@ aws iam attach-role-policy \
 
 sleep 3
 
+# the startup-optimized package (see package-lambda.sh) if it was built
+PACKAGE=../middleware/target/middleware-1.0.0-SNAPSHOT-jar-with-dependencies.jar
+ENVIRONMENT='{"Variables": {}}'
+if [ -f ../middleware/target/lambda.zip ]; then
+	PACKAGE=../middleware/target/lambda.zip
+	JAVA_OPTIONS="-Xshare:auto -XX:SharedArchiveFile=/var/task/lambda.jsa"
+	# C1 only: faster first requests, slower long renders
+	if [ "$LAMBDA_C1_ONLY" = "true" ]; then
+		JAVA_OPTIONS="$JAVA_OPTIONS -XX:+TieredCompilation -XX:TieredStopAtLevel=1"
+	fi
+	ENVIRONMENT="{\"Variables\": {\"JAVA_TOOL_OPTIONS\": \"$JAVA_OPTIONS\"}}"
+fi
+
 # register raytracer lambda
 aws lambda create-function \
 	--function-name raytracer \
-	--zip-file fileb://../middleware/target/middleware-1.0.0-SNAPSHOT-jar-with-dependencies.jar \
+	--zip-file fileb://$PACKAGE \
+	--environment "$ENVIRONMENT" \
 	--handler pt.ulisboa.tecnico.cnv.middleware.RayTracerLambda \
 	--runtime java11 \
 	--timeout 90 \
@@ -27,7 +41,8 @@ aws lambda create-function \
 # register enhance image lambda
 aws lambda create-function \
 	--function-name enhanceimage \
-	--zip-file fileb://../middleware/target/middleware-1.0.0-SNAPSHOT-jar-with-dependencies.jar \
+	--zip-file fileb://$PACKAGE \
+	--environment "$ENVIRONMENT" \
 	--handler pt.ulisboa.tecnico.cnv.middleware.EnhanceLambda \
 	--runtime java11 \
 	--timeout 30 \
@@ -37,7 +52,8 @@ aws lambda create-function \
 # register enhance image lambda
 aws lambda create-function \
 	--function-name blurimage \
-	--zip-file fileb://../middleware/target/middleware-1.0.0-SNAPSHOT-jar-with-dependencies.jar \
+	--zip-file fileb://$PACKAGE \
+	--environment "$ENVIRONMENT" \
 	--handler pt.ulisboa.tecnico.cnv.middleware.BlurLambda \
 	--runtime java11 \
 	--timeout 30 \
@@ -0,0 +1,220 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Limits how many CPU-bound requests the worker runs at once, and in which
+ * order queued requests run.
+ *
+ * Wrapped handlers run on a fixed pool of MAX_CONCURRENT threads, with at
+ * most MAX_QUEUE requests waiting for a thread. Requests beyond that are
+ * rejected right away with 503 and a Retry-After hint, so the load balancer
+ * can send them elsewhere instead of every request on the worker slowing
+ * down. The thread that accepted the connection waits for the pool to finish
+ * the request.
+ *
+ * Waiting requests are served shortest job first: by the cost the load
+ * balancer estimated (COST_HEADER, in ns) or, without it, by the average
+ * service time of the endpoint. To keep expensive requests from starving,
+ * a request gains AGING ns of priority for every ns it waits; ordering by
+ * cost + AGING * arrival time gives exactly that and never changes while a
+ * request is queued.
+ *
+ * The pool thread that picks a request up notes how long it waited, and the
+ * wrapped handler reads it with getStats, so the wait is recorded apart
+ * from the service time.
+ *
+ * Connections are accepted on virtual threads when the JDK has them, and on
+ * a cached pool otherwise (see connectionExecutor).
+ */
+public class AdmissionController {
+
+    // requests processed at once, defaults to the number of cores
+    public static int MAX_CONCURRENT = System.getenv("MAX_CONCURRENT") == null
+            ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(System.getenv("MAX_CONCURRENT"));
+
+    // requests waiting for a processing thread
+    public static int MAX_QUEUE = System.getenv("MAX_QUEUE") == null
+            ? 2 * MAX_CONCURRENT : Integer.parseInt(System.getenv("MAX_QUEUE"));
+
+    // priority (ns of estimated cost) gained per ns waited
+    public static double AGING = System.getenv("SCHEDULER_AGING") == null
+            ? 1.0 : Double.parseDouble(System.getenv("SCHEDULER_AGING"));
+
+    public static final String COST_HEADER = "X-Estimated-Cost";
+
+    // update rate of the average service times
+    private static final double XI = 0.9;
+
+    private final ThreadPoolExecutor pool;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // requests running or queued
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    // average time a request holds a processing thread, in seconds
+    private volatile double serviceTime = 1.0;
+
+    // average service time of each endpoint, in ns, for requests without a cost estimate
+    private final Map<String, Double> endpointCost = new ConcurrentHashMap<>();
+
+    // nanoseconds the current request waited in the queue
+    private static final ThreadLocal<long[]> queueTime = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * A request waiting for (or running on) a processing thread.
+     */
+    private class Admission implements Runnable, Comparable<Admission> {
+        private final HttpExchange exchange;
+        private final HttpHandler handler;
+        private final String endpoint;
+        private final long enqueued = System.nanoTime();
+        private final double priority;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Admission(HttpExchange exchange, HttpHandler handler) {
+            this.exchange = exchange;
+            this.handler = handler;
+            this.endpoint = exchange.getRequestURI().getPath();
+            this.priority = estimatedCost(exchange, endpoint) + AGING * enqueued;
+        }
+
+        @Override
+        public void run() {
+            inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            queueTime.get()[0] = start - enqueued;
+            try {
+                handler.handle(exchange);
+                done.complete(null);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                inFlight.decrementAndGet();
+                admitted.decrementAndGet();
+                serviceTime = serviceTime * XI + (1 - XI) * elapsed / 1e9;
+                endpointCost.merge(endpoint, (double) elapsed, (old, sample) -> old * XI + (1 - XI) * sample);
+            }
+        }
+
+        @Override
+        public int compareTo(Admission other) {
+            return Double.compare(priority, other.priority);
+        }
+    }
+
+    public AdmissionController() {
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(MAX_CONCURRENT, MAX_CONCURRENT, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), r -> new Thread(r, "worker-" + count.incrementAndGet()));
+        this.pool.prestartAllCoreThreads();
+    }
+
+    /**
+     * Executor for the HTTP server: a virtual thread per connection on JDKs
+     * that support it (looked up by reflection, since we build for Java 11),
+     * a cached thread pool otherwise.
+     */
+    public static Executor connectionExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            System.out.println("Accepting connections on virtual threads");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    private double estimatedCost(HttpExchange exchange, String endpoint) {
+        String header = exchange.getRequestHeaders().getFirst(COST_HEADER);
+        if (header != null) {
+            try {
+                return Double.parseDouble(header);
+            } catch (NumberFormatException e) {
+                System.out.printf("Ignoring bad %s header %s\n", COST_HEADER, header);
+            }
+        }
+        return endpointCost.getOrDefault(endpoint, 0.0);
+    }
+
+    /**
+     * Runs handler on the bounded pool, or rejects the request if the pool
+     * and its queue are full.
+     */
+    public HttpHandler wrap(HttpHandler handler) {
+        return exchange -> {
+            if (admitted.incrementAndGet() > MAX_CONCURRENT + MAX_QUEUE) {
+                admitted.decrementAndGet();
+                reject(exchange);
+                return;
+            }
+
+            // threads were prestarted, so this always goes through the priority queue
+            Admission admission = new Admission(exchange, handler);
+            pool.execute(admission);
+
+            try {
+                admission.done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        };
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        // time until the requests ahead of a retry would have been served
+        long retryAfter = Math.max(1, Math.round(serviceTime * (getQueued() + getInFlight()) / MAX_CONCURRENT));
+        System.out.printf("Rejecting request %s (in flight %d, queued %d), retry after %d s\n",
+                exchange.getRequestURI(), getInFlight(), getQueued(), retryAfter);
+
+        exchange.getRequestBody().close();
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfter));
+        exchange.sendResponseHeaders(503, -1);
+        exchange.close();
+    }
+
+    /**
+     * Time (ns) the request running on the current thread waited for it.
+     */
+    public static Map<String, Long> getStats() {
+        Map<String, Long> map = new HashMap<>();
+        map.put("queueTime", queueTime.get()[0]);
+        return map;
+    }
+}
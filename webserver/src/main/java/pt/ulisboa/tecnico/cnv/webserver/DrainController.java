@@ -0,0 +1,109 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Lets the worker be taken out of service without losing requests.
+ *
+ * wrap goes outside request coalescing and the admission controller, so it
+ * counts every request the worker still owes an answer to: running, queued,
+ * or waiting for an identical request. Once startDrain is called, new
+ * requests are rejected with 503 and HEADER, which tells the load balancer
+ * to send them to another worker right away (not to wait for Retry-After);
+ * requests already accepted run to the end. The drain is complete when the
+ * last of them has been answered (see awaitDrained).
+ */
+public class DrainController {
+
+    public static final String HEADER = "X-Draining";
+
+    private final AtomicInteger open = new AtomicInteger();
+
+    private volatile boolean draining = false;
+
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+    public HttpHandler wrap(HttpHandler handler) {
+        return exchange -> {
+            // counted before checking the flag, so startDrain never misses a request it let in
+            open.incrementAndGet();
+            if (draining) {
+                finished();
+                reject(exchange);
+                return;
+            }
+            try {
+                handler.handle(exchange);
+            } finally {
+                finished();
+            }
+        };
+    }
+
+    private void finished() {
+        if (open.decrementAndGet() == 0 && draining) {
+            drained.complete(null);
+        }
+    }
+
+    /**
+     * Stops accepting requests. Safe to call more than once.
+     */
+    public synchronized void startDrain() {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        System.out.printf("Draining, %d requests still open\n", open.get());
+        if (open.get() == 0) {
+            drained.complete(null);
+        }
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public boolean isDrained() {
+        return drained.isDone();
+    }
+
+    /**
+     * Requests accepted and not yet answered.
+     */
+    public int getOpen() {
+        return open.get();
+    }
+
+    /**
+     * Waits up to millis for the drain to complete, returns whether it did.
+     */
+    public boolean awaitDrained(long millis) {
+        try {
+            drained.get(millis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().add(HEADER, "true");
+        exchange.getResponseHeaders().add("Retry-After", "0");
+        exchange.sendResponseHeaders(503, -1);
+        exchange.close();
+    }
+}
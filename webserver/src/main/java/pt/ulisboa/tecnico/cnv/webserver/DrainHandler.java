@@ -0,0 +1,80 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Takes the worker out of service: a POST starts draining, a GET only
+ * reports. Both answer whether the worker is draining, whether it is done
+ * (no request left to answer), and the requests still open, in flight and
+ * queued.
+ *
+ * With ?wait=<ms> the answer is held until the drain completes or the time
+ * runs out, so the autoscaler is told of completion without busy polling.
+ */
+public class DrainHandler implements HttpHandler {
+
+    // longest a request may wait for the drain to complete
+    private static final long MAX_WAIT = 30000;
+
+    private final DrainController drain;
+    private final AdmissionController admission;
+
+    public DrainHandler(DrainController drain, AdmissionController admission) {
+        this.drain = drain;
+        this.admission = admission;
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        // Handling CORS
+        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+
+        if (he.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            he.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+            he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            he.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        if (he.getRequestMethod().equalsIgnoreCase("POST")) {
+            drain.startDrain();
+        }
+
+        Map<String, String> query = queryToMap(he.getRequestURI().getRawQuery());
+        if (query != null && query.containsKey("wait") && drain.isDraining()) {
+            drain.awaitDrained(Math.min(MAX_WAIT, Long.parseLong(query.get("wait"))));
+        }
+
+        // 0 lenght signals that an arbitrary amout of data is going to be sent
+        he.sendResponseHeaders(200, 0);
+        ObjectOutputStream os = new ObjectOutputStream(he.getResponseBody());
+        os.writeBoolean(drain.isDraining());
+        os.writeBoolean(drain.isDrained());
+        os.writeInt(drain.getOpen());
+        os.writeInt(admission.getInFlight());
+        os.writeInt(admission.getQueued());
+        os.close();
+    }
+
+    public Map<String, String> queryToMap(String query) {
+        if (query == null) {
+            return null;
+        }
+        Map<String, String> result = new HashMap<>();
+        for (String param : query.split("&")) {
+            String[] entry = param.split("=");
+            if (entry.length > 1) {
+                result.put(entry[0], entry[1]);
+            } else {
+                result.put(entry[0], "");
+            }
+        }
+        return result;
+    }
+}
@@ -1,9 +1,18 @@
 package pt.ulisboa.tecnico.cnv.webserver;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
 
 public interface DynamoWriter {
 
     public void pushMetrics(List<WorkerMetric> metric);
+
+    /**
+     * Counters of the writer since startup, for /metrics.
+     */
+    public default Map<String, Long> getCounters() {
+        return new HashMap<>();
+    }
 }
@@ -1,21 +1,23 @@
 package pt.ulisboa.tecnico.cnv.webserver;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.List;
 
 import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetricCodec;
 
 public class DynamoWriterDummy implements DynamoWriter {
 
     private String outFile;
-    ObjectOutputStream os;
+    DataOutputStream os;
 
     public DynamoWriterDummy(String wid) {
         this.outFile = String.format("/tmp/dynamoDummy-%s.dsa", wid);
         try {
-            this.os = new ObjectOutputStream(new FileOutputStream(outFile));
+            this.os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outFile)));
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -26,8 +28,9 @@ public class DynamoWriterDummy implements DynamoWriter {
     public void pushMetrics(List<WorkerMetric> metrics) {
         try {
             for (WorkerMetric metric: metrics) {
-                this.os.writeObject(metric);
+                WorkerMetricCodec.write(this.os, metric);
             }
+            this.os.flush();
         } catch (IOException e) {
             e.printStackTrace();
             throw new RuntimeException(e);
@@ -2,23 +2,65 @@ package pt.ulisboa.tecnico.cnv.webserver;
 
 import com.amazonaws.services.dynamodbv2.model.*;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.imageproc.BlurImageHandler;
 
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsync;
 import com.amazonaws.auth.EnvironmentVariableCredentialsProvider;
 import com.amazonaws.services.dynamodbv2.util.TableUtils;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBAsyncClientBuilder;
 
+/**
+ * Writes metrics with asynchronous BatchWriteItem requests of up to
+ * BATCH_SIZE items, with at most MAX_IN_FLIGHT requests outstanding; batches
+ * that find them all outstanding are dropped (and counted) rather than
+ * waited for, so a slow DynamoDB never holds up the caller. Unprocessed items
+ * and requests that failed in a way retrying can fix are retried with
+ * exponential backoff, up to MAX_ATTEMPTS times, after which the items are
+ * dropped (and counted).
+ */
 public class DynamoWriterProduction implements DynamoWriter {
 
     private final String AWS_REGION = System.getenv("AWS_REGION");
     private final String DYNAMO_DB_TABLE_NAME = System.getenv("DYNAMO_DB_TABLE_NAME");
 
-    private final AmazonDynamoDB dynamoDB;
+    // DynamoDB limit of items per BatchWriteItem
+    private static final int BATCH_SIZE = 25;
+
+    private static int MAX_IN_FLIGHT = System.getenv("DYNAMO_MAX_IN_FLIGHT") == null
+            ? 4 : Integer.parseInt(System.getenv("DYNAMO_MAX_IN_FLIGHT"));
+
+    private static final int MAX_ATTEMPTS = 6;
+
+    private static final long BASE_BACKOFF_MS = 50;
+
+    private final AmazonDynamoDBAsync dynamoDB;
+
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dynamo-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
 
     public DynamoWriterProduction() {
         if (AWS_REGION == null || DYNAMO_DB_TABLE_NAME == null)
@@ -28,35 +70,162 @@ public class DynamoWriterProduction implements DynamoWriter {
                 .withCredentials(new EnvironmentVariableCredentialsProvider()).build();
     }
 
-    private void pushSingleMetric(WorkerMetric metric) {
+    /**
+     * The item of a metric, or null if the metric cannot make a valid item
+     * (e.g. a ray tracing request without window size).
+     */
+    private Map<String, AttributeValue> toItem(WorkerMetric metric) {
         String type = metric.getUri().split("\\?")[0].substring(1);
         Map<String, AttributeValue> parameters = new HashMap<>();
         parameters.put("bodySize", new AttributeValue().withN(String.valueOf(metric.getBodySize())));
+        parameters.put("encodeTime", new AttributeValue().withN(String.valueOf(metric.getCounter(WorkerMetric.Counter.ENCODE_TIME))));
+        parameters.put("queueTime", new AttributeValue().withN(String.valueOf(metric.getCounter(WorkerMetric.Counter.QUEUE_TIME))));
+        // 0 if the instructions of the request were not counted (see Sampler)
+        parameters.put("sampleWeight", new AttributeValue().withN(String.valueOf(metric.getCounter(WorkerMetric.Counter.SAMPLE_WEIGHT))));
         if (type.equals("raytracer")) {
-            Map<String, String> allParams = queryToMap(metric.getUri()); 
-            parameters.put("wcols", new AttributeValue().withN(allParams.get("wcols")));
-            parameters.put("wrows", new AttributeValue().withN(allParams.get("wrows")));
+            // put in the parameters by the raytracer wrapper, no need to parse the URI again
+            String wcols = metric.getParameters().get("wcols");
+            String wrows = metric.getParameters().get("wrows");
+            if (!isNumber(wcols) || !isNumber(wrows)) {
+                return null;
+            }
+            parameters.put("wcols", new AttributeValue().withN(wcols));
+            parameters.put("wrows", new AttributeValue().withN(wrows));
+        }
+        if (type.equals("blurimage")) {
+            BlurImageHandler.Quality quality = BlurImageHandler.Quality.parse(metric.getParameters().get("quality"));
+            parameters.put("quality", new AttributeValue().withN(String.valueOf(quality.ordinal())));
+        }
+        if (type.equals("blurimage") || type.equals("enhanceimage")) {
+            // served from the result cache, says nothing about processing cost
+            parameters.put("cacheHit", new AttributeValue().withN(String.valueOf(metric.getCounter(WorkerMetric.Counter.CACHE_HIT))));
         }
 
         Map<String, AttributeValue> item = new HashMap<>();
         item.put("RawData", new AttributeValue().withM(parameters));
         item.put("ReplicaID", new AttributeValue().withS(metric.getWid()));
         item.put("SeqNb", new AttributeValue().withN(String.valueOf(metric.getSeq())));
-        item.put("ninsts", new AttributeValue().withN(String.valueOf(metric.getRawData().get("ninsts"))));
+        item.put("ninsts", new AttributeValue().withN(String.valueOf(metric.getCounter(WorkerMetric.Counter.NINSTS))));
         item.put("duration", new AttributeValue().withN(String.valueOf(metric.getDuration())));
         item.put("type", new AttributeValue().withS(type));
         item.put("uri", new AttributeValue().withS(metric.getUri()));
+        return item;
+    }
 
-        System.out.printf("Trying to write metric to table called %s\n", DYNAMO_DB_TABLE_NAME);
-        PutItemRequest putItemRequest = new PutItemRequest(DYNAMO_DB_TABLE_NAME, item);
-        dynamoDB.putItem(putItemRequest);
+    private static boolean isNumber(String value) {
+        try {
+            Long.parseLong(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
+    /**
+     * Sends the metrics in batches, without blocking.
+     */
     @Override
     public void pushMetrics(List<WorkerMetric> metrics) {
-        for (WorkerMetric metric: metrics) {
-            this.pushSingleMetric(metric);
+        // an invalid item would fail its whole batch, so it is dropped here
+        List<WriteRequest> requests = new ArrayList<>();
+        for (WorkerMetric metric : metrics) {
+            Map<String, AttributeValue> item = toItem(metric);
+            if (item == null) {
+                System.out.printf("Dropping invalid metric %s\n", metric);
+                dropped.incrementAndGet();
+                continue;
+            }
+            requests.add(new WriteRequest().withPutRequest(new PutRequest().withItem(item)));
+        }
+
+        for (int from = 0; from < requests.size(); from += BATCH_SIZE) {
+            List<WriteRequest> batch = new ArrayList<>(requests.subList(from, Math.min(requests.size(), from + BATCH_SIZE)));
+
+            if (!inFlight.tryAcquire()) {
+                long total = dropped.addAndGet(batch.size());
+                System.out.printf("%d batches in flight, dropping %d metrics (%d so far)\n",
+                        MAX_IN_FLIGHT, batch.size(), total);
+                continue;
+            }
+            System.out.printf("Writing %d metrics to table called %s\n", batch.size(), DYNAMO_DB_TABLE_NAME);
+            writeBatch(batch, 1);
+        }
+    }
+
+    /**
+     * Sends one batch; the in flight permit is released once all of its items
+     * are written or dropped.
+     */
+    private void writeBatch(List<WriteRequest> batch, int attempt) {
+        Map<String, List<WriteRequest>> items = new HashMap<>();
+        items.put(DYNAMO_DB_TABLE_NAME, batch);
+        BatchWriteItemRequest request = new BatchWriteItemRequest().withRequestItems(items);
+
+        dynamoDB.batchWriteItemAsync(request, new AsyncHandler<BatchWriteItemRequest, BatchWriteItemResult>() {
+            @Override
+            public void onSuccess(BatchWriteItemRequest request, BatchWriteItemResult result) {
+                List<WriteRequest> unprocessed = result.getUnprocessedItems() == null ? null
+                        : result.getUnprocessedItems().get(DYNAMO_DB_TABLE_NAME);
+                int left = unprocessed == null ? 0 : unprocessed.size();
+                written.addAndGet(batch.size() - left);
+                if (left == 0) {
+                    inFlight.release();
+                } else {
+                    retry(unprocessed, attempt);
+                }
+            }
+
+            @Override
+            public void onError(Exception e) {
+                System.out.printf("Batch write of %d metrics failed: %s\n", batch.size(), e);
+                if (isRetryable(e)) {
+                    retry(batch, attempt);
+                } else {
+                    dropped.addAndGet(batch.size());
+                    inFlight.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether a request that failed with e may succeed if sent again:
+     * throttling, errors on the DynamoDB side and I/O errors reaching it.
+     * Anything else (e.g. a validation error or a missing table) would fail
+     * on every attempt.
+     */
+    static boolean isRetryable(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException service = (AmazonServiceException) e;
+            return RetryUtils.isThrottlingException(service) || service.getStatusCode() >= 500;
+        }
+        return e instanceof SdkClientException && e.getCause() instanceof IOException;
+    }
+
+    private void retry(List<WriteRequest> batch, int attempt) {
+        if (attempt >= MAX_ATTEMPTS) {
+            System.out.printf("Dropping %d metrics after %d attempts\n", batch.size(), attempt);
+            dropped.addAndGet(batch.size());
+            inFlight.release();
+            return;
         }
+        retried.addAndGet(batch.size());
+        // exponential backoff with jitter
+        long delay = BASE_BACKOFF_MS << (attempt - 1);
+        delay = delay / 2 + (long) (Math.random() * delay / 2);
+        retries.schedule(() -> writeBatch(batch, attempt + 1), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Metrics written, retried (per retry) and dropped since startup.
+     */
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> map = new HashMap<>();
+        map.put("dynamoWritten", written.get());
+        map.put("dynamoRetried", retried.get());
+        map.put("dynamoDropped", dropped.get());
+        return map;
     }
 
     /*
@@ -69,21 +238,4 @@ public class DynamoWriterProduction implements DynamoWriter {
             System.out.println(item);
         }
     }
-
-
-    public Map<String, String> queryToMap(String query) {
-        if (query == null) {
-            return null;
-        }
-        Map<String, String> result = new HashMap<>();
-        for (String param : query.split("&")) {
-            String[] entry = param.split("=");
-            if (entry.length > 1) {
-                result.put(entry[0], entry[1]);
-            } else {
-                result.put(entry[0], "");
-            }
-        }
-        return result;
-    }
 }
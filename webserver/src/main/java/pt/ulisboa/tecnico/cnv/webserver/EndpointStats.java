@@ -0,0 +1,103 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Latency histogram and bytes in/out of each endpoint, for /metrics.
+ *
+ * wrap goes outside the admission controller, so latencies include the
+ * time queued and rejected requests are counted too. Bytes are counted by
+ * wrapping the exchange's streams; everything on the request path is a
+ * LongAdder or atomic increment.
+ */
+public class EndpointStats {
+
+    public static class Endpoint {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    public Map<String, Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public HttpHandler wrap(String name, HttpHandler handler) {
+        Endpoint endpoint = endpoints.computeIfAbsent(name, n -> new Endpoint());
+        return exchange -> {
+            long start = System.nanoTime();
+            CountingInputStream in = new CountingInputStream(exchange.getRequestBody());
+            CountingOutputStream out = new CountingOutputStream(exchange.getResponseBody());
+            exchange.setStreams(in, out);
+            try {
+                handler.handle(exchange);
+            } finally {
+                endpoint.latency.record(System.nanoTime() - start);
+                endpoint.bytesIn.add(in.count);
+                endpoint.bytesOut.add(out.count);
+                if (exchange.getResponseCode() != 200) {
+                    endpoint.errors.increment();
+                }
+            }
+        };
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Reports the admission state of the worker: requests in flight, requests
+ * queued, and the limits of both.
+ */
+public class LoadHandler implements HttpHandler {
+
+    AdmissionController admission;
+
+    public LoadHandler(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        // Handling CORS
+        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+
+        if (he.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            he.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
+            he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            he.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        // 0 lenght signals that an arbitrary amout of data is going to be sent
+        he.sendResponseHeaders(200, 0);
+        ObjectOutputStream os = new ObjectOutputStream(he.getResponseBody());
+        os.writeInt(admission.getInFlight());
+        os.writeInt(admission.getQueued());
+        os.writeInt(AdmissionController.MAX_CONCURRENT);
+        os.writeInt(AdmissionController.MAX_QUEUE);
+        os.close();
+    }
+}
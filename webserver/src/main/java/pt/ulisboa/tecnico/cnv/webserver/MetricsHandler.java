@@ -0,0 +1,166 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import pt.ulisboa.tecnico.cnv.imageproc.ImageBufferPool;
+import pt.ulisboa.tecnico.cnv.imageproc.ResultCache;
+
+/**
+ * Serves the worker's live metrics in the Prometheus text format: latency
+ * quantiles, request counts and bytes of each endpoint, admission gauges,
+ * CPU, GC and allocation rate, and the totals of the buffer pool, the result
+ * cache and the metric pipeline.
+ *
+ * Everything is read when scraped; the allocation rate is averaged since
+ * the previous scrape.
+ */
+public class MetricsHandler implements HttpHandler {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final OperatingSystemMXBean osBean = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class);
+    private final ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final EndpointStats stats;
+    private final AdmissionController admission;
+    private final DrainController drain;
+    private final DynamoWriter dynamoWriter;
+
+    private long lastScrape = System.nanoTime();
+    private long lastAllocated;
+
+    public MetricsHandler(EndpointStats stats, AdmissionController admission, DrainController drain,
+            DynamoWriter dynamoWriter) {
+        this.stats = stats;
+        this.admission = admission;
+        this.drain = drain;
+        this.dynamoWriter = dynamoWriter;
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        // Handling CORS
+        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+
+        if (he.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            he.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
+            he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            he.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        he.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4");
+        he.sendResponseHeaders(200, body.length);
+        try (OutputStream os = he.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# TYPE worker_request_duration_seconds summary\n");
+        Map<String, EndpointStats.Endpoint> endpoints = new TreeMap<>(stats.getEndpoints());
+        for (Map.Entry<String, EndpointStats.Endpoint> entry : endpoints.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            for (double q : QUANTILES) {
+                sample(sb, "worker_request_duration_seconds{endpoint=\"" + entry.getKey() + "\",quantile=\"" + q + "\"}",
+                        latency.quantile(q) / 1e9);
+            }
+            sample(sb, "worker_request_duration_seconds_sum{endpoint=\"" + entry.getKey() + "\"}", latency.getSum() / 1e9);
+            sample(sb, "worker_request_duration_seconds_count{endpoint=\"" + entry.getKey() + "\"}", latency.getCount());
+        }
+        counter(sb, "worker_request_errors_total", "requests not answered with 200", endpoints, e -> e.errors.sum());
+        counter(sb, "worker_bytes_in_total", "request body bytes", endpoints, e -> e.bytesIn.sum());
+        counter(sb, "worker_bytes_out_total", "response body bytes", endpoints, e -> e.bytesOut.sum());
+
+        gauge(sb, "worker_in_flight", admission.getInFlight());
+        gauge(sb, "worker_queued", admission.getQueued());
+        gauge(sb, "worker_open_requests", drain.getOpen());
+        gauge(sb, "worker_draining", drain.isDraining() ? 1 : 0);
+        gauge(sb, "worker_max_concurrent", AdmissionController.MAX_CONCURRENT);
+        gauge(sb, "worker_max_queue", AdmissionController.MAX_QUEUE);
+        gauge(sb, "worker_cpu_usage_percent", osBean.getSystemCpuLoad() * 100);
+        gauge(sb, "process_cpu_usage_percent", osBean.getProcessCpuLoad() * 100);
+
+        sb.append("# TYPE jvm_gc_collections_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(sb, "jvm_gc_collections_total{gc=\"" + gc.getName() + "\"}", gc.getCollectionCount());
+        }
+        sb.append("# TYPE jvm_gc_pause_seconds_total counter\n");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample(sb, "jvm_gc_pause_seconds_total{gc=\"" + gc.getName() + "\"}", gc.getCollectionTime() / 1e3);
+        }
+        gauge(sb, "jvm_allocation_rate_bytes_per_second", allocationRate());
+        gauge(sb, "jvm_heap_used_bytes", Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+
+        totals(sb, "worker_", ImageBufferPool.getTotals());
+        totals(sb, "worker_", ResultCache.getTotals());
+        totals(sb, "worker_", SingleFlight.getTotals());
+        totals(sb, "worker_", dynamoWriter.getCounters());
+        gauge(sb, "worker_pending_stats_dropped", WebServer.getDroppedStats());
+        gauge(sb, "worker_stream_dropped", StreamHandler.getDropped());
+        return sb.toString();
+    }
+
+    // bytes allocated by live threads per second, since the last scrape
+    private synchronized double allocationRate() {
+        long allocated = 0;
+        for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            allocated += Math.max(0, bytes);
+        }
+        long now = System.nanoTime();
+        // threads that ended take their bytes with them, never report a negative rate
+        double rate = Math.max(0, allocated - lastAllocated) / ((now - lastScrape) / 1e9);
+        lastAllocated = allocated;
+        lastScrape = now;
+        return rate;
+    }
+
+    private interface Field {
+        long get(EndpointStats.Endpoint endpoint);
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, Map<String, EndpointStats.Endpoint> endpoints, Field field) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, EndpointStats.Endpoint> entry : endpoints.entrySet()) {
+            sample(sb, name + "{endpoint=\"" + entry.getKey() + "\"}", field.get(entry.getValue()));
+        }
+    }
+
+    private static void gauge(StringBuilder sb, String name, double value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sample(sb, name, value);
+    }
+
+    // counters named in camel case by their sources, e.g. cacheHits
+    private static void totals(StringBuilder sb, String prefix, Map<String, Long> totals) {
+        for (Map.Entry<String, Long> entry : new TreeMap<>(totals).entrySet()) {
+            String name = prefix + entry.getKey().replaceAll("([a-z])([A-Z])", "$1_$2").toLowerCase();
+            gauge(sb, name, entry.getValue());
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+}
@@ -0,0 +1,176 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetricCodec;
+
+/**
+ * Append-only binary log of the metrics of this worker, split into segments.
+ *
+ * Each segment starts with MAGIC and VERSION, followed by records:
+ *
+ *   int length, int crc32 of the metric, long timestamp (ms), metric
+ *
+ * where the metric is in the WorkerMetricCodec form and length covers the
+ * timestamp and the metric.
+ *
+ * Records are encoded into a direct buffer and written to the segment's
+ * channel when it fills or on flush, so appending a metric is only an
+ * encode; a record too large for the buffer is written on its own. A new
+ * segment is started once the current one reaches
+ * SEGMENT_BYTES, and the oldest segments are deleted while the log is
+ * larger than RETAIN_BYTES. Segments are named after their creation time and
+ * the seq of their first record, so their names sort in write order even
+ * across restarts (which reset seq).
+ *
+ * The methods are synchronized, so the log can be shared by the writer
+ * thread and a shutdown hook; the buffer and segment state would be
+ * corrupted by unsynchronized appends from several threads. Once closed the
+ * log stays closed: later appends and flushes are ignored, rather than
+ * starting a new segment, and closing again does nothing.
+ *
+ * MetricsLogReader reads the log back.
+ */
+public class MetricsLog implements AutoCloseable {
+
+    public static String DIR = System.getenv("METRICS_LOG_DIR") == null
+            ? "/tmp/metrics-log" : System.getenv("METRICS_LOG_DIR");
+
+    public static long SEGMENT_BYTES = System.getenv("METRICS_LOG_SEGMENT_BYTES") == null
+            ? 16L << 20 : Long.parseLong(System.getenv("METRICS_LOG_SEGMENT_BYTES"));
+
+    public static long RETAIN_BYTES = System.getenv("METRICS_LOG_RETAIN_BYTES") == null
+            ? 256L << 20 : Long.parseLong(System.getenv("METRICS_LOG_RETAIN_BYTES"));
+
+    static final int MAGIC = 0x434e564d; // "CNVM"
+    static final int VERSION = 2;
+    static final String SUFFIX = ".log";
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final Path dir;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    // closed segments, oldest first, and their total size
+    private final Deque<Path> segments = new ArrayDeque<>();
+    private long closedBytes;
+
+    private Path current;
+    private FileChannel channel;
+    private long currentBytes;
+    private boolean closed;
+
+    public MetricsLog(String dir) throws IOException {
+        this.dir = Paths.get(dir);
+        Files.createDirectories(this.dir);
+        try (Stream<Path> files = Files.list(this.dir)) {
+            for (Path segment : files.filter(p -> p.toString().endsWith(SUFFIX)).sorted().collect(Collectors.toList())) {
+                segments.addLast(segment);
+                closedBytes += Files.size(segment);
+            }
+        }
+    }
+
+    /**
+     * Encodes the metric into the write buffer; it reaches the file on the
+     * next flush, or earlier if the buffer fills.
+     */
+    public synchronized void append(WorkerMetric metric) throws IOException {
+        if (closed) {
+            return;
+        }
+        byte[] encoded = WorkerMetricCodec.encode(metric);
+        int length = 8 + encoded.length;
+
+        if (channel == null || currentBytes + buffer.position() + 8 + length > SEGMENT_BYTES) {
+            roll(metric.getSeq());
+        }
+        if (buffer.remaining() < 8 + length) {
+            flush();
+        }
+
+        ByteBuffer record = 8 + length > BUFFER_BYTES ? ByteBuffer.allocate(8 + length) : buffer;
+        crc.reset();
+        crc.update(encoded);
+        record.putInt(length);
+        record.putInt((int) crc.getValue());
+        record.putLong(System.currentTimeMillis());
+        record.put(encoded);
+
+        if (record != buffer) {
+            record.flip();
+            while (record.hasRemaining()) {
+                currentBytes += channel.write(record);
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered records to the current segment. This hands them to
+     * the OS without forcing them to disk.
+     */
+    public synchronized void flush() throws IOException {
+        if (closed || channel == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            currentBytes += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closeSegment();
+        closed = true;
+    }
+
+    private void closeSegment() throws IOException {
+        flush();
+        if (channel != null) {
+            channel.force(false);
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void roll(long seq) throws IOException {
+        closeSegment();
+        if (current != null) {
+            segments.addLast(current);
+            closedBytes += currentBytes;
+        }
+
+        current = dir.resolve(String.format("metrics-%013d-%020d%s", System.currentTimeMillis(), seq, SUFFIX));
+        channel = FileChannel.open(current, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        currentBytes = 0;
+
+        // retention, counting the new segment as full
+        while (!segments.isEmpty() && closedBytes + SEGMENT_BYTES > RETAIN_BYTES) {
+            Path oldest = segments.removeFirst();
+            closedBytes -= Files.size(oldest);
+            Files.deleteIfExists(oldest);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetricCodec;
+
+/**
+ * Reads back the segments written by MetricsLog, for offline analysis.
+ *
+ * Segments are memory mapped and read in order. A segment that ends in a
+ * torn record (the worker died mid write) or a record whose crc does not
+ * match is read up to that record.
+ *
+ * Run with the log directory to print every metric as CSV:
+ *
+ *   java -cp webserver-jar-with-dependencies.jar pt.ulisboa.tecnico.cnv.webserver.MetricsLogReader /tmp/metrics-log
+ */
+public class MetricsLogReader {
+
+    private final Path dir;
+
+    public MetricsLogReader(String dir) {
+        this.dir = Paths.get(dir);
+    }
+
+    public List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(MetricsLog.SUFFIX)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Passes every metric in the log, oldest first, to consumer. Returns the
+     * number of metrics read.
+     */
+    public long read(Consumer<WorkerMetric> consumer) throws IOException {
+        long count = 0;
+        for (Path segment : segments()) {
+            count += readSegment(segment, consumer);
+        }
+        return count;
+    }
+
+    public long readSegment(Path segment, Consumer<WorkerMetric> consumer) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.remaining() < 8 || buffer.getInt() != MetricsLog.MAGIC) {
+            System.out.printf("%s is not a metrics log segment, skipping\n", segment);
+            return 0;
+        }
+        int version = buffer.getInt();
+        if (version != MetricsLog.VERSION) {
+            System.out.printf("%s has unknown version %d, skipping\n", segment, version);
+            return 0;
+        }
+
+        CRC32 crc = new CRC32();
+        long count = 0;
+        while (buffer.remaining() >= 8) {
+            int length = buffer.getInt();
+            int expected = buffer.getInt();
+            if (length < 8 || length > buffer.remaining()) {
+                System.out.printf("%s ends in a torn record after %d metrics\n", segment, count);
+                break;
+            }
+
+            buffer.getLong(); // timestamp
+            byte[] encoded = new byte[length - 8];
+            buffer.get(encoded);
+            crc.reset();
+            crc.update(encoded);
+            if ((int) crc.getValue() != expected) {
+                System.out.printf("%s has a corrupt record after %d metrics\n", segment, count);
+                break;
+            }
+
+            consumer.accept(WorkerMetricCodec.decode(encoded));
+            count++;
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        MetricsLogReader reader = new MetricsLogReader(args.length > 0 ? args[0] : MetricsLog.DIR);
+        long count = reader.read(metric -> System.out.println(metric.getSeq() + "," + metric.toCsv()));
+        System.err.printf("read %d metrics\n", count);
+    }
+}
@@ -0,0 +1,53 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Tells the autoscaler whether the worker should get traffic: 200 once
+ * warm-up is done (see Warmup), 503 while warming up or draining.
+ */
+public class ReadyHandler implements HttpHandler {
+
+    private final Warmup warmup;
+    private final DrainController drain;
+
+    public ReadyHandler(Warmup warmup, DrainController drain) {
+        this.warmup = warmup;
+        this.drain = drain;
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        // Handling CORS
+        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+
+        if (he.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            he.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
+            he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            he.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        String response;
+        int status;
+        if (drain.isDraining()) {
+            response = "draining";
+            status = 503;
+        } else if (!warmup.isReady()) {
+            response = "warming up";
+            status = 503;
+        } else {
+            response = "ready";
+            status = 200;
+        }
+
+        he.sendResponseHeaders(status, response.length());
+        OutputStream os = he.getResponseBody();
+        os.write(response.getBytes());
+        os.close();
+    }
+}
@@ -0,0 +1,71 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.javassist.tools.VFXMetrics;
+
+/**
+ * Picks the requests of an endpoint whose instruction counts are reported:
+ * 1 in SAMPLE_EVERY (default 1, all of them), or 1 in
+ * SAMPLE_EVERY_<ENDPOINT> for that endpoint; 0 reports none.
+ *
+ * Under the VFXSampledMetrics agent the other requests run uninstrumented
+ * copies of the methods. Under VFXMetrics they are still counted, but the
+ * counts are not reported. The metric of a sampled request carries
+ * sampleWeight, the number of requests it stands for, so consumers can
+ * weight it; the others have no sampleWeight and no VFXMetrics counters.
+ *
+ * Sampling and counting are per thread, so the counts only cover the thread
+ * that called start. Work the request hands to other threads (the
+ * raytracer's pool with multi=true, the bands of /enhanceimage's equalizer)
+ * is left out: under VFXSampledMetrics those threads run the uninstrumented
+ * copies, under VFXMetrics they count into counters nobody reads.
+ */
+public class Sampler {
+
+    public static int EVERY = System.getenv("SAMPLE_EVERY") == null
+            ? 1 : Integer.parseInt(System.getenv("SAMPLE_EVERY"));
+
+    private final int every;
+    private final AtomicLong requests = new AtomicLong();
+
+    public Sampler(String endpoint) {
+        String every = System.getenv("SAMPLE_EVERY_" + endpoint.toUpperCase());
+        this.every = every == null ? EVERY : Integer.parseInt(every);
+    }
+
+    /**
+     * Starts counting the request the current thread is about to run.
+     * Returns its weight, 0 if it is not sampled.
+     */
+    public int start() {
+        int weight = this.every > 0 && this.requests.getAndIncrement() % this.every == 0 ? this.every : 0;
+        VFXMetrics.resetStats();
+        VFXMetrics.setSampled(weight > 0);
+        return weight;
+    }
+
+    /**
+     * Stops counting on the current thread; call it even if the request
+     * failed.
+     */
+    public static void stop() {
+        VFXMetrics.setSampled(false);
+    }
+
+    /**
+     * Raw data of a request started with the given weight: the VFXMetrics
+     * counters and sampleWeight if it was sampled, nothing otherwise.
+     */
+    public static Map<String, Long> getStats(int weight) {
+        if (weight == 0) {
+            return new HashMap<>();
+        }
+        Map<String, Long> stats = VFXMetrics.getStats();
+        stats.put(WorkerMetric.Counter.SAMPLE_WEIGHT.getKey(), (long) weight);
+        return stats;
+    }
+}
@@ -0,0 +1,187 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import pt.ulisboa.tecnico.cnv.common.RecordingOutputStream;
+
+/**
+ * Coalesces identical requests that arrive while one of them is being
+ * processed: the first (the leader) runs the handler, the others wait for
+ * it and are sent a copy of its response, with HEADER set.
+ *
+ * Requests are identical if they have the same method, URI, Content-Type
+ * and body (SHA-256). Only requests with a Content-Length of at most
+ * MAX_BYTES are coalesced, since the body has to be read before knowing
+ * whether to wait; others go straight to the handler. The leader's response
+ * is recorded while it is sent, up to MAX_BYTES.
+ *
+ * wrap goes outside the admission controller, so waiting requests hold no
+ * processing thread. Only 2xx responses are replayed: if the leader fails,
+ * is answered with an error (a full queue, a bad image), or its response was
+ * too large to record, the waiting requests are released and elect a new
+ * leader among themselves, so nobody hangs on, or is handed, a failed
+ * computation.
+ *
+ * Off unless COALESCE is true.
+ */
+public class SingleFlight {
+
+    public static boolean ENABLED = System.getenv("COALESCE") != null
+            && Boolean.parseBoolean(System.getenv("COALESCE"));
+
+    // largest request and response bodies coalesced
+    public static long MAX_BYTES = System.getenv("COALESCE_MAX_BYTES") == null
+            ? 16L << 20 : Long.parseLong(System.getenv("COALESCE_MAX_BYTES"));
+
+    public static final String HEADER = "X-Coalesced";
+
+    private static final ConcurrentHashMap<String, CompletableFuture<Response>> flights = new ConcurrentHashMap<>();
+
+    private static final AtomicLong leaders = new AtomicLong();
+    private static final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Status, headers and body of a leader's response.
+     */
+    private static class Response {
+        final int status;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+
+        Response(int status, Map<String, List<String>> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+    }
+
+    public static HttpHandler wrap(HttpHandler handler) {
+        return exchange -> {
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (!ENABLED || exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")
+                    || contentLength == null || Long.parseLong(contentLength) > MAX_BYTES) {
+                handler.handle(exchange);
+                return;
+            }
+
+            MessageDigest digest = newDigest(exchange);
+            byte[] body;
+            try (InputStream stream = new DigestInputStream(exchange.getRequestBody(), digest)) {
+                body = stream.readAllBytes();
+            }
+            String key = toHex(digest.digest());
+
+            while (true) {
+                CompletableFuture<Response> flight = new CompletableFuture<>();
+                CompletableFuture<Response> leader = flights.putIfAbsent(key, flight);
+                if (leader == null) {
+                    lead(exchange, handler, key, flight, body);
+                    return;
+                }
+
+                Response response = await(leader);
+                if (response != null) {
+                    coalesced.incrementAndGet();
+                    replay(exchange, response);
+                    return;
+                }
+                // the leader failed or got an error, try again (maybe as the leader)
+            }
+        };
+    }
+
+    private static void lead(HttpExchange exchange, HttpHandler handler, String key,
+            CompletableFuture<Response> flight, byte[] body) throws IOException {
+        leaders.incrementAndGet();
+        RecordingOutputStream recorder = new RecordingOutputStream(exchange.getResponseBody(), MAX_BYTES);
+        exchange.setStreams(new ByteArrayInputStream(body), recorder);
+
+        Response response = null;
+        try {
+            handler.handle(exchange);
+            byte[] recorded = recorder.recorded();
+            int status = exchange.getResponseCode();
+            if (recorded != null && status >= 200 && status < 300) {
+                Map<String, List<String>> headers = new HashMap<>(exchange.getResponseHeaders());
+                headers.keySet().removeIf(name -> name.equalsIgnoreCase("Content-length")
+                        || name.equalsIgnoreCase("Transfer-encoding") || name.equalsIgnoreCase("Date"));
+                response = new Response(status, headers, recorded);
+            }
+        } finally {
+            // later arrivals start a new flight
+            flights.remove(key, flight);
+            flight.complete(response);
+        }
+    }
+
+    private static Response await(CompletableFuture<Response> leader) throws IOException {
+        try {
+            return leader.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for an identical request", e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private static void replay(HttpExchange exchange, Response response) throws IOException {
+        for (Map.Entry<String, List<String>> header : response.headers.entrySet()) {
+            exchange.getResponseHeaders().put(header.getKey(), header.getValue());
+        }
+        exchange.getResponseHeaders().set(HEADER, "true");
+        exchange.sendResponseHeaders(response.status, response.body.length == 0 ? -1 : response.body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response.body);
+        }
+    }
+
+    private static MessageDigest newDigest(HttpExchange exchange) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            String head = exchange.getRequestMethod() + " " + exchange.getRequestURI() + "\n"
+                    + (contentType == null ? "" : contentType) + "\n";
+            digest.update(head.getBytes(StandardCharsets.UTF_8));
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Leader requests and requests served from a leader's response since
+     * startup.
+     */
+    public static Map<String, Long> getTotals() {
+        Map<String, Long> map = new HashMap<>();
+        map.put("coalesceLeaders", leaders.get());
+        map.put("coalesced", coalesced.get());
+        return map;
+    }
+}
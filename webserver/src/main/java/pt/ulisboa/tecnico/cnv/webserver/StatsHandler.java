@@ -8,9 +8,9 @@ import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import java.net.URI;
 import java.util.concurrent.BlockingQueue;
-import java.io.ObjectOutputStream;
 
 import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetricCodec;
 
 public class StatsHandler implements HttpHandler {
 
@@ -38,8 +38,8 @@ public class StatsHandler implements HttpHandler {
 
         // 0 lenght signals that an arbitrary amout of data is going to be sent
         he.sendResponseHeaders(200, 0); 
-        ObjectOutputStream os = new ObjectOutputStream(he.getResponseBody());
-        os.writeObject(metrics);
+        OutputStream os = he.getResponseBody();
+        WorkerMetricCodec.writeList(os, metrics);
         os.close();
     }
 }
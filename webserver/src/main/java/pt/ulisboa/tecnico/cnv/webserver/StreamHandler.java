@@ -0,0 +1,131 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetricCodec;
+
+/**
+ * Pushes this worker's metrics to the load balancer as they happen, over a
+ * long-lived chunked response to GET /stream.
+ *
+ * The response is a sequence of frames, each a type byte followed by:
+ *
+ *   METRIC: a metric in the WorkerMetricCodec form, sent when a request
+ *           completes
+ *   LOAD:   int in flight, int queued, int max concurrent, int max queue,
+ *           double CPU usage (%), sent every SNAPSHOT_MS
+ *
+ * Frames are flushed as soon as they are written. Each connection has a
+ * bounded queue of metrics; if the reader falls behind, new metrics are
+ * dropped for it (and counted) rather than held.
+ *
+ * The stream does not tell the worker its id; the balancer does that through
+ * /cpuUsage before opening it.
+ */
+public class StreamHandler implements HttpHandler {
+
+    public static final int METRIC = 1;
+    public static final int LOAD = 2;
+
+    // time between load snapshots
+    public static long SNAPSHOT_MS = System.getenv("STREAM_SNAPSHOT_MS") == null
+            ? 100 : Long.parseLong(System.getenv("STREAM_SNAPSHOT_MS"));
+
+    // metrics waiting to be sent on each connection
+    private static final int QUEUE_SIZE = 1024;
+
+    private static final Set<BlockingQueue<WorkerMetric>> subscribers = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private final OperatingSystemMXBean osBean = ManagementFactory.getPlatformMXBean(OperatingSystemMXBean.class);
+    private final AdmissionController admission;
+
+    public StreamHandler(AdmissionController admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * Hands a completed request's metric to every open stream.
+     */
+    public static void publish(WorkerMetric metric) {
+        for (BlockingQueue<WorkerMetric> queue : subscribers) {
+            if (!queue.offer(metric)) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void handle(HttpExchange he) throws IOException {
+        // Handling CORS
+        he.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+
+        if (he.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
+            he.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, OPTIONS");
+            he.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            he.sendResponseHeaders(204, -1);
+            return;
+        }
+
+        BlockingQueue<WorkerMetric> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        subscribers.add(queue);
+        System.out.printf("metric stream opened by %s\n", he.getRemoteAddress());
+
+        // 0 lenght signals that an arbitrary amout of data is going to be sent
+        he.sendResponseHeaders(200, 0);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(he.getResponseBody()));
+        try {
+            long nextSnapshot = 0;
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now >= nextSnapshot) {
+                    writeLoad(out);
+                    nextSnapshot = now + SNAPSHOT_MS;
+                }
+
+                WorkerMetric metric = queue.poll(Math.max(1, nextSnapshot - now), TimeUnit.MILLISECONDS);
+                while (metric != null) {
+                    out.writeByte(METRIC);
+                    WorkerMetricCodec.write(out, metric);
+                    metric = queue.poll();
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.printf("metric stream to %s closed: %s\n", he.getRemoteAddress(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscribers.remove(queue);
+            he.close();
+        }
+    }
+
+    private void writeLoad(DataOutputStream out) throws IOException {
+        out.writeByte(LOAD);
+        out.writeInt(admission.getInFlight());
+        out.writeInt(admission.getQueued());
+        out.writeInt(AdmissionController.MAX_CONCURRENT);
+        out.writeInt(AdmissionController.MAX_QUEUE);
+        out.writeDouble(osBean.getSystemCpuLoad() * 100);
+    }
+}
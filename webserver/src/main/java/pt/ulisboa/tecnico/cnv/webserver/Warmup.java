@@ -0,0 +1,216 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import pt.ulisboa.tecnico.cnv.common.Handler;
+
+/**
+ * Runs synthetic requests through the handlers when the worker starts, so
+ * the JIT has compiled the hot paths before real requests arrive: a fresh
+ * JVM runs them several times slower in the interpreter and C1, and the load
+ * balancer would learn its estimates from those outliers.
+ *
+ * Each round renders a few generated scenes and blurs and enhances a few
+ * generated images, on as many threads as there are cores; the scenes and
+ * images change every round so all branches get profiled. Rounds go on until
+ * the JIT spends less than SETTLED of a round compiling (after MIN_ROUNDS),
+ * or MAX_MILLIS have passed. Requests go through Handler.actuallyHandle, so
+ * they record no metrics and skip the result cache.
+ *
+ * The worker is ready (see ReadyHandler) once warm-up is done.
+ */
+public class Warmup implements Runnable {
+
+    public static boolean ENABLED = System.getenv("WARMUP") == null
+            || Boolean.parseBoolean(System.getenv("WARMUP"));
+
+    // longest warm-up, in ms
+    public static long MAX_MILLIS = System.getenv("WARMUP_MAX_MS") == null
+            ? 60000 : Long.parseLong(System.getenv("WARMUP_MAX_MS"));
+
+    // fraction of a round spent compiling below which the JIT has settled
+    public static double SETTLED = System.getenv("WARMUP_SETTLED") == null
+            ? 0.02 : Double.parseDouble(System.getenv("WARMUP_SETTLED"));
+
+    private static final int MIN_ROUNDS = 3;
+
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private final Handler raytracer;
+    private final Handler blur;
+    private final Handler enhance;
+
+    private volatile boolean ready = !ENABLED;
+
+    public Warmup(Handler raytracer, Handler blur, Handler enhance) {
+        this.raytracer = raytracer;
+        this.blur = blur;
+        this.enhance = enhance;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public void start() {
+        if (ENABLED) {
+            new Thread(this, "warmup").start();
+        }
+    }
+
+    @Override
+    public void run() {
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        boolean timed = jit != null && jit.isCompilationTimeMonitoringSupported();
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+
+        long start = System.currentTimeMillis();
+        int round = 0;
+        try {
+            while (System.currentTimeMillis() - start < MAX_MILLIS) {
+                long compiled = timed ? jit.getTotalCompilationTime() : 0;
+                long roundStart = System.currentTimeMillis();
+
+                List<Future<?>> requests = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    Random random = new Random(round * THREADS + t);
+                    requests.add(pool.submit(() -> runRound(random)));
+                }
+                for (Future<?> request : requests) {
+                    request.get();
+                }
+                round++;
+
+                long elapsed = Math.max(1, System.currentTimeMillis() - roundStart);
+                double compiling = timed ? (double) (jit.getTotalCompilationTime() - compiled) / elapsed : 1;
+                System.out.printf("warm-up round %d took %d ms, %.1f%% compiling\n", round, elapsed, compiling * 100);
+                if (round >= MIN_ROUNDS && compiling < SETTLED) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // a broken warm-up request must not keep the worker out of service
+            e.printStackTrace();
+        } finally {
+            pool.shutdown();
+            ready = true;
+        }
+        System.out.printf("warm-up done after %d rounds in %d ms\n", round, System.currentTimeMillis() - start);
+    }
+
+    private void runRound(Random random) {
+        boolean aa = random.nextBoolean();
+        raytracer.actuallyHandle(uri("/raytracer?scols=128&srows=128&wcols=128&wrows=128&coff=0&roff=0&aa=" + aa
+                + "&format=" + (random.nextBoolean() ? "bmp" : "png")), sceneBody(random, false));
+        raytracer.actuallyHandle(uri("/raytracer?scols=96&srows=96&wcols=96&wrows=96&coff=0&roff=0&format=png"),
+                sceneBody(random, true));
+
+        String[] qualities = { "exact", "box", "pyramid" };
+        String png = dataUrl(random, "png");
+        String jpg = dataUrl(random, "jpeg");
+        blur.actuallyHandle(uri("/blurimage?quality=" + qualities[random.nextInt(qualities.length)]), stream(png));
+        blur.actuallyHandle(uri("/blurimage"), stream(jpg));
+        enhance.actuallyHandle(uri("/enhanceimage"), stream(png));
+        enhance.actuallyHandle(uri("/enhanceimage"), stream(jpg));
+    }
+
+    /**
+     * JSON body of a ray tracing request: a few spheres of solid (and, with
+     * texmap, textured) pigments, lit by two lights, at random places.
+     */
+    static ByteArrayInputStream sceneBody(Random random, boolean texmap) {
+        StringBuilder scene = new StringBuilder();
+        scene.append("0 0 0\n0 0 -1\n0 1 0\n30\n\n");
+        scene.append("3\n");
+        scene.append("0 0 0 0.2 0.2 0.2 1 0 0\n");
+        scene.append(String.format("%d 100 10 1.0 1.0 1.0 1 0 0\n", random.nextInt(40) - 20));
+        scene.append("100 100 100 0.8 0.8 0.8 1 0 0\n\n");
+
+        scene.append(texmap ? "4\n" : "3\n");
+        scene.append("solid 1 0 0\nsolid 0 1 0\nsolid 0 0 1\n");
+        if (texmap) {
+            scene.append("texmap warmup.bmp\n.5 0 0 0\n0 .5 0 0\n");
+        }
+        scene.append("\n2\n");
+        scene.append("0.4 0.6 0.0 1 0 0 0\n");
+        scene.append("0.4 0.6 0.7 500 0.5 0 0\n\n");
+
+        int spheres = 3 + random.nextInt(4);
+        scene.append(spheres).append('\n');
+        for (int i = 0; i < spheres; i++) {
+            int pigment = texmap && i == 0 ? 3 : random.nextInt(3);
+            scene.append(String.format("%d %d sphere %d %d %d %d\n", pigment, random.nextInt(2),
+                    random.nextInt(12) - 6, random.nextInt(12) - 6, -15 - random.nextInt(15), 1 + random.nextInt(3)));
+        }
+
+        StringBuilder json = new StringBuilder("{\"scene\":\"");
+        json.append(scene.toString().replace("\n", "\\n")).append('"');
+        if (texmap) {
+            json.append(",\"texmap\":[");
+            byte[] bmp = encode(image(random, 32, 32), "bmp");
+            for (int i = 0; i < bmp.length; i++) {
+                json.append(i == 0 ? "" : ",").append(bmp[i] & 0xff);
+            }
+            json.append(']');
+        }
+        json.append('}');
+        return stream(json.toString());
+    }
+
+    static String dataUrl(Random random, String format) {
+        byte[] bytes = encode(image(random, 256 + random.nextInt(64), 192 + random.nextInt(64)), format);
+        return String.format("data:image/%s;base64,%s", format, Base64.getEncoder().encodeToString(bytes));
+    }
+
+    // smooth gradients with noise, so blurring and equalizing have work to do
+    private static BufferedImage image(Random random, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int phase = random.nextInt(256);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + phase) & 0xff;
+                int g = (y * 255 / height) & 0xff;
+                int b = random.nextInt(64) + ((x ^ y) & 0x7f);
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, String format) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, format, out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ByteArrayInputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static URI uri(String uri) {
+        return URI.create(uri);
+    }
+}
@@ -9,36 +9,36 @@ import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.io.FileWriter;
-import java.io.InputStream;
-import java.io.ByteArrayInputStream;
 import java.time.Instant;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.core.type.TypeReference;
 
 import pt.ulisboa.tecnico.cnv.imageproc.BlurImageHandler;
 import pt.ulisboa.tecnico.cnv.imageproc.EnhanceImageHandler;
+import pt.ulisboa.tecnico.cnv.imageproc.ImageBufferPool;
+import pt.ulisboa.tecnico.cnv.imageproc.ResultCache;
+import pt.ulisboa.tecnico.cnv.imageproc.ImageProcessingHandler;
 import pt.ulisboa.tecnico.cnv.raytracer.RaytracerHandler;
-import pt.ulisboa.tecnico.cnv.raytracer.Camera;
-import pt.ulisboa.tecnico.cnv.raytracer.RayTracer;
+import pt.ulisboa.tecnico.cnv.raytracer.RaytracerRequest;
+import pt.ulisboa.tecnico.cnv.common.ImageEncoder;
 import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
 
-import pt.ulisboa.tecnico.cnv.javassist.tools.VFXMetrics;
-
 public class WebServer {
 
-    private final static ObjectMapper mapper = new ObjectMapper();
-    private static String outFile = "/tmp/randomFileForLogs.dsa";
-    private static BlockingQueue<WorkerMetric> pendingStats = new LinkedBlockingQueue<>();
+    // metrics waiting to be written; bounded so a slow DynamoDB cannot exhaust memory
+    private static int PENDING_STATS_CAPACITY = System.getenv("PENDING_STATS_CAPACITY") == null
+            ? 10000 : Integer.parseInt(System.getenv("PENDING_STATS_CAPACITY"));
+    private static BlockingQueue<WorkerMetric> pendingStats = new LinkedBlockingQueue<>(PENDING_STATS_CAPACITY);
+    // metrics dropped because pendingStats was full
+    private static AtomicLong droppedStats = new AtomicLong();
     private static BlockingQueue<WorkerMetric> statsServiceQueue = new LinkedBlockingQueue<>();
     private static boolean DYNAMO_PRODUCTION = true;
 
@@ -51,36 +51,39 @@ public class WebServer {
     private static class WrapperHandler implements HttpHandler {
         HttpHandler handler;
         AtomicReference<Optional<String>> idOpt;
+        Sampler sampler;
 
-        public WrapperHandler(AtomicReference<Optional<String>> idOpt, HttpHandler handler) {
+        public WrapperHandler(AtomicReference<Optional<String>> idOpt, Sampler sampler, HttpHandler handler) {
             this.handler = handler;
             this.idOpt = idOpt;
+            this.sampler = sampler;
         }
 
         public void handle(HttpExchange exchange) throws IOException {
             System.out.println("just got a request");
-            VFXMetrics.resetStats();
+            int weight = this.sampler.start();
 
             long startTime = System.nanoTime();
-            this.handler.handle(exchange);
+            try {
+                this.handler.handle(exchange);
+            } finally {
+                Sampler.stop();
+            }
             long endTime = System.nanoTime();
 
-            Map<String, Long> rawStats = VFXMetrics.getStats();
+            Map<String, Long> rawStats = Sampler.getStats(weight);
 
             // get body size
-            long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            long bodySize = contentLength == null ? -1 : Long.parseLong(contentLength);
 
             if (idOpt.get().isPresent()) {
                 String wid = idOpt.get().get();
                 // enrich raw stats with context
                 WorkerMetric metric = new WorkerMetric(wid, exchange.getRequestURI().toString(), new HashMap<>(), rawStats, bodySize, endTime-startTime);
 
-                try {
-                    pendingStats.put(metric);
-                    System.out.printf("request done - %s\n", metric.toString());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                enqueueMetric(metric);
+                System.out.printf("request done - %s\n", metric.toString());
             } else {
                 System.out.printf("droped metric because don't yet know my id\n");
             }
@@ -92,39 +95,57 @@ public class WebServer {
      * modifies original handler to log statistics about handler execution
      */
     private static class ImageProcWrapperHandler implements HttpHandler {
-        HttpHandler handler;
+        ImageProcessingHandler handler;
         AtomicReference<Optional<String>> idOpt;
+        Sampler sampler;
 
-        public ImageProcWrapperHandler(AtomicReference<Optional<String>> idOpt, HttpHandler handler) {
+        public ImageProcWrapperHandler(AtomicReference<Optional<String>> idOpt, Sampler sampler, ImageProcessingHandler handler) {
             this.handler = handler;
             this.idOpt = idOpt;
+            this.sampler = sampler;
         }
 
         public void handle(HttpExchange exchange) throws IOException {
             System.out.println("just got a request");
             long startTime = System.nanoTime();
-            VFXMetrics.resetStats();
+            int weight = this.sampler.start();
+            ImageBufferPool.resetStats();
+            ImageEncoder.resetStats();
+            ResultCache.resetStats();
             System.out.println("handing out request to handler");
-            this.handler.handle(exchange);
+            try {
+                this.handler.handle(exchange);
+            } finally {
+                Sampler.stop();
+            }
             long endTime = System.nanoTime();
 
-            Map<String, Long> rawStats = VFXMetrics.getStats();
+            Map<String, Long> rawStats = Sampler.getStats(weight);
+            rawStats.putAll(ImageBufferPool.getStats());
+            rawStats.putAll(ImageEncoder.getStats());
+            rawStats.putAll(ResultCache.getStats());
+            rawStats.putAll(AdmissionController.getStats());
 
             // get body size
-            long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
+            // (chunked binary uploads carry no Content-Length)
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            long bodySize = contentLength == null ? -1 : Long.parseLong(contentLength);
 
             if (idOpt.get().isPresent()) {
                 String wid = idOpt.get().get();
 
+                // blur cost depends on the requested quality mode
+                Map<String, String> parameters = new HashMap<>();
+                if (this.handler instanceof BlurImageHandler) {
+                    Map<String, String> query = this.handler.queryToMap(exchange.getRequestURI().getRawQuery());
+                    parameters.put("quality", BlurImageHandler.Quality.fromParameters(query).name().toLowerCase());
+                }
+
                 // enrich raw stats with context
-                WorkerMetric metric = new WorkerMetric(wid, exchange.getRequestURI().toString(), new HashMap<>(), rawStats, bodySize, endTime-startTime);
+                WorkerMetric metric = new WorkerMetric(wid, exchange.getRequestURI().toString(), parameters, rawStats, bodySize, endTime-startTime);
 
-                try {
-                    pendingStats.put(metric);
-                    System.out.printf("request done - %s\n", metric.toString());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                enqueueMetric(metric);
+                System.out.printf("request done - %s\n", metric.toString());
             } else {
                 System.out.printf("droped metric because don't yet know my id\n");
             }
@@ -138,10 +159,12 @@ public class WebServer {
     private static class RayTracerWrapperHandler implements HttpHandler {
         HttpHandler handler;
         AtomicReference<Optional<String>> idOpt;
+        Sampler sampler;
 
-        public RayTracerWrapperHandler(AtomicReference<Optional<String>> idOpt, HttpHandler handler) {
+        public RayTracerWrapperHandler(AtomicReference<Optional<String>> idOpt, Sampler sampler, HttpHandler handler) {
             this.handler = handler;
             this.idOpt = idOpt;
+            this.sampler = sampler;
         }
 
 
@@ -161,47 +184,13 @@ public class WebServer {
             return result;
         }
 
+        /**
+         * Decodes the request once, keeping it in the exchange for the
+         * handler, and returns its scene features.
+         */
         public Map<String, String> parseInputFile(HttpExchange exchange) {
             try {
-                URI requestedUri = exchange.getRequestURI();
-                String query = requestedUri.getRawQuery();
-                Map<String, String> parameters = queryToMap(query);
-
-                // get parameters
-                int scols = Integer.parseInt(parameters.get("scols"));
-                int srows = Integer.parseInt(parameters.get("srows"));
-                int wcols = Integer.parseInt(parameters.get("wcols"));
-                int wrows = Integer.parseInt(parameters.get("wrows"));
-                int coff = Integer.parseInt(parameters.get("coff"));
-                int roff = Integer.parseInt(parameters.get("roff"));
-
-                // duplicate stream with request body
-                byte[] content = exchange.getRequestBody().readAllBytes();
-                InputStream stream = new ByteArrayInputStream(content);
-                InputStream copy = new ByteArrayInputStream(content);
-                exchange.setStreams(copy, null);
-                
-                Map<String, Object> body = mapper.readValue(stream, new TypeReference<>() {});
-                byte[] input = ((String) body.get("scene")).getBytes();
-                
-                RayTracer rayTracer = new RayTracer(scols, srows, wcols, wrows, coff, roff);
-                rayTracer.readScene(input, null);
-
-                // extract parameters resulting from reading scene
-                Map<String, String> data = new HashMap();
-                Camera camera = rayTracer.getCamera();
-                data.put("eye", camera.getEye().toString());
-                data.put("vx", camera.getVx().toString());
-                data.put("vy", camera.getVy().toString());
-                data.put("vz", camera.getVz().toString());
-                data.put("windowDistance", Double.toString(camera.getWindowDistance()));
-                data.put("windowWidth", Double.toString(camera.getWindowWidth()));
-                data.put("windowHeight", Double.toString(camera.getWindowHeight()));
-                data.put("rows", Double.toString(camera.getRows()));
-                data.put("cols", Double.toString(camera.getCols()));
-                data.put("lightCount", Integer.toString(rayTracer.getLights().size()));
-                data.put("shapeCount", Integer.toString(rayTracer.getShapes().size()));
-                return data;
+                return RaytracerRequest.of(exchange).getFeatures();
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new RuntimeException(e);
@@ -214,14 +203,22 @@ public class WebServer {
             // Parse input file
             long startTime = System.nanoTime();
             Map<String, String> parameters = parseInputFile(exchange);
-            VFXMetrics.resetStats();
-            this.handler.handle(exchange);
+            int weight = this.sampler.start();
+            ImageEncoder.resetStats();
+            try {
+                this.handler.handle(exchange);
+            } finally {
+                Sampler.stop();
+            }
             long endTime = System.nanoTime();
 
-            Map<String, Long> rawStats = VFXMetrics.getStats();
+            Map<String, Long> rawStats = Sampler.getStats(weight);
+            rawStats.putAll(ImageEncoder.getStats());
+            rawStats.putAll(AdmissionController.getStats());
 
             // get body size
-            long bodySize = Long.parseLong(exchange.getRequestHeaders().getFirst("Content-Length"));
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            long bodySize = contentLength == null ? -1 : Long.parseLong(contentLength);
 
             if (idOpt.get().isPresent()) {
                 String wid = idOpt.get().get();
@@ -229,50 +226,68 @@ public class WebServer {
                 // enrich raw stats with context
                 WorkerMetric metric = new WorkerMetric(wid, exchange.getRequestURI().toString(), parameters, rawStats, bodySize, endTime-startTime);
 
-                try {
-                    pendingStats.put(metric);
-                    System.out.printf("request done - %s\n", metric.toString());
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+                enqueueMetric(metric);
+                System.out.printf("request done - %s\n", metric.toString());
             } else {
                 System.out.printf("droped metric because don't yet know my id\n");
             }
         }
     }
 
+    /**
+     * Pushes a metric to the open metric streams, and queues it for writing
+     * without ever blocking the request. When the
+     * queue is full the oldest metric is dropped, since the newest ones are
+     * the most useful to the load balancer.
+     */
+    private static void enqueueMetric(WorkerMetric metric) {
+        StreamHandler.publish(metric);
+        while (!pendingStats.offer(metric)) {
+            if (pendingStats.poll() != null) {
+                long dropped = droppedStats.incrementAndGet();
+                if (dropped % 1000 == 1) {
+                    System.out.printf("pending stats full, dropped %d metrics so far\n", dropped);
+                }
+            }
+        }
+    }
+
+    public static long getDroppedStats() {
+        return droppedStats.get();
+    }
+
     /**
      * Pushes metrics to shared storage/file/makes it available for the AS/LB.
      */
     private static void handleWrites() {
         List<WorkerMetric> metrics;
-        try {
-            try (FileWriter writer = new FileWriter(outFile)) {
-                Runtime.getRuntime().addShutdownHook(new Thread() {
-                    public void run() {
-                        try {
-                            writer.flush();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-                while (true) {
-                    metrics = new ArrayList<>();
-                    // block until there's one
-                    metrics.add(pendingStats.take()); 
-                    pendingStats.drainTo(metrics); 
-
-                    dynamoWriter.pushMetrics(metrics);
-
-                    for (WorkerMetric metric: metrics) {
-                        System.out.println("writing out something");
-                        writer.write(metric.toCsv() + "\n");
-                    }
+        try (MetricsLog log = new MetricsLog(MetricsLog.DIR)) {
+            // appends after the hook closes the log are ignored
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> closeQuietly(log)));
+            while (true) {
+                metrics = new ArrayList<>();
+                // block until there's one
+                metrics.add(pendingStats.take());
+                pendingStats.drainTo(metrics);
+
+                // the local log first: it must not wait on the network
+                for (WorkerMetric metric: metrics) {
+                    log.append(metric);
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                log.flush();
+
+                dynamoWriter.pushMetrics(metrics);
             }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(MetricsLog log) {
+        try {
+            log.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -311,14 +326,29 @@ public class WebServer {
             dynamoWriter = new DynamoWriterDummy(String.valueOf(port));
         }
 
+        // connections on light threads, CPU-bound requests on a bounded pool
+        AdmissionController admission = new AdmissionController();
+        DrainController drain = new DrainController();
+        Warmup warmup = new Warmup(new RaytracerHandler(), new BlurImageHandler(), new EnhanceImageHandler());
+        EndpointStats endpointStats = new EndpointStats();
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
-        server.createContext("/", new WrapperHandler(idOpt, new RootHandler()));
+        server.setExecutor(AdmissionController.connectionExecutor());
+        server.createContext("/", new WrapperHandler(idOpt, new Sampler("root"), new RootHandler()));
         server.createContext("/cpu", new CpuUsageHandler(idOpt));
-        server.createContext("/raytracer", new RayTracerWrapperHandler(idOpt, new RaytracerHandler()));
-        server.createContext("/blurimage", new ImageProcWrapperHandler(idOpt, new BlurImageHandler()));
-        server.createContext("/enhanceimage", new ImageProcWrapperHandler(idOpt, new EnhanceImageHandler()));
+        server.createContext("/load", new LoadHandler(admission));
+        server.createContext("/stream", new StreamHandler(admission));
+        server.createContext("/drain", new DrainHandler(drain, admission));
+        server.createContext("/ready", new ReadyHandler(warmup, drain));
+        server.createContext("/metrics", new MetricsHandler(endpointStats, admission, drain, dynamoWriter));
+        server.createContext("/raytracer", endpointStats.wrap("raytracer",
+                drain.wrap(SingleFlight.wrap(admission.wrap(new RayTracerWrapperHandler(idOpt, new Sampler("raytracer"), new RaytracerHandler()))))));
+        server.createContext("/blurimage", endpointStats.wrap("blurimage",
+                drain.wrap(SingleFlight.wrap(admission.wrap(new ImageProcWrapperHandler(idOpt, new Sampler("blurimage"), new BlurImageHandler()))))));
+        server.createContext("/enhanceimage", endpointStats.wrap("enhanceimage",
+                drain.wrap(SingleFlight.wrap(admission.wrap(new ImageProcWrapperHandler(idOpt, new Sampler("enhanceimage"), new EnhanceImageHandler()))))));
         setupLogger();
         server.start();
+        // /ready answers 503 until this is done
+        warmup.start();
     }
 }
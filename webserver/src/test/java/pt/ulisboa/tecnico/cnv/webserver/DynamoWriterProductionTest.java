@@ -0,0 +1,49 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+
+public class DynamoWriterProductionTest {
+
+    private static AmazonServiceException service(int status, String code) {
+        AmazonServiceException e = new AmazonServiceException(code);
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+
+    @Test
+    public void throttlingIsRetried() {
+        assertTrue(DynamoWriterProduction.isRetryable(service(400, "ProvisionedThroughputExceededException")));
+        assertTrue(DynamoWriterProduction.isRetryable(service(400, "ThrottlingException")));
+        assertTrue(DynamoWriterProduction.isRetryable(service(429, "TooManyRequestsException")));
+    }
+
+    @Test
+    public void serverErrorsAreRetried() {
+        assertTrue(DynamoWriterProduction.isRetryable(service(500, "InternalServerError")));
+        assertTrue(DynamoWriterProduction.isRetryable(service(503, "ServiceUnavailable")));
+    }
+
+    @Test
+    public void clientIoErrorsAreRetried() {
+        assertTrue(DynamoWriterProduction.isRetryable(
+                new SdkClientException("Unable to execute HTTP request", new SocketTimeoutException())));
+    }
+
+    @Test
+    public void permanentErrorsAreNot() {
+        assertFalse(DynamoWriterProduction.isRetryable(service(400, "ValidationException")));
+        assertFalse(DynamoWriterProduction.isRetryable(service(400, "ResourceNotFoundException")));
+        assertFalse(DynamoWriterProduction.isRetryable(service(403, "AccessDeniedException")));
+        assertFalse(DynamoWriterProduction.isRetryable(new SdkClientException("Unable to load credentials")));
+        assertFalse(DynamoWriterProduction.isRetryable(new IllegalArgumentException()));
+    }
+}
@@ -0,0 +1,115 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getSum());
+        assertEquals(0, histogram.quantile(0.5));
+        assertEquals(0, histogram.quantile(0.999));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for (long value = 0; value < 8; value++) {
+            assertEquals(value, LatencyHistogram.upperBound(LatencyHistogram.bucket(value)));
+        }
+    }
+
+    @Test
+    public void bucketsHoldTheirValuesWithinAnEighth() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            long value = 8 + (random.nextLong() >>> (24 + random.nextInt(40)));
+            if (value >= 1L << 40) {
+                continue;
+            }
+            int bucket = LatencyHistogram.bucket(value);
+            long upper = LatencyHistogram.upperBound(bucket);
+            long lower = LatencyHistogram.upperBound(bucket - 1) + 1;
+            assertTrue(value + " above its bucket", value <= upper);
+            assertTrue(value + " below its bucket", value >= lower);
+            assertTrue(value + " off by more than 12.5%", upper - value <= value / 8);
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        long previous = -1;
+        for (long value = 0; value < 1 << 16; value++) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            previous = bucket;
+        }
+    }
+
+    @Test
+    public void largeValuesLandInTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1L << 50);
+        histogram.record(-5);
+        assertEquals((1L << 40) - 1, histogram.quantile(1.0));
+        assertEquals(0, histogram.quantile(0.5));
+        assertEquals(2, histogram.getCount());
+    }
+
+    @Test
+    public void quantilesWithinAnEighthOfExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(2);
+        long[] values = new long[50000];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            // log-normal around 5 ms, like request latencies
+            values[i] = (long) Math.exp(Math.log(5e6) + random.nextGaussian());
+            histogram.record(values[i]);
+            sum += values[i];
+        }
+        Arrays.sort(values);
+
+        assertEquals(values.length, histogram.getCount());
+        assertEquals(sum, histogram.getSum());
+        for (double q : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+            long exact = values[(int) Math.ceil(q * values.length) - 1];
+            long estimate = histogram.quantile(q);
+            assertTrue(q + ": " + estimate + " below " + exact, estimate >= exact);
+            assertTrue(q + ": " + estimate + " too far above " + exact, estimate - exact <= exact / 8);
+        }
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int threads = 8;
+        int perThread = 100000;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final long value = 1000 * (t + 1);
+            pool.execute(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    histogram.record(value);
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(30, TimeUnit.SECONDS));
+
+        assertEquals((long) threads * perThread, histogram.getCount());
+        assertEquals(perThread * 1000L * threads * (threads + 1) / 2, histogram.getSum());
+        long max = histogram.quantile(1.0);
+        assertTrue(max >= 8000 && max - 8000 <= 1000);
+    }
+}
@@ -0,0 +1,188 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+
+public class MetricsLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long segmentBytes;
+    private long retainBytes;
+
+    @Before
+    public void saveLimits() {
+        segmentBytes = MetricsLog.SEGMENT_BYTES;
+        retainBytes = MetricsLog.RETAIN_BYTES;
+    }
+
+    @After
+    public void restoreLimits() {
+        MetricsLog.SEGMENT_BYTES = segmentBytes;
+        MetricsLog.RETAIN_BYTES = retainBytes;
+    }
+
+    private static WorkerMetric metric(long seq) {
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("quality", seq % 2 == 0 ? "box" : "exact");
+        parameters.put("wcols", String.valueOf(seq * 10));
+        Map<String, Long> rawData = new HashMap<>();
+        rawData.put("ninsts", seq * 1_000_003);
+        rawData.put("nblocks", seq * 7);
+        rawData.put("custom", -seq);
+        return new WorkerMetric(seq, "worker-" + seq % 3, "/blurimage?seq=" + seq, parameters, rawData, seq * 100, seq * 1_000_000);
+    }
+
+    private static void assertSameMetric(WorkerMetric expected, WorkerMetric actual) {
+        assertEquals(expected.getSeq(), actual.getSeq());
+        assertEquals(expected.getWid(), actual.getWid());
+        assertEquals(expected.getUri(), actual.getUri());
+        assertEquals(expected.getParameters(), actual.getParameters());
+        assertEquals(expected.getRawData(), actual.getRawData());
+        assertEquals(expected.getBodySize(), actual.getBodySize());
+        assertEquals(expected.getDuration(), actual.getDuration());
+    }
+
+    private List<WorkerMetric> write(int count) throws IOException {
+        List<WorkerMetric> written = new ArrayList<>();
+        try (MetricsLog log = new MetricsLog(folder.getRoot().toString())) {
+            for (int i = 0; i < count; i++) {
+                WorkerMetric metric = metric(i);
+                log.append(metric);
+                written.add(metric);
+            }
+        }
+        return written;
+    }
+
+    private List<WorkerMetric> read() throws IOException {
+        List<WorkerMetric> read = new ArrayList<>();
+        new MetricsLogReader(folder.getRoot().toString()).read(read::add);
+        return read;
+    }
+
+    @Test
+    public void readsBackWhatWasAppended() throws IOException {
+        List<WorkerMetric> written = write(1000);
+        List<WorkerMetric> read = read();
+
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertSameMetric(written.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void readsSegmentsInOrder() throws IOException {
+        MetricsLog.SEGMENT_BYTES = 4096;
+        List<WorkerMetric> written = write(1000);
+
+        assertTrue(new MetricsLogReader(folder.getRoot().toString()).segments().size() > 1);
+        List<WorkerMetric> read = read();
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertSameMetric(written.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void dropsOldestSegmentsPastRetention() throws IOException {
+        MetricsLog.SEGMENT_BYTES = 4096;
+        MetricsLog.RETAIN_BYTES = 4 * 4096;
+        List<WorkerMetric> written = write(1000);
+
+        List<WorkerMetric> read = read();
+        assertTrue(read.size() < written.size());
+        // what is left is the newest metrics, in order
+        int first = written.size() - read.size();
+        for (int i = 0; i < read.size(); i++) {
+            assertSameMetric(written.get(first + i), read.get(i));
+        }
+    }
+
+    @Test
+    public void keepsRecordsLargerThanTheBuffer() throws IOException {
+        WorkerMetric large = metric(1);
+        for (int i = 0; i < 20_000; i++) {
+            large.putRawData("key" + i, i);
+        }
+
+        try (MetricsLog log = new MetricsLog(folder.getRoot().toString())) {
+            log.append(metric(0));
+            log.append(large);
+            log.append(metric(2));
+        }
+
+        List<WorkerMetric> read = read();
+        assertEquals(3, read.size());
+        assertSameMetric(metric(0), read.get(0));
+        assertSameMetric(large, read.get(1));
+        assertSameMetric(metric(2), read.get(2));
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws IOException {
+        List<WorkerMetric> written = write(10);
+        Path segment = new MetricsLogReader(folder.getRoot().toString()).segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            // the worker died in the middle of writing the last record
+            channel.truncate(channel.size() - 3);
+        }
+
+        List<WorkerMetric> read = read();
+        assertEquals(written.size() - 1, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            assertSameMetric(written.get(i), read.get(i));
+        }
+    }
+
+    @Test
+    public void stopsAtACorruptRecord() throws IOException {
+        List<WorkerMetric> written = write(10);
+        Path segment = new MetricsLogReader(folder.getRoot().toString()).segments().get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.flip();
+            byte flipped = (byte) (last.get() ^ 0xFF);
+            channel.write(ByteBuffer.wrap(new byte[] { flipped }), channel.size() - 1);
+        }
+
+        assertEquals(written.size() - 1, read().size());
+    }
+
+    @Test
+    public void ignoresAppendsAfterClose() throws IOException {
+        MetricsLog log = new MetricsLog(folder.getRoot().toString());
+        log.append(metric(0));
+        log.close();
+        // the writer thread can still be appending after the shutdown hook
+        log.append(metric(1));
+        log.flush();
+        log.close();
+
+        assertEquals(1, new MetricsLogReader(folder.getRoot().toString()).segments().size());
+        List<WorkerMetric> read = read();
+        assertEquals(1, read.size());
+        assertSameMetric(metric(0), read.get(0));
+    }
+}
@@ -0,0 +1,160 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import pt.ulisboa.tecnico.cnv.common.Handler;
+import pt.ulisboa.tecnico.cnv.common.WorkerMetric;
+import pt.ulisboa.tecnico.cnv.imageproc.BlurImageHandler;
+import pt.ulisboa.tecnico.cnv.imageproc.EnhanceImageHandler;
+import pt.ulisboa.tecnico.cnv.javassist.tools.VFXMetrics;
+import pt.ulisboa.tecnico.cnv.javassist.tools.VFXSampledMetrics;
+import pt.ulisboa.tecnico.cnv.raytracer.RaytracerHandler;
+
+/**
+ * Runs the raytracer and image processing handlers instrumented by
+ * VFXSampledMetrics, as the agent does, one request sampled and one not, and
+ * checks that both answer as the uninstrumented handlers do and that only
+ * the sampled one is counted.
+ */
+public class SampledInstrumentationTest {
+
+    private static final String[] PACKAGES = {
+        RaytracerHandler.class.getPackage().getName(),
+        BlurImageHandler.class.getPackage().getName(),
+    };
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static ClassLoader loader;
+
+    private int every;
+
+    /**
+     * Loads the classes of PACKAGES itself, instrumented, and the rest through
+     * its parent.
+     */
+    private static class Loader extends ClassLoader {
+        private final VFXSampledMetrics tool;
+
+        Loader(VFXSampledMetrics tool) {
+            super(SampledInstrumentationTest.class.getClassLoader());
+            this.tool = tool;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            boolean instrumented = false;
+            for (String prefix : PACKAGES) {
+                instrumented |= name.startsWith(prefix + ".");
+            }
+            if (!instrumented) {
+                return super.loadClass(name, resolve);
+            }
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                byte[] bytecode = tool.transform(name);
+                assertNotNull("could not instrument " + name, bytecode);
+                loaded = defineClass(name, bytecode, 0, bytecode.length);
+            }
+            return loaded;
+        }
+    }
+
+    @BeforeClass
+    public static void instrument() {
+        loader = new Loader(new VFXSampledMetrics(Arrays.asList(PACKAGES), folder.getRoot().getPath()));
+    }
+
+    @Before
+    public void sampleEveryOther() {
+        every = Sampler.EVERY;
+        Sampler.EVERY = 2;
+    }
+
+    @After
+    public void restore() {
+        Sampler.EVERY = every;
+        Sampler.stop();
+    }
+
+    private static Handler instrumented(Class<?> handler) throws Exception {
+        return (Handler) loader.loadClass(handler.getName()).getConstructor().newInstance();
+    }
+
+    private static InputStream stream(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Runs the request on the uninstrumented handler, then twice on the
+     * instrumented one: sampled, then not.
+     */
+    private static void assertSampledOnly(Class<?> handlerClass, String uri, Supplier<InputStream> body) throws Exception {
+        String expected = ((Handler) handlerClass.getConstructor().newInstance()).actuallyHandle(URI.create(uri), body.get());
+        Handler handler = instrumented(handlerClass);
+        Sampler sampler = new Sampler("test");
+
+        int weight = sampler.start();
+        String sampledOutput = handler.actuallyHandle(URI.create(uri), body.get());
+        Map<String, Long> sampled = Sampler.getStats(weight);
+        Sampler.stop();
+
+        int noWeight = sampler.start();
+        String unsampledOutput = handler.actuallyHandle(URI.create(uri), body.get());
+        Map<String, Long> unsampled = Sampler.getStats(noWeight);
+        long unsampledInsts = VFXMetrics.counters().ninsts;
+        Sampler.stop();
+
+        assertEquals(expected, sampledOutput);
+        assertEquals(expected, unsampledOutput);
+
+        assertEquals(2, weight);
+        assertEquals(2L, (long) sampled.get(WorkerMetric.Counter.SAMPLE_WEIGHT.getKey()));
+        long sampledInsts = sampled.get(WorkerMetric.Counter.NINSTS.getKey());
+        assertTrue(sampledInsts > 0);
+
+        assertEquals(0, noWeight);
+        assertTrue(unsampled.isEmpty());
+        // only constructors and interface methods, which have no copy, still
+        // count; the raytracer makes a few vectors per ray
+        assertTrue(unsampledInsts < sampledInsts / 2);
+    }
+
+    @Test
+    public void raytracer() throws Exception {
+        assertSampledOnly(RaytracerHandler.class,
+                "/raytracer?scols=64&srows=64&wcols=64&wrows=64&coff=0&roff=0&format=png",
+                () -> Warmup.sceneBody(new Random(1), false));
+    }
+
+    @Test
+    public void blurImage() throws Exception {
+        String image = Warmup.dataUrl(new Random(2), "png");
+        assertSampledOnly(BlurImageHandler.class, "/blurimage?quality=exact", () -> stream(image));
+    }
+
+    @Test
+    public void enhanceImage() throws Exception {
+        String image = Warmup.dataUrl(new Random(3), "png");
+        assertSampledOnly(EnhanceImageHandler.class, "/enhanceimage", () -> stream(image));
+    }
+}
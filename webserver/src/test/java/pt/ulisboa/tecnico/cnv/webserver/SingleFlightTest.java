@@ -0,0 +1,142 @@
+package pt.ulisboa.tecnico.cnv.webserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class SingleFlightTest {
+
+    private boolean enabled;
+    private HttpServer server;
+    private ExecutorService clients;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    // status the first call answers with; later calls answer 200
+    private volatile int firstStatus;
+
+    @Before
+    public void start() throws IOException {
+        enabled = SingleFlight.ENABLED;
+        SingleFlight.ENABLED = true;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/work", SingleFlight.wrap(this::work));
+        server.start();
+        clients = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void stop() {
+        SingleFlight.ENABLED = enabled;
+        release.countDown();
+        server.stop(0);
+        clients.shutdownNow();
+    }
+
+    private void work(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        int call = calls.incrementAndGet();
+        int status = 200;
+        if (call == 1) {
+            status = firstStatus;
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = ("call " + call).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static String[] post(int port) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/work?x=1").openConnection();
+        con.setRequestMethod("POST");
+        con.setDoOutput(true);
+        try (OutputStream os = con.getOutputStream()) {
+            os.write("same body".getBytes(StandardCharsets.UTF_8));
+        }
+        int status = con.getResponseCode();
+        InputStream in = status < 400 ? con.getInputStream() : con.getErrorStream();
+        String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        in.close();
+        return new String[] { String.valueOf(status), body, con.getHeaderField(SingleFlight.HEADER) };
+    }
+
+    /**
+     * Sends a request that blocks in the handler, then an identical one,
+     * then lets the first finish; returns both answers.
+     */
+    private String[][] twoIdentical() throws Exception {
+        int port = server.getAddress().getPort();
+        Future<String[]> first = clients.submit(() -> post(port));
+        assertEquals(true, entered.await(5, TimeUnit.SECONDS));
+        Future<String[]> second = clients.submit(() -> post(port));
+        // give the second request time to find the first in flight
+        Thread.sleep(200);
+        release.countDown();
+        return new String[][] { first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS) };
+    }
+
+    @Test
+    public void replaysSuccessfulResponse() throws Exception {
+        firstStatus = 200;
+        String[][] answers = twoIdentical();
+
+        assertEquals(1, calls.get());
+        assertEquals("200", answers[1][0]);
+        assertEquals("call 1", answers[1][1]);
+        assertEquals("true", answers[1][2]);
+    }
+
+    @Test
+    public void errorResponseIsNotReplayed() throws Exception {
+        firstStatus = 500;
+        String[][] answers = twoIdentical();
+
+        assertEquals("500", answers[0][0]);
+        assertEquals(2, calls.get());
+        assertEquals("200", answers[1][0]);
+        assertEquals("call 2", answers[1][1]);
+        assertNull(answers[1][2]);
+    }
+
+    @Test
+    public void busyResponseIsNotReplayed() throws Exception {
+        firstStatus = 503;
+        String[][] answers = twoIdentical();
+
+        assertEquals("503", answers[0][0]);
+        assertEquals(2, calls.get());
+        assertEquals("200", answers[1][0]);
+        assertNull(answers[1][2]);
+    }
+}